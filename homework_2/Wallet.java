@@ -15,6 +15,7 @@ import javacard.framework.APDU;
 import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 import javacard.framework.OwnerPIN;
 import javacard.framework.Util;
 
@@ -62,22 +63,22 @@ public class Wallet extends Applet {
     
     // Homework 2
     
-    // Price of a bus ticket (4 RON).
+    // Default price of a bus ticket (4 RON).
     private static final short BUS_TICKET_PRICE = 4;
     
-    // Price of a tram ticket (2 RON).
+    // Default price of a tram ticket (2 RON).
     private static final short TRAM_TICKET_PRICE = 2;
     
-    // Price of a bus pass (60 RON).
+    // Default price of a bus pass (60 RON).
     private static final short BUS_PASS_PRICE = 60;
     
-    // Price of a tram pass (40 RON).
+    // Default price of a tram pass (40 RON).
     private static final short TRAM_PASS_PRICE = 40;
     
-    // Number of trips of a bus pass (20 trips).
+    // Default number of trips of a bus pass (20 trips).
     private static final byte BUS_PASS_NUMBER_OF_TRIPS = 20;
     
-    // Number of trips of a tram pass (30 trips).
+    // Default number of trips of a tram pass (30 trips).
     private static final byte TRAM_PASS_NUMBER_OF_TRIPS = 30;
     
     // Status code for no pass (code 27,270).
@@ -86,30 +87,200 @@ public class Wallet extends Applet {
     // Status code for too many tickets (code 27,271).
     private static final short SW_TOO_MANY_TICKETS = (short) 0x6A87;
     
-    // Pass type - none (0).
-    private static final byte PASS_TYPE_NONE = (byte) 0x00;
-    
     // Pass type - bus (1).
     private static final byte PASS_TYPE_BUS = (byte) 0x01;
     
     // Pass type - tram (2).
     private static final byte PASS_TYPE_TRAM = (byte) 0x02;
     
-    // Pass type (0 - none, 1 - bus, 2 - tram).
-    private byte passType;
-    
-    // Number of remaining trips for the pass.
-    private byte passRemainingNumberOfTrips;
-    
     // INS code for purchasing a pass.
     final static byte PURCHASE_PASS = (byte) 0x70;
+    
+    
+    
+    // Transit session
+    
+    // INS code for starting a transit session (P1 - means of transport, P2 - fare type).
+    final static byte START_TRANSIT = (byte) 0x42;
+    
+    // INS code for a tap at the gate during a transit session.
+    final static byte TAP = (byte) 0x44;
+    
+    // Positions in the state of the transit session.
+    private static final byte TRANSIT_ACTIVE = 0;
+    private static final byte TRANSIT_MEANS_OF_TRANSPORT = 1;
+    private static final byte TRANSIT_UNIT_PRICE = 2;
+    private static final byte TRANSIT_DATE = 3;
+    private static final byte TRANSIT_MONTH = 4;
+    
+    // State of the transit session (0 - active, 1 - means of transport, 2 - unit price, 3 - date, 4 - month), cleared on deselect.
+    private short[] transitSession;
+    
+    
+    
+    // Fare table
+    
+    // INS code for loading a new fare table (data: fare key (8 bytes) followed by the fare table).
+    final static byte SET_FARE_TABLE = (byte) 0x60;
+    
+    // Size of the fare key, and number of wrong fare keys after which the fares can no longer be changed.
+    private static final byte FARE_KEY_SIZE = 8;
+    private static final byte FARE_KEY_TRY_LIMIT = 3;
+    
+    // Number of means of transport (1 - bus, 2 - tram) and of fare types (0 - full, 1 - morning, 2 - weekend).
+    private static final byte NUMBER_OF_MEANS_OF_TRANSPORT = 2;
+    private static final byte NUMBER_OF_FARE_TYPES = 3;
+    
+    // Offsets in the fare table.
+    private static final short FARE_TICKET_PRICES = 0;        // 2 bytes for each means of transport and fare type
+    private static final short FARE_PASS_PRICES = 12;         // 2 bytes for each means of transport
+    private static final short FARE_PASS_TRIPS = 16;          // 1 byte for each means of transport
+    private static final short FARE_GROUP_SIZE = 18;          // more tickets than this get the group discount
+    private static final short FARE_GROUP_PERCENT = 19;       // percent of the price paid with the group discount
+    private static final short FARE_DAILY_CAP = 20;           // most paid in a day (2 bytes, 0 - no cap)
+    private static final short FARE_MONTHLY_CAP = 22;         // most paid in a month (2 bytes, 0 - no cap)
+    private static final short FARE_TABLE_SIZE = 24;
+    
+    // Fare table, indexed by means of transport and fare type.
+    private byte[] fareTable;
+    
+    // Key of the issuer for loading a fare table, given at install (null - the fares can't be changed).
+    private OwnerPIN fareKey;
+    
+    
+    
+    // Transaction journal
+    
+    // INS code for reading the journal entries after a sequence number (P1 P2).
+    final static byte READ_JOURNAL = (byte) 0x54;
+    
+    // INS code for continuing a read of the journal.
+    final static byte GET_RESPONSE = (byte) 0xC0;
+    
+    // Types of the journal entries (the amount of a redeem entry is in loyalty points).
+    private static final byte JOURNAL_CREDIT = 1;
+    private static final byte JOURNAL_DEBIT = 2;
+    private static final byte JOURNAL_PASS = 3;
+    private static final byte JOURNAL_TAP = 4;
+    private static final byte JOURNAL_REDEEM = 5;
+    
+    // Layout of a journal entry: sequence number (2 bytes), type (1), means of transport (1), amount (2), balance after (2).
+    private static final short JOURNAL_ENTRY_SIZE = 8;
+    
+    // Number of journal entries (a power of 2, so the slot of an entry is its sequence number modulo the size).
+    private static final short JOURNAL_ENTRIES = 16;
+    
+    // Circular journal of the last transactions (the slot after the last entry may hold an entry not committed yet).
+    private byte[] journal;
+    
+    // Journal entry being built (cleared on deselect).
+    private byte[] journalEntry;
+    
+    // State of the read of the journal (0 - more entries left, 1 - last sequence number sent), cleared on deselect.
+    private short[] journalRead;
+    
+    
+    
+    // Fare capping
+    
+    // Dates from the gate are day numbers (1 - 1 January 2000, 0 - no date, so no capping).
+    
+    // Number of days before each month, in a year that isn't a leap year.
+    final static short[] DAYS_BEFORE_MONTH = {0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334, 365};
+    
+    // Number of days in 4 years (the first one being a leap year, which holds from 2000 to 2099).
+    private static final short DAYS_IN_4_YEARS = 1461;
+    
+    
+    
+    // Loyalty points
+    
+    // INS code for paying tickets with loyalty points (P1 - means of transport, P2 - fare type, data - number of tickets).
+    final static byte REDEEM_POINTS = (byte) 0x46;
+    
+    // Number of loyalty points earned for each RON paid, and needed to pay for each RON of a fare.
+    private static final short LOYALTY_POINTS_EARNED_PER_RON = 1;
+    private static final short LOYALTY_POINTS_SPENT_PER_RON = 10;
+    
+    
+    
+    // Usage statistics
+    
+    // INS code for getting the usage statistics (no PIN needed).
+    final static byte GET_STATS = (byte) 0x5C;
+    
+    // INS codes counted one by one (the commands of any other INS share one counter, reported as INS 0xFF).
+    final static byte[] STATS_INS = {VERIFY, RESET_PIN, CREDIT, DEBIT, START_TRANSIT, TAP, REDEEM_POINTS, GET_BALANCE,
+            READ_JOURNAL, GET_STATS, SET_FARE_TABLE, PURCHASE_PASS, GET_RESPONSE};
+    private static final byte STATS_OTHER_INS = (byte) 0xFF;
+    
+    private static final short STATS_INS_COUNTED = 13;        // STATS_INS.length
+    
+    // Counters (4 bytes each): PIN failures, persistent writes, then the commands of each INS and of any other INS.
+    private static final short STATS_PIN_FAILURES = 0;
+    private static final short STATS_PERSISTENT_WRITES = 1;
+    private static final short STATS_INS_COUNTERS = 2;
+    private static final short STATS_OTHER_INS_COUNTER = STATS_INS_COUNTERS + STATS_INS_COUNTED;
+    private static final short STATS_COUNTERS = STATS_OTHER_INS_COUNTER + 1;
+    private static final short STATS_COUNTER_SIZE = 4;
+    
+    // Status words of the rejected commands: status word (2 bytes, 0 - free slot) and its counter; the last slot counts
+    // the status words that found no slot.
+    private static final short STATS_SW_OFFSET = STATS_COUNTERS * STATS_COUNTER_SIZE;
+    private static final short STATS_SW_SLOT_SIZE = 2 + STATS_COUNTER_SIZE;
+    private static final short STATS_SW_SLOTS = 8;
+    private static final short STATS_SIZE = STATS_SW_OFFSET + STATS_SW_SLOTS * STATS_SW_SLOT_SIZE;
+    
+    // Largest response of GET STATS: the two counters, then every INS and every status word with their counts.
+    private static final short STATS_MAXIMUM_OUTPUT = 2 * STATS_COUNTER_SIZE + 1 + (STATS_INS_COUNTED + 1) * (1 + STATS_COUNTER_SIZE)
+            + 1 + STATS_SW_SLOTS * STATS_SW_SLOT_SIZE;
+    
+    // Counts in RAM: commands since the last time, the counters, the status words, then the status words given to free slots.
+    private static final short STATS_DELTA_STATUS_WORDS = 1 + STATS_COUNTERS + STATS_SW_SLOTS;
+    private static final short STATS_DELTA_SIZE = STATS_DELTA_STATUS_WORDS + STATS_SW_SLOTS;
+    
+    // Number of commands counted in RAM before the counts are added to EEPROM.
+    private static final short STATS_FLUSH_INTERVAL = 16;
+    
+    // Usage statistics (counters unsigned, stopping at 0xFFFFFFFF).
+    private byte[] stats;
+    
+    // Counts not added to EEPROM yet (laid out as told above STATS_DELTA_STATUS_WORDS), cleared on deselect after they are added.
+    private short[] statsDelta;
+    
+    // Counter built in RAM before it is copied to EEPROM in one atomic write.
+    private byte[] statsCounter;
+    
+    
+    
+    // Wallet state
+    
+    // Offsets in the wallet state.
+    private static final short STATE_BALANCE = 0;             // RON balance (2 bytes)
+    private static final short STATE_JOURNAL_SEQUENCE = 2;    // sequence number of the last journal entry (2 bytes, 0 - no entry yet)
+    private static final short STATE_LOYALTY_POINTS = 4;      // loyalty points balance (2 bytes)
+    private static final short STATE_PASSES = 6;              // one pass for each means of transport
+    private static final short STATE_CAP_DAY = 12;            // date of the daily spend (2 bytes)
+    private static final short STATE_DAY_SPEND = 14;          // RON paid that day (2 bytes)
+    private static final short STATE_CAP_MONTH = 16;          // month of the monthly spend (2 bytes, months since January 2000)
+    private static final short STATE_MONTH_SPEND = 18;        // RON paid that month (2 bytes)
+    private static final short STATE_SIZE = 20;
+    
+    // Layout of a pass: number of remaining trips (1 byte), last valid day (2 bytes, 0 - no expiry).
+    private static final short PASS_TRIPS = 0;
+    private static final short PASS_EXPIRY = 1;
+    private static final short PASS_SIZE = 3;
+    
+    // Wallet state, only ever replaced as a whole.
+    private byte[] walletState;
+    
+    // New wallet state being built by a command (cleared on deselect).
+    private byte[] newState;
 
 
     
     /* instance variables declaration */
     OwnerPIN pin;
-    short balanceRON;            // RON balance
-    short balanceLoyaltyPoints;  // Loyalty points balance
     private final byte[] pukCode = {0x09, 0x09, 0x09, 0x09, 0x09, 0x09, 0x09, 0x09}; 
 
     private Wallet(byte[] bArray, short bOffset, byte bLength) {
@@ -124,17 +295,71 @@ public class Wallet extends Applet {
         byte aLen = bArray[bOffset]; // applet data length
 
         // The installation parameters contain the PIN initialization value
-        pin.update(bArray, (short) (bOffset + 1), aLen);
+        // (Homework 2: or, when longer than a PIN, the PIN length, the PIN and the fare key)
+        byte pinLength = aLen;
+        short pinOffset = (short) (bOffset + 1);
+        
+        if (aLen > MAX_PIN_SIZE)
+        {
+            pinLength = bArray[pinOffset];
+            pinOffset++;
+        }
+        
+        pin.update(bArray, pinOffset, pinLength);
         
         
         
         // Homework 2
         
-        // By default, the user has no pass.
-        passType = PASS_TYPE_NONE;
+        // By default, the balance is 0, the user has no pass (so there are no remaining trips) and the journal is empty.
+        walletState = new byte[STATE_SIZE];
+        newState = JCSystem.makeTransientByteArray(STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        
+        // Load the default fares (morning: 3 RON bus, 1 RON tram; weekend: half price; group: more than 10 tickets, 20% off).
+        fareTable = new byte[FARE_TABLE_SIZE];
+        
+        Util.setShort(fareTable, getTicketPriceOffset(PASS_TYPE_BUS, (byte) 0), BUS_TICKET_PRICE);
+        Util.setShort(fareTable, getTicketPriceOffset(PASS_TYPE_BUS, (byte) 1), (short) 3);
+        Util.setShort(fareTable, getTicketPriceOffset(PASS_TYPE_BUS, (byte) 2), (short) (BUS_TICKET_PRICE / 2));
+        Util.setShort(fareTable, getTicketPriceOffset(PASS_TYPE_TRAM, (byte) 0), TRAM_TICKET_PRICE);
+        Util.setShort(fareTable, getTicketPriceOffset(PASS_TYPE_TRAM, (byte) 1), (short) 1);
+        Util.setShort(fareTable, getTicketPriceOffset(PASS_TYPE_TRAM, (byte) 2), (short) (TRAM_TICKET_PRICE / 2));
+        Util.setShort(fareTable, FARE_PASS_PRICES, BUS_PASS_PRICE);
+        Util.setShort(fareTable, (short) (FARE_PASS_PRICES + 2), TRAM_PASS_PRICE);
+        fareTable[FARE_PASS_TRIPS] = BUS_PASS_NUMBER_OF_TRIPS;
+        fareTable[FARE_PASS_TRIPS + 1] = TRAM_PASS_NUMBER_OF_TRIPS;
+        fareTable[FARE_GROUP_SIZE] = 10;
+        fareTable[FARE_GROUP_PERCENT] = 80;
+        
+        // By default, there is no fare cap.
+        Util.setShort(fareTable, FARE_DAILY_CAP, (short) 0);
+        Util.setShort(fareTable, FARE_MONTHLY_CAP, (short) 0);
+        
+        // Only a card installed with a fare key (its own, from the issuer) accepts a new fare table.
+        if (aLen > MAX_PIN_SIZE)
+        {
+            if (aLen != (short) (1 + pinLength + FARE_KEY_SIZE))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            
+            fareKey = new OwnerPIN(FARE_KEY_TRY_LIMIT, FARE_KEY_SIZE);
+            fareKey.update(bArray, (short) (pinOffset + pinLength), FARE_KEY_SIZE);
+        }
+        
+        // Create the journal.
+        journal = new byte[(short) (JOURNAL_ENTRIES * JOURNAL_ENTRY_SIZE)];
+        journalEntry = JCSystem.makeTransientByteArray(JOURNAL_ENTRY_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        journalRead = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
         
-        // Because by default the user has no pass, the number of remaining trips is 0.
-        passRemainingNumberOfTrips = 0;
+        // The transit session lasts until the applet is deselected.
+        transitSession = JCSystem.makeTransientShortArray((short) 5, JCSystem.CLEAR_ON_DESELECT);
+        
+        // Create the usage statistics, after making sure STATS_INS_COUNTED (the layout) matches the counted instructions.
+        if (STATS_INS.length != STATS_INS_COUNTED)
+            ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        
+        stats = new byte[STATS_SIZE];
+        statsDelta = JCSystem.makeTransientShortArray(STATS_DELTA_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        statsCounter = JCSystem.makeTransientByteArray(STATS_COUNTER_SIZE, JCSystem.CLEAR_ON_DESELECT);
         
         
         
@@ -158,13 +383,40 @@ public class Wallet extends Applet {
     public void deselect() {
         // reset the PIN value
         pin.reset();
+        
+        // Save the usage statistics of the session.
+        flushStats();
     }
 
     @Override
     public void process(APDU apdu) {
 
+        // The SELECT of the applet is not counted.
+        if (selectingApplet()) {
+            return;
+        }
+
+        // Count the command, and its status word if it is rejected.
+        countCommand(apdu.getBuffer()[ISO7816.OFFSET_INS]);
+
+        try {
+            dispatch(apdu);
+        } catch (ISOException e) {
+            countRejected(e.getReason());
+            throw e;
+        }
+    } // end of process method
+
+    private void dispatch(APDU apdu) {
+
         byte[] buffer = apdu.getBuffer();
 
+        // Continue a read of the journal (GET RESPONSE may come with the ISO class or with the class of the command)
+        if (buffer[ISO7816.OFFSET_INS] == GET_RESPONSE) {
+            getResponse(apdu);
+            return;
+        }
+
         // Check for SELECT APDU command
         if (apdu.isISOInterindustryCLA()) {
             if (buffer[ISO7816.OFFSET_INS] == (byte) 0xA4) {
@@ -173,6 +425,9 @@ public class Wallet extends Applet {
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
         }
 
+        // Any other command ends the read of the journal
+        journalRead[0] = 0;
+
         // Verify that commands have the correct CLA
         if (buffer[ISO7816.OFFSET_CLA] != Wallet_CLA) {
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
@@ -197,10 +452,28 @@ public class Wallet extends Applet {
             case PURCHASE_PASS:
             	pass(apdu);						// Homework 2
             	return;
+            case START_TRANSIT:
+            	startTransit(apdu);
+            	return;
+            case TAP:
+            	tap(apdu);
+            	return;
+            case SET_FARE_TABLE:
+            	setFareTable(apdu);
+            	return;
+            case READ_JOURNAL:
+            	readJournal(apdu);
+            	return;
+            case REDEEM_POINTS:
+            	redeemPoints(apdu);
+            	return;
+            case GET_STATS:
+            	apdu.setOutgoingAndSend((short)0, getStats(apdu.getBuffer(), (short)0, (short)apdu.getBuffer().length));
+            	return;
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
         }
-    } // end of process method
+    } // end of dispatch method
 
     private void credit(APDU apdu)
     {
@@ -222,11 +495,16 @@ public class Wallet extends Applet {
             ISOException.throwIt(SW_INVALID_TRANSACTION_AMOUNT);
         }
 
-        if ((short)(balanceRON + creditAmount) > MAX_BALANCE) {
+        beginUpdate();
+        short balance = Util.getShort(newState, STATE_BALANCE);
+
+        if ((short)(balance + creditAmount) > MAX_BALANCE) {
             ISOException.throwIt(SW_EXCEED_MAXIMUM_BALANCE);
         }
 
-        balanceRON = (short)(balanceRON + creditAmount);
+        Util.setShort(newState, STATE_BALANCE, (short)(balance + creditAmount));
+
+        commitUpdate(JOURNAL_CREDIT, (byte) 0, creditAmount);
     } // end of credit method
 
     
@@ -242,45 +520,46 @@ public class Wallet extends Applet {
         // Get the fare type (1 - morning, 2 - weekend, otherwise full price).
         byte fareType = apduBuffer[ISO7816.OFFSET_P2];
 
-        // Make sure the number of tikets is exactly one byte.
+        // Make sure the data is the number of tikets (1 byte), optionally followed by the date (2 bytes, day number).
         byte numberOfBytes = apduBuffer[ISO7816.OFFSET_LC];
         byte numberOfReadBytes = (byte)apdu.setIncomingAndReceive();
         
-        if (numberOfBytes != 1 || numberOfReadBytes != 1)
+        if (numberOfBytes != numberOfReadBytes || (numberOfBytes != 1 && numberOfBytes != 3))
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
         // Get the number of tickets.
         byte numberOfTickets = apduBuffer[ISO7816.OFFSET_CDATA];
         byte numberOfTicketsToPay = numberOfTickets;
         
-        // If the user has a matching pass and at least one trip left, consume that one trip from the pass.
-        if (passType == meansOfTransport && passRemainingNumberOfTrips > 0)
-        {
-            passRemainingNumberOfTrips--;
+        // Get the date (0 - not supplied).
+        short date = 0;
+        
+        if (numberOfBytes == 3)
+            date = Util.getShort(apduBuffer, (short)(ISO7816.OFFSET_CDATA + 1));
+        
+        // Find the pass for the means of transport.
+        short passOffset = getPassOffset(meansOfTransport);
+        
+        // No tickets means nothing to pay and no trip to take, so return before anything is written.
+        if (numberOfTickets == 0)
+            return;
+        
+        // Work on a copy of the state, so nothing is written until every check passed.
+        beginUpdate();
+        
+        // If the user has a valid pass with at least one trip left, consume that one trip from the pass.
+        if (takePassTrip(passOffset, date))
             numberOfTicketsToPay--;
-        }
 
         // If no tickets need to be paid, return early.
         if (numberOfTicketsToPay == 0)
-            return;
-        
-        // Otherwise, compute unit price.
-        short unitPrice;
-        
-        // Morning Fare
-        if (fareType == 0x01)
-            unitPrice = (meansOfTransport == PASS_TYPE_BUS) ? (short)3 : (short)1;
-        
-        // Weekend Fare
-        else if (fareType == 0x02)
         {
-            short base = (meansOfTransport == PASS_TYPE_BUS) ? BUS_TICKET_PRICE : TRAM_TICKET_PRICE;
-            unitPrice = (short)(base / 2);
+            commitUpdate(JOURNAL_DEBIT, meansOfTransport, (short)0);
+            return;
         }
         
-        // Full Fare
-        else
-            unitPrice = (meansOfTransport == PASS_TYPE_BUS) ? BUS_TICKET_PRICE : TRAM_TICKET_PRICE;
+        // Otherwise, compute unit price.
+        short unitPrice = getUnitPrice(meansOfTransport, fareType);
         
         // Make sure you don't try to buy less than 1 ticket or more than 20.
         if (numberOfTickets < 1 || numberOfTickets > 20)
@@ -289,16 +568,187 @@ public class Wallet extends Applet {
         // Compute the total.
         short totalPrice = (short)(unitPrice * numberOfTicketsToPay);
         
-        // Get a group discount (20% off).
-        if (numberOfTicketsToPay > 10)
-        	totalPrice = (short)((totalPrice * 80) / 100);
+        // Get a group discount (20% off by default), without overflowing the intermediate product.
+        if (numberOfTicketsToPay > fareTable[FARE_GROUP_SIZE])
+        {
+            byte percent = fareTable[FARE_GROUP_PERCENT];
+        	totalPrice = (short)((totalPrice / 100) * percent + ((totalPrice % 100) * percent) / 100);
+        }
+        
+        // Pay no more than what is left under the daily and monthly caps.
+        if (date != 0)
+            totalPrice = applyFareCap(totalPrice, date, getMonthNumber(date));
         
         // Make sure you have enough money for the tickets.
-        if (totalPrice > balanceRON)
+        short balance = Util.getShort(newState, STATE_BALANCE);
+        
+        if (totalPrice > balance)
             ISOException.throwIt(SW_NEGATIVE_BALANCE);
         
-        // Update the balance.
-        balanceRON -= (short)totalPrice;
+        // Update the balance and the remaining number of trips at once.
+        Util.setShort(newState, STATE_BALANCE, (short)(balance - totalPrice));
+        
+        commitUpdate(JOURNAL_DEBIT, meansOfTransport, totalPrice);
+    }
+    
+    
+    
+    private short getUnitPrice (byte meansOfTransport, byte fareType)
+    {
+        // Any fare type other than morning (1) or weekend (2) is the full fare (0).
+        if (fareType != 0x01 && fareType != 0x02)
+            fareType = 0x00;
+        
+        return Util.getShort(fareTable, getTicketPriceOffset(meansOfTransport, fareType));
+    }
+    
+    
+    
+    private short getTicketPriceOffset (byte meansOfTransport, byte fareType)
+    {
+        // Make sure the means of transport is in the fare table.
+        if (meansOfTransport < PASS_TYPE_BUS || meansOfTransport > NUMBER_OF_MEANS_OF_TRANSPORT)
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        
+        return (short)(FARE_TICKET_PRICES + ((meansOfTransport - 1) * NUMBER_OF_FARE_TYPES + fareType) * 2);
+    }
+    
+    
+    
+    // Fare table
+    
+    private void setFareTable (APDU apdu)
+    {
+        byte[] apduBuffer = apdu.getBuffer();
+        short numberOfReadBytes = apdu.setIncomingAndReceive();
+        
+        // Only a card installed with a fare key accepts a new fare table, until too many wrong keys block it.
+        if (fareKey == null)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        
+        if (fareKey.getTriesRemaining() == 0)
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        
+        // The data is the fare key followed by the whole fare table.
+        if (numberOfReadBytes != (short)(FARE_KEY_SIZE + FARE_TABLE_SIZE))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        // Only the issuer, who knows the fare key of the card, can change the fares (every check writes the try counter).
+        countStat(STATS_PERSISTENT_WRITES);
+        
+        if (!fareKey.check(apduBuffer, ISO7816.OFFSET_CDATA, FARE_KEY_SIZE))
+            ISOException.throwIt(SW_VERIFICATION_FAILED);
+        
+        // The key is checked for this command only.
+        fareKey.reset();
+        
+        short tableOffset = (short)(ISO7816.OFFSET_CDATA + FARE_KEY_SIZE);
+        
+        // Make sure every price is a valid transaction amount, so totals can't overflow.
+        for (short offset = FARE_TICKET_PRICES; offset < FARE_PASS_TRIPS; offset += 2)
+        {
+            short price = Util.getShort(apduBuffer, (short)(tableOffset + offset));
+            
+            if (price < 0 || price > MAX_TRANSACTION_AMOUNT)
+                ISOException.throwIt(SW_INVALID_TRANSACTION_AMOUNT);
+        }
+        
+        // Make sure the passes have trips, the group has a size and the discount doesn't raise the price.
+        byte percent = apduBuffer[(short)(tableOffset + FARE_GROUP_PERCENT)];
+        
+        if (apduBuffer[(short)(tableOffset + FARE_PASS_TRIPS)] <= 0 || apduBuffer[(short)(tableOffset + FARE_PASS_TRIPS + 1)] <= 0
+                || apduBuffer[(short)(tableOffset + FARE_GROUP_SIZE)] < 0
+                || percent < 0 || percent > 100
+                || Util.getShort(apduBuffer, (short)(tableOffset + FARE_DAILY_CAP)) < 0
+                || Util.getShort(apduBuffer, (short)(tableOffset + FARE_MONTHLY_CAP)) < 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        
+        // Replace the whole fare table at once.
+        Util.arrayCopy(apduBuffer, tableOffset, fareTable, (short)0, FARE_TABLE_SIZE);
+        countStat(STATS_PERSISTENT_WRITES);
+    }
+    
+    
+    
+    // Transit session
+    
+    private void startTransit (APDU apdu)
+    {
+        // Validate the PIN number once for the whole session.
+        if (!pin.isValidated())
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        
+        // Get the means of transport (1 - bus, 2 - tram) and the fare type (1 - morning, 2 - weekend, otherwise full price).
+        byte[] apduBuffer = apdu.getBuffer();
+        byte meansOfTransport = apduBuffer[ISO7816.OFFSET_P1];
+        byte fareType = apduBuffer[ISO7816.OFFSET_P2];
+        
+        if (meansOfTransport != PASS_TYPE_BUS && meansOfTransport != PASS_TYPE_TRAM)
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        
+        // Get the date (optional, 2 bytes, day number), used to check the expiry of the pass.
+        short numberOfReadBytes = apdu.setIncomingAndReceive();
+        short date = 0;
+        
+        if (numberOfReadBytes == 2)
+            date = Util.getShort(apduBuffer, ISO7816.OFFSET_CDATA);
+        
+        else if (numberOfReadBytes != 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        // Compute the price of one trip once, so every tap only has to subtract it.
+        transitSession[TRANSIT_MEANS_OF_TRANSPORT] = meansOfTransport;
+        transitSession[TRANSIT_UNIT_PRICE] = getUnitPrice(meansOfTransport, fareType);
+        transitSession[TRANSIT_DATE] = date;
+        transitSession[TRANSIT_ACTIVE] = 1;
+        
+        // Compute the month once as well, so the fare cap of a tap takes constant time.
+        if (date != 0)
+            transitSession[TRANSIT_MONTH] = getMonthNumber(date);
+    }
+    
+    
+    
+    private void tap (APDU apdu)
+    {
+        // Make sure a transit session was started.
+        if (transitSession[TRANSIT_ACTIVE] == 0)
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        
+        byte meansOfTransport = (byte) transitSession[TRANSIT_MEANS_OF_TRANSPORT];
+        short unitPrice = 0;
+        
+        short passOffset = getPassOffset(meansOfTransport);
+        
+        beginUpdate();
+        
+        // Use one trip from a valid pass, otherwise pay one ticket.
+        if (!takePassTrip(passOffset, transitSession[TRANSIT_DATE]))
+        {
+            unitPrice = transitSession[TRANSIT_UNIT_PRICE];
+            
+            // Pay no more than what is left under the daily and monthly caps.
+            if (transitSession[TRANSIT_DATE] != 0)
+                unitPrice = applyFareCap(unitPrice, transitSession[TRANSIT_DATE], transitSession[TRANSIT_MONTH]);
+            
+            short balance = Util.getShort(newState, STATE_BALANCE);
+            
+            // Make sure you have enough money for the ticket.
+            if (unitPrice > balance)
+                ISOException.throwIt(SW_NEGATIVE_BALANCE);
+            
+            Util.setShort(newState, STATE_BALANCE, (short)(balance - unitPrice));
+        }
+        
+        commitUpdate(JOURNAL_TAP, meansOfTransport, unitPrice);
+        
+        // Send the new balance and the remaining number of trips, so no GET BALANCE is needed.
+        byte[] apduBuffer = apdu.getBuffer();
+        
+        Util.arrayCopyNonAtomic(walletState, STATE_BALANCE, apduBuffer, (short)0, (short)2);
+        apduBuffer[2] = walletState[(short)(passOffset + PASS_TRIPS)];
+        
+        apdu.setOutgoingAndSend((short)0, (short)3);
     }
 
     
@@ -312,22 +762,24 @@ public class Wallet extends Applet {
         // How many bytes the terminal expects
         short expectedNumberOfBytes = apdu.setOutgoing();
         
-        // The expected number of bytes must be 3: 2 for the balance, 1 for the remaining number of trips.
-        if (expectedNumberOfBytes < 3)
+        // The expected number of bytes must be 4: 2 for the balance, 1 for the remaining number of trips of each pass.
+        short numberOfBytes = (short)(2 + NUMBER_OF_MEANS_OF_TRANSPORT);
+        
+        if (expectedNumberOfBytes < numberOfBytes)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
         // Get the balance.
-        apduBuffer[0] = (byte)(balanceRON >> 8);
-        apduBuffer[1] = (byte)(balanceRON & 0xFF);
+        Util.arrayCopyNonAtomic(walletState, STATE_BALANCE, apduBuffer, (short)0, (short)2);
 
-        // Get the remaining number of trips.
-        apduBuffer[2] = passRemainingNumberOfTrips;
+        // Get the remaining number of trips of the bus pass, then of the tram pass.
+        for (byte meansOfTransport = PASS_TYPE_BUS; meansOfTransport <= NUMBER_OF_MEANS_OF_TRANSPORT; meansOfTransport++)
+            apduBuffer[(short)(1 + meansOfTransport)] = walletState[(short)(getPassOffset(meansOfTransport) + PASS_TRIPS)];
 
-        // Set the number of bytes of the result to be sent (3: 2 for the balance, 1 for the remaining number of trips).
-        apdu.setOutgoingLength((byte)3);
+        // Set the number of bytes of the result to be sent.
+        apdu.setOutgoingLength(numberOfBytes);
         
         // Send the results.
-        apdu.sendBytes((short)0, (short)3);
+        apdu.sendBytes((short)0, numberOfBytes);
     }
 
     
@@ -340,7 +792,12 @@ public class Wallet extends Applet {
            
         byte[] buffer = apdu.getBuffer();
         byte byteRead = (byte)(apdu.setIncomingAndReceive());
+
+        // Every check writes the try counter of the PIN.
+        countStat(STATS_PERSISTENT_WRITES);
+
         if (pin.check(buffer, ISO7816.OFFSET_CDATA, byteRead) == false) {
+            countStat(STATS_PIN_FAILURES);
             ISOException.throwIt(SW_VERIFICATION_FAILED);
         }
     } // end of verify method
@@ -352,6 +809,7 @@ public class Wallet extends Applet {
             byte offsetCData = ISO7816.OFFSET_CDATA;
             if (Util.arrayCompare(buffer, offsetCData, pukCode, (short)0, (short)8) == 0) {
                 pin.resetAndUnblock();
+                countStat(STATS_PERSISTENT_WRITES);
             } else {
                 ISOException.throwIt(SW_VERIFICATION_FAILED);
             }
@@ -364,50 +822,576 @@ public class Wallet extends Applet {
 
     private void pass (APDU apdu)
     {
-        // Get the pass type.
+        // The data is a list of passes: pass type (1 byte), last valid day (2 bytes, 0 - no expiry).
+        // Without data, P1 is the pass type of a single pass with no expiry.
         byte[] apduBuffer = apdu.getBuffer();
-        byte passTypeLocal = apduBuffer[ISO7816.OFFSET_P1];
+        short numberOfReadBytes = apdu.setIncomingAndReceive();
+        
+        if (numberOfReadBytes % PASS_SIZE != 0 || numberOfReadBytes > NUMBER_OF_MEANS_OF_TRANSPORT * PASS_SIZE)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        beginUpdate();
+        
+        short totalPrice = 0;
+        byte passTypes = 0;
+        
+        if (numberOfReadBytes == 0)
+        {
+            totalPrice = addPass(apduBuffer[ISO7816.OFFSET_P1], (short)0);
+            passTypes = (byte)(1 << (apduBuffer[ISO7816.OFFSET_P1] - 1));
+        }
+        
+        for (short offset = ISO7816.OFFSET_CDATA; offset < (short)(ISO7816.OFFSET_CDATA + numberOfReadBytes); offset += PASS_SIZE)
+        {
+            byte passTypeLocal = apduBuffer[offset];
+            
+            totalPrice += addPass(passTypeLocal, Util.getShort(apduBuffer, (short)(offset + 1)));
+            passTypes |= (byte)(1 << (passTypeLocal - 1));
+        }
 
-        // Make sure no other pass is active at the moment.
-        if (passType != PASS_TYPE_NONE)
-            ISOException.throwIt(SW_NO_PASS);
+        // Make sure there is enough money to pay for all the passes.
+        short balance = Util.getShort(newState, STATE_BALANCE);
+        
+        if (balance < totalPrice)
+            ISOException.throwIt(SW_NEGATIVE_BALANCE);
 
-        short passPrice;
-        byte passNumberOfTrips;
+        // Update the balance.
+        Util.setShort(newState, STATE_BALANCE, (short)(balance - totalPrice));
+        
+        // Write the balance and the passes at once (one journal entry, means of transport: 1 - bus, 2 - tram, 3 - both).
+        commitUpdate(JOURNAL_PASS, passTypes, totalPrice);
+    }
+    
+    
+    
+    private short addPass (byte passTypeLocal, short expiry)
+    {
+        // Pass Type - Something Else
+        if (passTypeLocal < PASS_TYPE_BUS || passTypeLocal > NUMBER_OF_MEANS_OF_TRANSPORT)
+            ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        
+        short passOffset = getPassOffset(passTypeLocal);
+        
+        // Make sure no other pass for this means of transport is active at the moment.
+        if (newState[(short)(passOffset + PASS_TRIPS)] > 0)
+            ISOException.throwIt(SW_NO_PASS);
+        
+        // Set the number of trips of the pass from the fare table, and its expiry.
+        newState[(short)(passOffset + PASS_TRIPS)] = fareTable[(short)(FARE_PASS_TRIPS + passTypeLocal - 1)];
+        Util.setShort(newState, (short)(passOffset + PASS_EXPIRY), expiry);
+        
+        // Return the price of the pass from the fare table.
+        return Util.getShort(fareTable, (short)(FARE_PASS_PRICES + (passTypeLocal - 1) * 2));
+    }
+    
+    
+    
+    private short getPassOffset (byte meansOfTransport)
+    {
+        // Make sure there is a pass for the means of transport.
+        if (meansOfTransport < PASS_TYPE_BUS || meansOfTransport > NUMBER_OF_MEANS_OF_TRANSPORT)
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        
+        return (short)(STATE_PASSES + (meansOfTransport - 1) * PASS_SIZE);
+    }
+    
+    
+    
+    private boolean takePassTrip (short passOffset, short date)
+    {
+        // Make sure the pass has trips left.
+        if (newState[(short)(passOffset + PASS_TRIPS)] <= 0)
+            return false;
+        
+        // If the gate supplied the date, make sure the pass hasn't expired (an expired pass is dropped, so a new one can be bought).
+        short expiry = Util.getShort(newState, (short)(passOffset + PASS_EXPIRY));
         
-        // Pass Type - Bus
-        if (passTypeLocal == PASS_TYPE_BUS)
+        if (expiry != 0 && date != 0 && date > expiry)
         {
-            passPrice = BUS_PASS_PRICE;
-            passNumberOfTrips = BUS_PASS_NUMBER_OF_TRIPS;
+            newState[(short)(passOffset + PASS_TRIPS)] = 0;
+            return false;
         }
         
-        // Pass Type - Tram
-        else if (passTypeLocal == PASS_TYPE_TRAM)
+        newState[(short)(passOffset + PASS_TRIPS)]--;
+        return true;
+    }
+    
+    
+    
+    // Wallet state
+    
+    private void beginUpdate ()
+    {
+        // Build the new state in RAM, starting from the current one.
+        Util.arrayCopyNonAtomic(walletState, (short)0, newState, (short)0, STATE_SIZE);
+    }
+    
+    
+    
+    private void commitUpdate (byte type, byte meansOfTransport, short amount)
+    {
+        short sequence = (short)(Util.getShort(newState, STATE_JOURNAL_SEQUENCE) + 1);
+        
+        // Build the journal entry in RAM.
+        Util.setShort(journalEntry, (short)0, sequence);
+        journalEntry[2] = type;
+        journalEntry[3] = meansOfTransport;
+        Util.setShort(journalEntry, (short)4, amount);
+        Util.arrayCopyNonAtomic(newState, STATE_BALANCE, journalEntry, (short)6, (short)2);
+        
+        // Write it in the slot after the last entry, which is never read, so this write needs no transaction.
+        Util.arrayCopyNonAtomic(journalEntry, (short)0, journal, getJournalOffset(sequence), JOURNAL_ENTRY_SIZE);
+        
+        // Fares paid in RON earn loyalty points, added to the new state in RAM so they cost no write of their own.
+        if (type == JOURNAL_DEBIT || type == JOURNAL_TAP || type == JOURNAL_PASS)
+            addLoyaltyPoints((short)(amount * LOYALTY_POINTS_EARNED_PER_RON));
+        
+        // Replace the whole state with a single atomic copy: if the card is torn away, either all of it or none of it
+        // (including the new journal entry) is there.
+        Util.setShort(newState, STATE_JOURNAL_SEQUENCE, sequence);
+        Util.arrayCopy(newState, (short)0, walletState, (short)0, STATE_SIZE);
+        
+        countStat(STATS_PERSISTENT_WRITES);
+    }
+    
+    
+    
+    // Fare capping
+    
+    private short applyFareCap (short price, short date, short month)
+    {
+        // Start a new spend when the day or the month changed.
+        if (Util.getShort(newState, STATE_CAP_DAY) != date)
         {
-        	passPrice  = TRAM_PASS_PRICE;
-            passNumberOfTrips = TRAM_PASS_NUMBER_OF_TRIPS;
+            Util.setShort(newState, STATE_CAP_DAY, date);
+            Util.setShort(newState, STATE_DAY_SPEND, (short)0);
         }
         
-        // Pass Type - Something Else
-        else
+        if (Util.getShort(newState, STATE_CAP_MONTH) != month)
         {
-            ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-            return;
+            Util.setShort(newState, STATE_CAP_MONTH, month);
+            Util.setShort(newState, STATE_MONTH_SPEND, (short)0);
         }
-
-        // Make sure there is enough money to pay for the pass.
-        if (balanceRON < passPrice)
+        
+        short daySpend = Util.getShort(newState, STATE_DAY_SPEND);
+        short monthSpend = Util.getShort(newState, STATE_MONTH_SPEND);
+        
+        // Pay only what is left under each cap (once a cap is reached, the fares are free).
+        price = getCappedPrice(price, daySpend, Util.getShort(fareTable, FARE_DAILY_CAP));
+        price = getCappedPrice(price, monthSpend, Util.getShort(fareTable, FARE_MONTHLY_CAP));
+        
+        // Add the price to both spends, stopping at the largest short.
+        Util.setShort(newState, STATE_DAY_SPEND, addSpend(daySpend, price));
+        Util.setShort(newState, STATE_MONTH_SPEND, addSpend(monthSpend, price));
+        
+        return price;
+    }
+    
+    
+    
+    private short getCappedPrice (short price, short spend, short cap)
+    {
+        // No cap.
+        if (cap == 0)
+            return price;
+        
+        // The cap was already reached.
+        if (spend >= cap)
+            return 0;
+        
+        return (price < (short)(cap - spend)) ? price : (short)(cap - spend);
+    }
+    
+    
+    
+    private short addSpend (short spend, short price)
+    {
+        short total = (short)(spend + price);
+        
+        return (total < 0) ? Short.MAX_VALUE : total;
+    }
+    
+    
+    
+    private short getMonthNumber (short date)
+    {
+        // Validate the date.
+        if (date < 1)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        
+        // Count the whole 4-year cycles since 1 January 2000.
+        short days = (short)(date - 1);
+        short year = (short)((days / DAYS_IN_4_YEARS) * 4);
+        days = (short)(days % DAYS_IN_4_YEARS);
+        
+        // The first year of a cycle is a leap year; take its 29th of February out.
+        if (days >= 366)
+        {
+            days -= 366;
+            year += (short)(1 + days / 365);
+            days = (short)(days % 365);
+        }
+        
+        else if (days >= 60)
+            days--;
+        
+        else if (days == 59)
+            return (short)(year * 12 + 1);
+        
+        // Find the month (at most 11 steps).
+        short month = 0;
+        
+        while (month < 11 && days >= DAYS_BEFORE_MONTH[(short)(month + 1)])
+            month++;
+        
+        return (short)(year * 12 + month);
+    }
+    
+    
+    
+    // Loyalty points
+    
+    private void addLoyaltyPoints (short points)
+    {
+        short loyaltyPoints = (short)(Util.getShort(newState, STATE_LOYALTY_POINTS) + points);
+        
+        // Keep the balance under the maximum number of loyalty points.
+        if (loyaltyPoints > MAX_LOYALTY_POINTS || loyaltyPoints < 0)
+            loyaltyPoints = (short) MAX_LOYALTY_POINTS;
+        
+        Util.setShort(newState, STATE_LOYALTY_POINTS, loyaltyPoints);
+    }
+    
+    
+    
+    private void redeemPoints (APDU apdu)
+    {
+        // Validate the PIN number.
+        if (!pin.isValidated())
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        
+        // Get the means of transport (1 - bus, 2 - tram) and the fare type (1 - morning, 2 - weekend, otherwise full price).
+        byte[] apduBuffer = apdu.getBuffer();
+        byte meansOfTransport = apduBuffer[ISO7816.OFFSET_P1];
+        byte fareType = apduBuffer[ISO7816.OFFSET_P2];
+        
+        // Make sure the number of tickets is exactly one byte.
+        if (apdu.setIncomingAndReceive() != 1)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        byte numberOfTickets = apduBuffer[ISO7816.OFFSET_CDATA];
+        
+        // Make sure you don't try to buy less than 1 ticket or more than 20.
+        if (numberOfTickets < 1 || numberOfTickets > 20)
+            ISOException.throwIt(SW_TOO_MANY_TICKETS);
+        
+        // Compute the price in points (a price above the maximum balance can never be paid, so it isn't computed exactly).
+        short unitPrice = getUnitPrice(meansOfTransport, fareType);
+        short points = (short)(MAX_LOYALTY_POINTS + 1);
+        
+        if (unitPrice <= (short)(MAX_LOYALTY_POINTS / (LOYALTY_POINTS_SPENT_PER_RON * numberOfTickets)))
+            points = (short)(unitPrice * numberOfTickets * LOYALTY_POINTS_SPENT_PER_RON);
+        
+        // Make sure there are enough points for the tickets.
+        beginUpdate();
+        short loyaltyPoints = Util.getShort(newState, STATE_LOYALTY_POINTS);
+        
+        if (points > loyaltyPoints)
             ISOException.throwIt(SW_NEGATIVE_BALANCE);
-
-        // Update the balance.
-        balanceRON -= passPrice;
         
-        // Set the pass type.
-        passType = passTypeLocal;
+        Util.setShort(newState, STATE_LOYALTY_POINTS, (short)(loyaltyPoints - points));
+        
+        commitUpdate(JOURNAL_REDEEM, meansOfTransport, points);
+        
+        // Send the remaining loyalty points.
+        Util.arrayCopyNonAtomic(walletState, STATE_LOYALTY_POINTS, apduBuffer, (short)0, (short)2);
+        apdu.setOutgoingAndSend((short)0, (short)2);
+    }
+    
+    
+    
+    // Transaction journal
+    
+    private short getJournalOffset (short sequence)
+    {
+        return (short)((sequence & (JOURNAL_ENTRIES - 1)) * JOURNAL_ENTRY_SIZE);
+    }
+    
+    
+    
+    private void readJournal (APDU apdu)
+    {
+        // Validate the PIN number.
+        if (!pin.isValidated())
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        
+        // Get the last sequence number the terminal already has.
+        byte[] apduBuffer = apdu.getBuffer();
+        
+        sendJournal(apdu, Util.getShort(apduBuffer, ISO7816.OFFSET_P1));
+    }
+    
+    
+    
+    private void getResponse (APDU apdu)
+    {
+        // Make sure there are entries left to read.
+        if (journalRead[0] == 0)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        
+        sendJournal(apdu, journalRead[1]);
+    }
+    
+    
+    
+    private void sendJournal (APDU apdu, short lastSequence)
+    {
+        // Count the entries after the given sequence number (sequence numbers wrap around, so compare the difference).
+        short journalSequence = Util.getShort(walletState, STATE_JOURNAL_SEQUENCE);
+        short count = (short)(journalSequence - lastSequence);
+        
+        if (count < 0)
+            count = 0;
+        
+        // Older entries were overwritten (the oldest slot is kept free for the next entry).
+        if (count > (short)(JOURNAL_ENTRIES - 1))
+            count = (short)(JOURNAL_ENTRIES - 1);
+        
+        // Send as many whole entries as the terminal expects.
+        short expectedNumberOfEntries = (short)(apdu.setOutgoing() / JOURNAL_ENTRY_SIZE);
+        short numberOfEntries = (count < expectedNumberOfEntries) ? count : expectedNumberOfEntries;
+        
+        apdu.setOutgoingLength((short)(numberOfEntries * JOURNAL_ENTRY_SIZE));
+        
+        // Send the entries from the oldest to the newest.
+        short sequence = (short)(journalSequence - count);
+        
+        for (short index = 0; index < numberOfEntries; index++)
+        {
+            sequence++;
+            apdu.sendBytesLong(journal, getJournalOffset(sequence), JOURNAL_ENTRY_SIZE);
+        }
+        
+        count -= numberOfEntries;
+        
+        // If there is nothing left, the read is done.
+        if (count == 0)
+        {
+            journalRead[0] = 0;
+            return;
+        }
+        
+        // Otherwise, remember the last entry sent and tell how many bytes are left.
+        journalRead[0] = 1;
+        journalRead[1] = sequence;
+        
+        ISOException.throwIt((short)(ISO7816.SW_BYTES_REMAINING_00 | (count * JOURNAL_ENTRY_SIZE)));
+    }
+    
+    
+    
+    // Usage statistics
+    
+    private short getStats (byte[] output, short outputOffset, short outputLength)
+    {
+        // Response: PIN failures (4 bytes), persistent writes (4 bytes), then the counters that are not 0:
+        // number of INS, then for each: INS (0xFF - any other INS), commands (4 bytes),
+        // number of status words, then for each: status word (0x0000 - any other), rejected commands (4 bytes).
+        // Returns the length of the statistics (at most STATS_MAXIMUM_OUTPUT bytes).
+        if (outputLength < STATS_MAXIMUM_OUTPUT)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        putStat(output, outputOffset, STATS_PIN_FAILURES);
+        putStat(output, (short)(outputOffset + STATS_COUNTER_SIZE), STATS_PERSISTENT_WRITES);
+        
+        short length = (short)(outputOffset + 2 * STATS_COUNTER_SIZE);
+        
+        // Add the commands of each INS.
+        short countOffset = length++;
+        output[countOffset] = 0;
+        
+        for (short index = 0; index <= STATS_INS_COUNTED; index++)
+        {
+            output[length] = (index < STATS_INS_COUNTED) ? STATS_INS[index] : STATS_OTHER_INS;
+            
+            if (putStat(output, (short)(length + 1), (short)(STATS_INS_COUNTERS + index)))
+            {
+                length += 1 + STATS_COUNTER_SIZE;
+                output[countOffset]++;
+            }
+        }
+        
+        // Add the rejected commands of each status word.
+        countOffset = length++;
+        output[countOffset] = 0;
+        
+        for (short slot = 0; slot < STATS_SW_SLOTS; slot++)
+        {
+            Util.setShort(output, length, getStatusWord(slot));
+            
+            if (putStat(output, (short)(length + 2), (short)(STATS_COUNTERS + slot)))
+            {
+                length += STATS_SW_SLOT_SIZE;
+                output[countOffset]++;
+            }
+        }
+        
+        return (short)(length - outputOffset);
+    }
+    
+    
+    
+    private boolean putStat (byte[] buffer, short offset, short index)
+    {
+        // Copy the total (the counter in EEPROM and the count not added yet); return true if it is not 0.
+        Util.arrayCopyNonAtomic(stats, getStatsOffset(index), buffer, offset, STATS_COUNTER_SIZE);
+        addToCounter(buffer, offset, statsDelta[(short)(index + 1)]);
+        
+        return Util.getShort(buffer, offset) != 0 || Util.getShort(buffer, (short)(offset + 2)) != 0;
+    }
+    
+    
+    
+    private void countStat (short counter)
+    {
+        statsDelta[(short)(counter + 1)]++;
+    }
+    
+    
+    
+    private void countCommand (byte ins)
+    {
+        // Find the counter of the INS (the last one for any other INS).
+        short counter = STATS_OTHER_INS_COUNTER;
+        
+        for (short index = 0; index < STATS_INS_COUNTED; index++)
+        {
+            if (STATS_INS[index] == ins)
+            {
+                counter = (short)(STATS_INS_COUNTERS + index);
+                break;
+            }
+        }
+        
+        countStat(counter);
+        
+        // Add the counts to EEPROM every few commands.
+        if (++statsDelta[0] >= STATS_FLUSH_INTERVAL)
+            flushStats();
+    }
+    
+    
+    
+    private void countRejected (short statusWord)
+    {
+        // A 61xx status word only tells there is more to read.
+        if ((short)(statusWord & (short)0xFF00) == ISO7816.SW_BYTES_REMAINING_00)
+            return;
+        
+        // Find the slot of the status word, or give it a free one (in RAM until the counts are added to EEPROM).
+        short slot = 0;
+        
+        for (; slot < (short)(STATS_SW_SLOTS - 1); slot++)
+        {
+            short slotStatusWord = getStatusWord(slot);
+            
+            if (slotStatusWord == statusWord)
+                break;
+            
+            if (slotStatusWord == 0)
+            {
+                statsDelta[(short)(STATS_DELTA_STATUS_WORDS + slot)] = statusWord;
+                break;
+            }
+        }
+        
+        statsDelta[(short)(1 + STATS_COUNTERS + slot)]++;
+    }
+    
+    
+    
+    private short getStatusWord (short slot)
+    {
+        // The status word of the slot is saved in EEPROM, or given in RAM since the last time (0 - free slot).
+        short statusWord = Util.getShort(stats, (short)(STATS_SW_OFFSET + slot * STATS_SW_SLOT_SIZE));
+        
+        if (statusWord == 0)
+            statusWord = statsDelta[(short)(STATS_DELTA_STATUS_WORDS + slot)];
+        
+        return statusWord;
+    }
+    
+    
+    
+    private void flushStats ()
+    {
+        // Save the status words given to free slots before their counts, so a count is never saved in a free slot.
+        for (short slot = 0; slot < STATS_SW_SLOTS; slot++)
+        {
+            short statusWord = statsDelta[(short)(STATS_DELTA_STATUS_WORDS + slot)];
+            
+            if (statusWord != 0)
+            {
+                Util.setShort(statsCounter, (short)0, statusWord);
+                Util.arrayCopy(statsCounter, (short)0, stats, (short)(STATS_SW_OFFSET + slot * STATS_SW_SLOT_SIZE), (short)2);
+                statsDelta[(short)(STATS_DELTA_STATUS_WORDS + slot)] = 0;
+            }
+        }
+        
+        // Add the counts in RAM and write each counter at once (a torn card loses at most the counts since the last time,
+        // never half a counter).
+        for (short index = 0; index < (short)(STATS_COUNTERS + STATS_SW_SLOTS); index++)
+        {
+            short count = statsDelta[(short)(index + 1)];
+            
+            if (count != 0)
+            {
+                short offset = getStatsOffset(index);
+                
+                Util.arrayCopyNonAtomic(stats, offset, statsCounter, (short)0, STATS_COUNTER_SIZE);
+                addToCounter(statsCounter, (short)0, count);
+                Util.arrayCopy(statsCounter, (short)0, stats, offset, STATS_COUNTER_SIZE);
+                statsDelta[(short)(index + 1)] = 0;
+            }
+        }
+        
+        statsDelta[0] = 0;
+    }
+    
+    
+    
+    private short getStatsOffset (short index)
+    {
+        // The counters come first, then the counters of the status words (after the status word of their slot).
+        if (index < STATS_COUNTERS)
+            return (short)(index * STATS_COUNTER_SIZE);
+        
+        return (short)(STATS_SW_OFFSET + (short)(index - STATS_COUNTERS) * STATS_SW_SLOT_SIZE + 2);
+    }
+    
+    
+    
+    private static void addToCounter (byte[] buffer, short offset, short count)
+    {
+        // Add to the counter of 4 bytes (unsigned; it stops at 0xFFFFFFFF).
+        if (count == 0)
+            return;
+        
+        short high = Util.getShort(buffer, offset);
+        short low = Util.getShort(buffer, (short)(offset + 2));
+        short sum = (short)(low + count);
+        
+        // Carry to the high half when the low half goes past 0xFFFF (compared as unsigned).
+        if ((short)(sum ^ (short)0x8000) < (short)(low ^ (short)0x8000))
+        {
+            if (high == (short)0xFFFF)
+                sum = (short)0xFFFF;
+            else
+                high++;
+        }
         
-        // Update the remaining number of trips.
-        passRemainingNumberOfTrips = passNumberOfTrips;
+        Util.setShort(buffer, offset, high);
+        Util.setShort(buffer, (short)(offset + 2), sum);
     }
     
     
@@ -2,29 +2,39 @@ package health;
 
 import javacard.framework.*;
 import javacard.security.*;
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.*;
 
 
 
-public class Health extends Applet
+public class Health extends Applet implements ExtendedLength
 {
     // Define the code for the class of instructions.
     final static byte CLA_HEALTH 					= (byte) 0x80;		// code =   128
+    final static byte CLA_HEALTH_SECURE				= (byte) 0x84;		// code =   132
     
     
     // Define the codes for the instructions.
+    final static  byte INS_OPEN_SESSION				= (byte) 0x10;		// code =    16
     final static  byte INS_VERIFY 					= (byte) 0x20;		// code =    32
     final static  byte INS_UPDATE_PIN       		= (byte) 0x24;		// code =    36
     final static  byte INS_GET_PATIENT_DATA			= (byte) 0x30;		// code =    48
+    final static  byte INS_GET_EMERGENCY_DATA		= (byte) 0x32;		// code =    50
     final static  byte INS_SET_PATIENT_DATA			= (byte) 0x40;		// code =    64
     final static  byte INS_SET_CONSULT_DATA			= (byte) 0x50;		// code =    80
+    final static  byte INS_CHECK_CONSULTS			= (byte) 0x52;		// code =    82
+    final static  byte INS_GET_STATS				= (byte) 0x5C;		// code =    92
     final static  byte INS_SET_MED_VACATION			= (byte) 0x60;		// code =    96
+    final static  byte INS_BATCH					= (byte) 0x70;		// code =   112
+    final static  byte INS_COMMIT					= (byte) 0x7A;		// code =   122
+    final static  byte INS_GET_RESPONSE				= (byte) 0xC0;		// code =   192
 
     
     // Define the codes for the possible errors.
     final static short SW_VERIFICATION_FAILED 		= 		 0x6300;	// code = 25344
     final static short SW_NOT_ENOUGH_DATA     		= 		 0x6A80;	// code = 27264
     final static short SW_CONDITIONS_NOT_SATISFIED	= 		 0x6985;	// code = 27013
+    final static short SW_SECURE_DATA_INCORRECT		= 		 0x6988;	// code = 27016
 
     
     // Define the limits for the PIN of the user.
@@ -32,9 +42,149 @@ public class Health extends Applet
     final static  byte PIN_MAXIMUM_SIZE  			= (byte) 0x08;		// code = 	  8
 
     
+    // Define the limits for the batched commands.
+    // Each sub-command has the header INS, P1, P2, Lc followed by Lc bytes of data.
+    // Each result has the header SW1, SW2, Lr followed by Lr bytes of output.
+    final static short BATCH_HEADER_SIZE			= 			4;
+    final static short BATCH_RESULT_HEADER_SIZE		= 			3;
+    final static short BATCH_RESPONSE_SIZE			= 		  255;
+
+    
+    // Define the limits for the history of consults.
+    final static short CONSULT_ENTRY_SIZE			= 			5;
+    final static  byte CONSULT_LOG_DEFAULT_CAPACITY	= (byte) 0x03;		// code = 	  3
+    final static  byte CONSULT_LOG_MAXIMUM_CAPACITY	= (byte) 0x64;		// code = 	100
+    final static short CONSULT_INDEX_SIZE			= 		   32;
+    
+    
+    // Define the limits for the dates (years since 2000); the day number of 31/12/2088 (32508) is the last that fits in a short.
+    final static  byte MAXIMUM_YEAR					= (byte) 0x58;		// code = 	 88
+    
+    
+    // Define the limits for the history of medical vacations and the days of vacation counted per month.
+    final static short VACATION_ENTRY_SIZE			= 			4;
+    final static short VACATION_LOG_SIZE			= 		   32;		// 8 vacations
+    final static short VACATION_MONTH_SIZE			= 			3;
+    final static short VACATION_MONTHS_SIZE			= 		   36;		// 12 months
+    final static  byte VACATION_MONTHS				= (byte) 0x0C;		// code = 	 12
+    final static  byte VACATION_DAYS_PER_MONTH		= (byte) 0x0A;		// code = 	 10
+    
+    
+    // Define the usage statistics (GET STATS): counters of 4 bytes, counted in RAM and added to EEPROM every few commands.
+    // Counters: PIN failures, persistent writes, then the commands of each INS in STATS_INS and of any other INS.
+    final static  byte[] STATS_INS = {INS_OPEN_SESSION, INS_VERIFY, INS_UPDATE_PIN, INS_GET_PATIENT_DATA, INS_GET_EMERGENCY_DATA,
+            INS_SET_PATIENT_DATA, INS_SET_CONSULT_DATA, INS_CHECK_CONSULTS, INS_SET_MED_VACATION, INS_BATCH, INS_COMMIT,
+            INS_GET_STATS, INS_GET_RESPONSE};
+    final static  byte STATS_OTHER_INS				= (byte) 0xFF;		// code =   255
+    final static short STATS_INS_COUNTED			= 		   13;		// STATS_INS.length
+    final static short STATS_PIN_FAILURES			= 			0;
+    final static short STATS_PERSISTENT_WRITES		= 			1;
+    final static short STATS_INS_COUNTERS			= 			2;
+    final static short STATS_OTHER_INS_COUNTER		= STATS_INS_COUNTERS + STATS_INS_COUNTED;
+    final static short STATS_COUNTERS				= STATS_OTHER_INS_COUNTER + 1;
+    final static short STATS_COUNTER_SIZE			= 			4;
+    final static short STATS_SW_OFFSET				= STATS_COUNTERS * STATS_COUNTER_SIZE;
+    final static short STATS_SW_SLOT_SIZE			= 2 + STATS_COUNTER_SIZE;		// status word and its counter
+    final static short STATS_SW_SLOTS				= 			8;		// the last slot counts the status words that found no slot
+    final static short STATS_SIZE					= STATS_SW_OFFSET + STATS_SW_SLOTS * STATS_SW_SLOT_SIZE;
+    final static short STATS_MAXIMUM_OUTPUT			= 2 * STATS_COUNTER_SIZE + 1 + (STATS_INS_COUNTED + 1) * (1 + STATS_COUNTER_SIZE) + 1 + STATS_SW_SLOTS * STATS_SW_SLOT_SIZE;
+    final static short STATS_DELTA_STATUS_WORDS		= 1 + STATS_COUNTERS + STATS_SW_SLOTS;
+    final static short STATS_DELTA_SIZE				= STATS_DELTA_STATUS_WORDS + STATS_SW_SLOTS;
+    final static short STATS_FLUSH_INTERVAL			= 		   16;
+    
+    
+    // Define the number of days before each month of a year that is not a leap year.
+    final static short[] DAYS_BEFORE_MONTH = {0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334, 365};
+    
+    
+    // Define the positions in the state of the record.
+    final static  byte RECORD_CONSULT_HEAD			= (byte) 0x00;
+    final static  byte RECORD_INDEX_MONTH			= (byte) 0x01;
+    final static  byte RECORD_VACATION_HEAD			= (byte) 0x02;
+    final static short RECORD_STATE_SIZE			= 			3;
+    
+    
+    // Define the install options (the byte after the capacity of the history of consults).
+    // With the working copy, the record is edited in RAM and saved to EEPROM in one transaction on COMMIT or on deselect.
+    final static  byte OPTION_WORKING_COPY			= (byte) 0x01;		// code = 	  1
+    final static  byte WORKING_COPY_MAXIMUM_CAPACITY	= (byte) 0x10;		// code = 	 16
+
+    
+    // Define the fields that can be selected when getting the data of the patient (P1 = 0x80, P2 = mask).
+    final static  byte READ_BY_FIELDS				= (byte) 0x80;		// code =   128
+    final static  byte FIELD_BIRTHDATE				= (byte) 0x01;		// code = 	  1
+    final static  byte FIELD_BLOOD					= (byte) 0x02;		// code = 	  2
+    final static  byte FIELD_CHRONIC				= (byte) 0x04;		// code = 	  4
+    final static  byte FIELD_DONOR					= (byte) 0x08;		// code = 	  8
+    final static  byte FIELD_CONSULTS				= (byte) 0x10;		// code = 	 16
+    final static  byte FIELD_VACATION				= (byte) 0x20;		// code = 	 32
+    final static  byte FIELD_ALL					= (byte) 0x3F;		// code = 	 63
+    
+    
+    // Define the limits for the emergency data (blood group, Rh factor, chronic diagnosis, chronic specialty, donor code).
+    final static short EMERGENCY_DATA_OFFSET		= 			3;
+    final static short EMERGENCY_DATA_SIZE			= 			5;
+    final static short EMERGENCY_CHALLENGE_SIZE		= 		   16;
+    
+    
+    // Define the label of the key of the emergency signature: the key is this label encrypted with the installed key (AES,
+    // IV = 0), so the PIN key never signs a challenge and the terminals that check the signature don't need the PIN key.
+    final static  byte[] EMERGENCY_KEY_LABEL = {'H', 'E', 'A', 'L', 'T', 'H', ' ', 'E', 'M', 'E', 'R', 'G', 'E', 'N', 'C', 'Y'};
+    
+    
+    // Define the limits for the secure messaging.
+    // A secure command has the data encrypted (padded with 0x80 0x00 ...) followed by a MAC of 16 bytes.
+    // The encryption is chained over the whole session, so the ciphers are initialized only once per session.
+    final static short SECURE_BLOCK_SIZE			= 		   16;
+    final static short SECURE_MAXIMUM_OUTPUT		= 		  223;
+    final static  byte SESSION_OPEN					= (byte) 0x00;
+    final static  byte SESSION_COUNTER				= (byte) 0x01;
+    
+    
+    // Define the positions in the state of a read that is continued with GET RESPONSE.
+    final static  byte READ_FIELDS					= (byte) 0x00;
+    final static  byte READ_START					= (byte) 0x01;
+
+    
     // Declare the cryptography variables.
     private AESKey aesKey;
     private Cipher aesCipher;
+    private AESKey emergencyKey;
+    private Signature emergencySignature;
+    private RandomData random;
+    
+    
+    // Declare the session keys and the ciphers of the secure messaging (cleared on deselect).
+    private AESKey sessionEncryptionKey;
+    private AESKey sessionMacKey;
+    private Cipher sessionEncryptCipher;
+    private Cipher sessionDecryptCipher;
+    private Signature sessionSignature;
+    
+    
+    // Declare the state of the session (cleared on deselect).
+    // Layout:
+    // 		-  [0] - session open (0 = no, 1 = yes)
+    // 		-  [1] - counter of the secure commands
+    private short[] sessionState;
+    
+    
+    // Declare the block that is signed before the data of a secure command or response (cleared on deselect).
+    private byte[] sessionHeader;
+    
+    // Declare the buffer for the decrypted PIN (cleared on deselect).
+    private byte[] pinBuffer;
+    
+    
+    // Declare the buffer for the results of a batch (cleared on deselect).
+    private byte[] batchResponse;
+    
+    
+    // Declare the state of a read that is continued with GET RESPONSE (cleared on deselect).
+    // Layout:
+    // 		-  [0] - selected fields (0 = nothing left to read)
+    // 		-  [1] - offset of the next byte to read
+    private short[] readState;
     
     
     // Declare the PIN of the user.
@@ -51,43 +201,99 @@ public class Health extends Applet
     // 		-  [5] - chronic diagnosis code
     // 		-  [6] - chronic specialty code
     // 		-  [7] - donor code (0 = no, 1 = yes)
-    //   	-  [8] – consult 1 - diagnosis code
-    //   	-  [9] – consult 1 - specialty code
-    //  	- [10] – consult 1 - date - day
-    //  	- [11] – consult 1 - date - month
-    //  	- [12] – consult 1 - date - year
-    //  	- [13] – consult 2 - diagnosis code
-    //  	- [14] – consult 2 - specialty code
-    //  	- [15] – consult 2 - date - day
-    //  	- [16] – consult 2 - date - month
-    //  	- [17] – consult 2 - date - year
-    //  	- [18] – consult 3 - diagnosis code
-    //  	- [19] – consult 3 - specialty code
-    //  	- [20] – consult 3 - date - day
-    //  	- [21] – consult 3 - date - month
-    //  	- [22] – consult 3 - date - year
-    //  	- [23] – last medical vacation - start date - day
-    //  	- [24] – last medical vacation - start date - month
-    //  	- [25] – last medical vacation - start date - year
-    //  	- [26] – last medical vacation - end date - day
-    // 		- [27] – last medical vacation - end date - month
-    //  	- [28] – last medical vacation - end date - year
     private byte[] patientData;
 
     
+    // Declare the history of consults, kept as a circular log of entries.
+    // Layout of an entry:
+    // 		-  [0] - diagnosis code
+    // 		-  [1] - specialty code
+    // 		-  [2] - date - day
+    // 		-  [3] - date - month
+    // 		-  [4] - date - year
+    private byte[] consultLog;
+    
+    
+    // Declare the index of the specialties consulted in the most recent month (one bit per specialty code).
+    private byte[] consultIndex;
+    
+    
+    // Declare the history of medical vacations, kept as a circular log of entries.
+    // Layout of an entry:
+    // 		-  [0] - start date - day number (2 bytes)
+    // 		-  [2] - end date - day number (2 bytes)
+    // A day number counts the days from 01/01/2000 (day 1); 0 means no vacation.
+    private byte[] vacationLog;
+    
+    
+    // Declare the days of medical vacation counted for the last months, one slot per month of the year.
+    // Layout of a slot:
+    // 		-  [0] - month (year * 12 + month, 2 bytes); a slot for another month counts 0 days
+    // 		-  [2] - days of medical vacation in the month
+    private byte[] vacationMonths;
+    
+    
+    // Declare the state of the record.
+    // Layout:
+    // 		-  [0] - offset of the oldest entry in the history of consults (the next one to be overwritten)
+    // 		-  [1] - month covered by the index of the specialties (year * 12 + month)
+    // 		-  [2] - offset of the oldest entry in the history of medical vacations
+    private short[] recordState;
+    
+    
+    // With the working copy, the arrays above are transient and the record is saved here.
+    // Layout: data of the patient, index of the specialties, history of medical vacations, days of vacation per month,
+    //         state of the record (2 bytes each), history of consults.
+    private boolean workingCopy;
+    private byte[] savedRecord;
+    
+    
+    // Declare if the working copy was changed since it was loaded or saved (cleared on deselect).
+    private boolean[] workingCopyChanged;
+    
+    
+    // Declare the usage statistics saved in EEPROM.
+    // Layout:
+    // 		-                [0] - counters (STATS_COUNTERS, 4 bytes each, unsigned, stopping at 0xFFFFFFFF)
+    // 		-  [STATS_SW_OFFSET] - status words of the rejected commands (STATS_SW_SLOTS, status word of the slot (0 = free) and its counter)
+    private byte[] stats;
+    
+    
+    // Declare the counts not added to EEPROM yet (cleared on deselect, after they are added).
+    // Layout:
+    // 		-                         [0] - commands since the counts were last added to EEPROM
+    // 		-                         [1] - counts of the counters (STATS_COUNTERS)
+    // 		-      [1 + STATS_COUNTERS] - counts of the status words (STATS_SW_SLOTS)
+    // 		- [STATS_DELTA_STATUS_WORDS] - status words given to the free slots (STATS_SW_SLOTS, 0 = none), saved with the counts
+    private short[] statsDelta;
+
+    // Counter built in RAM before it is copied to EEPROM in one atomic write.
+    private byte[] statsCounter;
+
+    
     private Health (byte[] bArray, short bOffset, byte bLength)
     {
         // Initialize the PIN of the user.
         pin = new OwnerPIN(PIN_MAXIMUM_NUMBER_OF_TRIES, PIN_MAXIMUM_SIZE);
         
-        // Get the size of the PIN of the user.
-        byte pinLength = bArray[(short)(bOffset)];
+        // Skip the AID and the control information, to the data of the applet.
+        // Layout of the data: size of the PIN, PIN, AES key (16 bytes), then optionally the capacity of the history of consults and the options.
+        short dataOffset = (short)(bOffset + 1 + bArray[bOffset]);
+        dataOffset = (short)(dataOffset + 1 + bArray[dataOffset]);
+        short dataEnd = (short)(dataOffset + 1 + bArray[dataOffset]);
+        dataOffset++;
+        
+        // Get the size of the PIN of the user, and make sure the AES key follows it.
+        byte pinLength = bArray[dataOffset];
+        
+        if ((short)(dataOffset + 1 + pinLength + 16) > dataEnd)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
         // Set the PIN of the user.
-        pin.update(bArray, (short)(bOffset + 1), pinLength);
+        pin.update(bArray, (short)(dataOffset + 1), pinLength);
         
         // Get the offset of the AES key.
-        short aesKeyOffset = (short)(bOffset + 1 + pinLength);
+        short aesKeyOffset = (short)(dataOffset + 1 + pinLength);
         
         // Create the AES key.
         aesKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
@@ -97,9 +303,100 @@ public class Health extends Applet
         
         // Set the AES cipher.
         aesCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        
+        // Set the AES MAC for the emergency data.
+        emergencySignature = Signature.getInstance(Signature.ALG_AES_MAC_128_NOPAD, false);
+        emergencyKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+        
+        // Set the generator for the randoms of the sessions.
+        random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+        
+        // Create the session keys, the ciphers and the AES MAC of the secure messaging.
+        sessionEncryptionKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+        sessionMacKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+        sessionEncryptCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        sessionDecryptCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        sessionSignature = Signature.getInstance(Signature.ALG_AES_MAC_128_NOPAD, false);
+        
+        // Create the state of the session.
+        sessionState = JCSystem.makeTransientShortArray((short)2, JCSystem.CLEAR_ON_DESELECT);
+        sessionHeader = JCSystem.makeTransientByteArray(SECURE_BLOCK_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        
+        // Create the buffer for the decrypted PIN.
+        pinBuffer = JCSystem.makeTransientByteArray((short)16, JCSystem.CLEAR_ON_DESELECT);
+        
+        // Derive the key of the emergency signature from the installed key (in the PIN buffer, cleared right after).
+        aesCipher.init(aesKey, Cipher.MODE_ENCRYPT);
+        aesCipher.doFinal(EMERGENCY_KEY_LABEL, (short)0, (short)16, pinBuffer, (short)0);
+        emergencyKey.setKey(pinBuffer, (short)0);
+        Util.arrayFillNonAtomic(pinBuffer, (short)0, (short)16, (byte)0);
+        
+        // Create the buffer for the results of a batch.
+        batchResponse = JCSystem.makeTransientByteArray(BATCH_RESPONSE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        
+        // Create the state of a read that is continued with GET RESPONSE.
+        readState = JCSystem.makeTransientShortArray((short)2, JCSystem.CLEAR_ON_DESELECT);
+        
+        // Create the usage statistics, after making sure STATS_INS_COUNTED (the layout) matches the counted instructions.
+        if (STATS_INS.length != STATS_INS_COUNTED)
+        	ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        
+        stats = new byte[STATS_SIZE];
+        statsDelta = JCSystem.makeTransientShortArray(STATS_DELTA_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        statsCounter = JCSystem.makeTransientByteArray(STATS_COUNTER_SIZE, JCSystem.CLEAR_ON_DESELECT);
 
-        // Declare the data of the patient.
-        patientData = new byte[29];
+        // Get the capacity of the history of consults and the options, if they were given after the AES key.
+        short capacityOffset = (short)(aesKeyOffset + 16);
+        byte consultLogCapacity = CONSULT_LOG_DEFAULT_CAPACITY;
+        byte options = 0;
+        
+        if (capacityOffset < dataEnd)
+        	consultLogCapacity = bArray[capacityOffset];
+        
+        if ((short)(capacityOffset + 1) < dataEnd)
+        	options = bArray[(short)(capacityOffset + 1)];
+        
+        workingCopy = ((options & OPTION_WORKING_COPY) != 0);
+        
+        // Validate the capacity of the history of consults (the working copy must fit in RAM).
+        if (consultLogCapacity < 1 || consultLogCapacity > (workingCopy ? WORKING_COPY_MAXIMUM_CAPACITY : CONSULT_LOG_MAXIMUM_CAPACITY))
+        	ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        
+        short consultLogLength = (short)(consultLogCapacity * CONSULT_ENTRY_SIZE);
+        
+        if (workingCopy)
+        {
+        	// Declare the working copy of the record.
+            patientData = JCSystem.makeTransientByteArray((short)8, JCSystem.CLEAR_ON_DESELECT);
+            consultLog = JCSystem.makeTransientByteArray(consultLogLength, JCSystem.CLEAR_ON_DESELECT);
+            consultIndex = JCSystem.makeTransientByteArray(CONSULT_INDEX_SIZE, JCSystem.CLEAR_ON_DESELECT);
+            vacationLog = JCSystem.makeTransientByteArray(VACATION_LOG_SIZE, JCSystem.CLEAR_ON_DESELECT);
+            vacationMonths = JCSystem.makeTransientByteArray(VACATION_MONTHS_SIZE, JCSystem.CLEAR_ON_DESELECT);
+            recordState = JCSystem.makeTransientShortArray(RECORD_STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+            workingCopyChanged = JCSystem.makeTransientBooleanArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+            
+            // Declare the saved record.
+            savedRecord = new byte[(short)(8 + CONSULT_INDEX_SIZE + VACATION_LOG_SIZE + VACATION_MONTHS_SIZE + RECORD_STATE_SIZE * 2 + consultLogLength)];
+        }
+        
+        else
+        {
+        	// Declare the data of the patient.
+            patientData = new byte[8];
+            
+            // Declare the history of consults.
+            consultLog = new byte[consultLogLength];
+            
+            // Declare the index of the specialties consulted in the most recent month.
+            consultIndex = new byte[CONSULT_INDEX_SIZE];
+            
+            // Declare the history of medical vacations and the days of vacation per month.
+            vacationLog = new byte[VACATION_LOG_SIZE];
+            vacationMonths = new byte[VACATION_MONTHS_SIZE];
+            
+            // Declare the state of the record.
+            recordState = new short[RECORD_STATE_SIZE];
+        }
 
         // Finalize the applet installation.
         register();
@@ -116,45 +413,102 @@ public class Health extends Applet
     @Override
     public boolean select ()
     {
-    	// Select the applet if the remaining number of tries for the PIN is at least 1.
-        return pin.getTriesRemaining() > 0;
+    	// Prepare the AES MAC for the emergency data once per session.
+        emergencySignature.init(emergencyKey, Signature.MODE_SIGN);
+        
+    	// Load the working copy of the record.
+        if (workingCopy)
+        	loadWorkingCopy();
+        
+    	// Always select the applet, so that the emergency data can be read even if the PIN is blocked.
+    	// A blocked PIN still fails VERIFY, so the other commands stay locked.
+        return true;
     }
 
     
     @Override
     public void deselect ()
     {
+    	// Save the working copy of the record.
+        if (workingCopy)
+        	saveWorkingCopy();
+        
     	// Reset the PIN to deselect the applet.
         pin.reset();
+        
+        // Save the usage statistics of the session.
+        flushStats();
     }
 
     
     @Override
     public void process (APDU apdu)
     {
-    	// Get the APDU buffer.
-        byte[] apduBuffer = apdu.getBuffer();
-        
         // If the given command is to select the applet, the job is done.
         if (selectingApplet())
         	return;
+        
+        // Count the command.
+        countCommand(apdu.getBuffer()[ISO7816.OFFSET_INS]);
+        
+        // Run the command, counting the status word if it is rejected.
+        try
+        {
+            dispatch(apdu);
+        }
+        catch (ISOException e)
+        {
+            countRejected(e.getReason());
+            throw e;
+        }
+    }
+
+    
+    private void dispatch (APDU apdu)
+    {
+    	// Get the APDU buffer.
+        byte[] apduBuffer = apdu.getBuffer();
+        
+        // Once a secure session is open, only the secure commands and GET STATS are accepted, so no data goes in clear
+        // (the session ends with the next SELECT).
+        if (sessionState[SESSION_OPEN] != 0 && apduBuffer[ISO7816.OFFSET_CLA] != CLA_HEALTH_SECURE && apduBuffer[ISO7816.OFFSET_INS] != INS_GET_STATS)
+        	ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        
+        // Continue the previous read, if asked.
+        if (apduBuffer[ISO7816.OFFSET_INS] == INS_GET_RESPONSE)
+        {
+            getResponse(apdu);
+            return;
+        }
+        
+        // Any other command ends the previous read.
+        readState[READ_FIELDS] = 0;
+
+        // Unwrap the secure commands.
+        if (apduBuffer[ISO7816.OFFSET_CLA] == CLA_HEALTH_SECURE)
+        {
+            processSecure(apdu);
+            return;
+        }
 
         // Check is the CLA is the correct one. If not, stop.
         if (apduBuffer[ISO7816.OFFSET_CLA] != CLA_HEALTH)
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
 
+        // Get the code of the instruction.
+        byte ins = apduBuffer[ISO7816.OFFSET_INS];
+        
         // Manage the commands.
-        switch (apduBuffer[ISO7816.OFFSET_INS])
+        switch (ins)
         {
-        	// Validate the PIN of the user.
-            case INS_VERIFY:
-                verify(apdu);
+        	// Start a session for the secure messaging.
+            case INS_OPEN_SESSION:
+                openSession(apdu);
                 break;
                 
-            // Change the PIN of the user.
-            case INS_UPDATE_PIN:
-                requireVerified();
-                updatePin(apdu);
+        	// Run several commands in a single APDU.
+            case INS_BATCH:
+                batch(apdu);
                 break;
                 
             // Get the data of the patient.
@@ -163,297 +517,1356 @@ public class Health extends Applet
                 getPatientData(apdu);
                 break;
                 
+            // Get the emergency data of the patient (no PIN needed).
+            case INS_GET_EMERGENCY_DATA:
+                getEmergencyData(apdu);
+                break;
+                
+            // Get the usage statistics of the card (no PIN needed).
+            case INS_GET_STATS:
+                apdu.setOutgoingAndSend((short)0, getStats(apduBuffer, (short)0, (short)apduBuffer.length));
+                break;
+                
+            // For any other command, receive the data and run it.
+            default:
+                short apduLength = apdu.setIncomingAndReceive();
+                
+                // The output goes to the batch buffer (unused outside a batch).
+                short outputLength = execute(ins, apduBuffer[ISO7816.OFFSET_P1], apduBuffer[ISO7816.OFFSET_P2], apduBuffer, apdu.getOffsetCdata(), apduLength, batchResponse, (short)0, BATCH_RESPONSE_SIZE);
+                
+                if (outputLength > 0)
+                {
+                    apdu.setOutgoing();
+                    apdu.setOutgoingLength(outputLength);
+                    apdu.sendBytesLong(batchResponse, (short)0, outputLength);
+                }
+        }
+    }
+
+    
+    // Run a single command on data that was already received and return the length of its output (at most outputLength bytes).
+    private short execute (byte ins, byte p1, byte p2, byte[] buffer, short offset, short length, byte[] output, short outputOffset, short outputLength)
+    {
+        switch (ins)
+        {
+        	// Validate the PIN of the user.
+            case INS_VERIFY:
+                verify(buffer, offset, length);
+                return 0;
+                
+            // Change the PIN of the user.
+            case INS_UPDATE_PIN:
+                requireVerified();
+                updatePin(buffer, offset, length);
+                return 0;
+                
+            // Get the data of the patient (inside a batch or a secure command).
+            case INS_GET_PATIENT_DATA:
+                requireVerified();
+                
+                // With the mask of the fields, the data can give the offset to start from (2 bytes).
+                selectPatientData(p1, p2, buffer, offset, length);
+                
+                // Get as many bytes as fit in the output.
+                short remaining = (short)(getPatientDataLength((byte)readState[READ_FIELDS]) - readState[READ_START]);
+                
+                if (remaining < outputLength)
+                	outputLength = remaining;
+                
+                copyPatientData(null, output, outputOffset, (byte)readState[READ_FIELDS], readState[READ_START], outputLength);
+                
+                // The rest is read with another GET PATIENT DATA from the next offset (a full output means there may be more).
+                readState[READ_FIELDS] = 0;
+                
+                return outputLength;
+                
+            // Get the emergency data (inside a batch or a secure command; the signed form is only sent in clear).
+            case INS_GET_EMERGENCY_DATA:
+                if (p1 != 0)
+                	ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+                
+                if (outputLength < EMERGENCY_DATA_SIZE)
+                	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                
+                Util.arrayCopyNonAtomic(patientData, EMERGENCY_DATA_OFFSET, output, outputOffset, EMERGENCY_DATA_SIZE);
+                return EMERGENCY_DATA_SIZE;
+                
             // Sets the data of the patient.
             case INS_SET_PATIENT_DATA:
                 requireVerified();
-                setPatientData(apdu);
-                break;
+                setPatientData(p1, buffer, offset, length);
+                return 0;
                 
             // Set the data of the new consult.
             case INS_SET_CONSULT_DATA:
                 requireVerified();
-                setConsultData(apdu);
-                break;
+                setConsultData(p1, p2, buffer, offset, length);
+                return 0;
+                
+            // Check which specialties the patient can go to, without adding a consult.
+            case INS_CHECK_CONSULTS:
+                requireVerified();
+                return checkConsults(buffer, offset, length, output, outputOffset, outputLength);
                 
             // Set the data for the medical vacation.
             case INS_SET_MED_VACATION:
                 requireVerified();
-                setMedicalVacation(apdu);
-                break;
+                setMedicalVacation(buffer, offset, length);
+                return 0;
+                
+            // Get the usage statistics of the card (inside a batch or a secure command).
+            case INS_GET_STATS:
+                return getStats(output, outputOffset, outputLength);
+                
+            // Save the working copy of the record.
+            case INS_COMMIT:
+                requireVerified();
+                
+                if (!workingCopy)
+                	ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+                
+                saveWorkingCopy();
+                return 0;
                 
             // If any other command, refuse it.
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+                return 0;
         }
     }
 
     
-    private void requireVerified ()
-    {
-    	// Check if the PIN of the user is the correct one.
-        if (!pin.isValidated())
-            ISOException.throwIt(SW_VERIFICATION_FAILED);
-    }
-
-
-    private void verify (APDU apdu)
+    // BATCH: data is a list of sub-commands (INS, P1, P2, Lc, data), run in order until the first failure.
+    // The whole list is checked before any sub-command runs, so a malformed list changes nothing on the card.
+    // If the results fill the response, the batch stops there and returns the results of the sub-commands that ran.
+    private void batch (APDU apdu)
     {
     	// Get the APDU buffer.
         byte[] apduBuffer = apdu.getBuffer();
         
-        // Get the length of the APDU.
-        short apduLength = apdu.setIncomingAndReceive();
-        
-        // Validate the length of the APDU.
-        if (apduLength != 32)
-        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        // Get the length of the APDU (all of it, with an extended length).
+        short apduLength = receiveData(apdu);
         
-        short initializationVectorOffset = ISO7816.OFFSET_CDATA;
-        short ciphertextOffset = (short)(initializationVectorOffset + 16);
+        // Get the bounds of the sub-commands.
+        short commandsStart = apdu.getOffsetCdata();
+        short commandsEnd = (short)(commandsStart + apduLength);
         
-        // Decrypt the PIN.
-        aesCipher.init(aesKey, Cipher.MODE_DECRYPT, apduBuffer, initializationVectorOffset, (short)16);
-        aesCipher.doFinal(apduBuffer, ciphertextOffset, (short)16, apduBuffer, (short)0);
+        // Make sure the header and the data of every sub-command are complete.
+        short commandOffset = commandsStart;
         
-        // Get the length of the PIN.
-        byte pinLength = 0;
+        while (commandOffset < commandsEnd)
+        {
+            if ((short)(commandOffset + BATCH_HEADER_SIZE) > commandsEnd)
+            	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            
+            commandOffset = (short)(commandOffset + BATCH_HEADER_SIZE + (apduBuffer[(short)(commandOffset + 3)] & 0xFF));
+            
+            if (commandOffset > commandsEnd)
+            	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
         
-        while (pinLength < PIN_MAXIMUM_SIZE && apduBuffer[pinLength] != 0)
-        	pinLength++;
+        // Get the offset of the next result.
+        short responseLength = 0;
         
-        // Validate the PIN of the user.
-        if (!pin.check(apduBuffer, (short)0, pinLength))
-        	ISOException.throwIt(SW_VERIFICATION_FAILED);
-    }
-
-    
-    private void updatePin (APDU apdu)
-    {
-    	// Get the APDU buffer.
-        byte[] apduBuffer = apdu.getBuffer();
+        commandOffset = commandsStart;
         
-        // Get the length of the APDU.
-        short apduLength = apdu.setIncomingAndReceive();
+        while (commandOffset < commandsEnd)
+        {
+            // Stop when the header of the result no longer fits in the response.
+            if ((short)(responseLength + BATCH_RESULT_HEADER_SIZE) > BATCH_RESPONSE_SIZE)
+            	break;
+            
+            // Get the header of the sub-command.
+            byte ins = apduBuffer[commandOffset];
+            byte p1 = apduBuffer[(short)(commandOffset + 1)];
+            byte p2 = apduBuffer[(short)(commandOffset + 2)];
+            short dataLength = (short)(apduBuffer[(short)(commandOffset + 3)] & 0xFF);
+            short dataOffset = (short)(commandOffset + BATCH_HEADER_SIZE);
+            
+            // Run the sub-command and keep its status word (each sub-command counts as a command).
+            short status = ISO7816.SW_NO_ERROR;
+            short outputLength = 0;
+            
+            countCommand(ins);
+            
+            try
+            {
+                outputLength = execute(ins, p1, p2, apduBuffer, dataOffset, dataLength, batchResponse, (short)(responseLength + BATCH_RESULT_HEADER_SIZE), (short)(BATCH_RESPONSE_SIZE - responseLength - BATCH_RESULT_HEADER_SIZE));
+            }
+            catch (ISOException e)
+            {
+                status = e.getReason();
+                countRejected(status);
+            }
+            
+            // Set the result of the sub-command.
+            Util.setShort(batchResponse, responseLength, status);
+            batchResponse[(short)(responseLength + 2)] = (byte)outputLength;
+            responseLength = (short)(responseLength + BATCH_RESULT_HEADER_SIZE + outputLength);
+            
+            // Stop at the first sub-command that failed.
+            if (status != ISO7816.SW_NO_ERROR)
+            	break;
+            
+            commandOffset = (short)(dataOffset + dataLength);
+        }
         
-        // Make sure there is enough room for both the old and the new PINs of the user.
-        if (apduLength < (short)(PIN_MAXIMUM_SIZE * 2))
-        	ISOException.throwIt(SW_NOT_ENOUGH_DATA);
+        apdu.setOutgoing();
         
-        // Validate the current PIN of the user.
-        if (!pin.check(apduBuffer, ISO7816.OFFSET_CDATA, PIN_MAXIMUM_SIZE))
-        	ISOException.throwIt(SW_VERIFICATION_FAILED);
+        // Get the length of the results.
+        apdu.setOutgoingLength(responseLength);
         
-        // Update the PIN of the user.
-        pin.update(apduBuffer, (short)(ISO7816.OFFSET_CDATA + PIN_MAXIMUM_SIZE), PIN_MAXIMUM_SIZE);
+        // Send the results of the sub-commands.
+        apdu.sendBytesLong(batchResponse, (short)0, responseLength);
     }
 
     
-    private void getPatientData (APDU apdu)
+    // Receive all the data of the command into the APDU buffer and return its length.
+    // With an extended length, the data can come in several blocks; it must fit in the APDU buffer.
+    private short receiveData (APDU apdu)
     {
-        apdu.setOutgoing();
+        short received = apdu.setIncomingAndReceive();
+        short dataLength = apdu.getIncomingLength();
+        
+        // Make sure the whole data fits in the APDU buffer (Lc above 32767 reads as negative).
+        if (dataLength < 0 || dataLength > (short)(apdu.getBuffer().length - apdu.getOffsetCdata()))
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
-        // Get the length of the data.
-        apdu.setOutgoingLength((short)patientData.length);
+        // Receive the rest of the data, right after what was already received.
+        while (received < dataLength)
+        	received += apdu.receiveBytes((short)(apdu.getOffsetCdata() + received));
         
-        // Get the data of the patient.
-        apdu.sendBytesLong(patientData, (short)0, (short)patientData.length);
+        return received;
     }
 
     
-    private void setPatientData (APDU apdu)
+    // OPEN SESSION: data 16 bytes random of the terminal; returns 16 bytes random of the card and an AES MAC (16 bytes) of both randoms.
+    // Session keys: AES-CBC with the installed key (IV = 0) of card random [0..7], terminal random [0..15], card random [8..15];
+    // the first block is the encryption key, the second one is the MAC key.
+    private void openSession (APDU apdu)
     {
     	// Get the APDU buffer.
         byte[] apduBuffer = apdu.getBuffer();
         
         // Get the length of the APDU.
-        apdu.setIncomingAndReceive();
+        short apduLength = apdu.setIncomingAndReceive();
         
-        // Get the option (0 = chronic diagnosis, 1 = chronic specialty, 2 = donor code).
-        byte option = apduBuffer[ISO7816.OFFSET_P1];
+        // Validate the length of the APDU.
+        if (apduLength != SECURE_BLOCK_SIZE)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
-        // Get the value corresponding to the given option.
-        byte value = apduBuffer[ISO7816.OFFSET_CDATA];
+        short terminalRandomOffset = apdu.getOffsetCdata();
         
-        switch (option)
-        {
-        	// Set the chronic diagnosis.
-            case 0:
-            	patientData[5] = value;
-            	break;
-            	
-            // Set the chronic specialty.
-            case 1:
-            	patientData[6] = value;
-            	break;
-            	
-            // Set the donor code.
-            case 2:
-            	patientData[7] = value;
-            	break;
-            	
-            // If other option, reject it.
-            default:
-            	ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
-        }
+        // Build the derivation data in the batch buffer (unused outside a batch), with the card random at [64..79].
+        random.generateData(batchResponse, (short)64, SECURE_BLOCK_SIZE);
+        Util.arrayCopyNonAtomic(batchResponse, (short)64, batchResponse, (short)0, (short)8);
+        Util.arrayCopyNonAtomic(apduBuffer, terminalRandomOffset, batchResponse, (short)8, SECURE_BLOCK_SIZE);
+        Util.arrayCopyNonAtomic(batchResponse, (short)72, batchResponse, (short)24, (short)8);
+        
+        // Derive the session keys.
+        aesCipher.init(aesKey, Cipher.MODE_ENCRYPT);
+        aesCipher.doFinal(batchResponse, (short)0, (short)32, batchResponse, (short)32);
+        sessionEncryptionKey.setKey(batchResponse, (short)32);
+        sessionMacKey.setKey(batchResponse, (short)48);
+        
+        // Initialize the ciphers and the AES MAC once for the whole session.
+        sessionEncryptCipher.init(sessionEncryptionKey, Cipher.MODE_ENCRYPT);
+        sessionDecryptCipher.init(sessionEncryptionKey, Cipher.MODE_DECRYPT);
+        sessionSignature.init(sessionMacKey, Signature.MODE_SIGN);
+        
+        // Sign both randoms, so the terminal knows the card has the same session keys.
+        Util.arrayCopyNonAtomic(apduBuffer, terminalRandomOffset, batchResponse, (short)0, SECURE_BLOCK_SIZE);
+        Util.arrayCopyNonAtomic(batchResponse, (short)64, batchResponse, (short)16, SECURE_BLOCK_SIZE);
+        Util.arrayCopyNonAtomic(batchResponse, (short)64, apduBuffer, (short)0, SECURE_BLOCK_SIZE);
+        sessionSignature.sign(batchResponse, (short)0, (short)32, apduBuffer, SECURE_BLOCK_SIZE);
+        
+        // Clear the derivation data.
+        Util.arrayFillNonAtomic(batchResponse, (short)0, (short)80, (byte)0);
+        
+        // Open the session.
+        sessionState[SESSION_OPEN] = 1;
+        sessionState[SESSION_COUNTER] = 0;
+        
+        // Send the card random and the signature.
+        apdu.setOutgoingAndSend((short)0, (short)(SECURE_BLOCK_SIZE * 2));
     }
 
     
-    private void setConsultData (APDU apdu)
+    // Secure command (CLA 0x84): data is the encrypted data of the command followed by the MAC of the header block and the encrypted data.
+    // Header block of a command:  counter (2 bytes), CLA, INS, P1, P2, 0x80, 0x00 ...
+    // Header block of a response: counter (2 bytes), 0x90, 0x00, length of the encrypted data (2 bytes), 0x80, 0x00 ...
+    // A failed command is answered with its status word only.
+    private void processSecure (APDU apdu)
     {
     	// Get the APDU buffer.
         byte[] apduBuffer = apdu.getBuffer();
         
+        // Make sure a session was opened.
+        if (sessionState[SESSION_OPEN] == 0)
+        	ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        
         // Get the length of the APDU.
         short apduLength = apdu.setIncomingAndReceive();
         
-        // Get the diagnosis code.
-        byte diagnosisCode = apduBuffer[ISO7816.OFFSET_P1];
+        short dataOffset = apdu.getOffsetCdata();
+        short dataLength = (short)(apduLength - SECURE_BLOCK_SIZE);
         
-        // Get the specialty code.
-        byte specialtyCode = apduBuffer[ISO7816.OFFSET_P2];
+        // Validate the length of the APDU.
+        if (dataLength < 0 || (short)(dataLength % SECURE_BLOCK_SIZE) != 0)
+        	closeSession();
         
-        // Ensure the correct length of the command.
-        if (apduLength != 3)
-        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        // Check the MAC of the command.
+        short counter = ++sessionState[SESSION_COUNTER];
         
-        // Get the day.
-        byte day = apduBuffer[ISO7816.OFFSET_CDATA];
+        setSessionHeader(counter, Util.getShort(apduBuffer, ISO7816.OFFSET_CLA), Util.getShort(apduBuffer, ISO7816.OFFSET_P1));
+        sessionSignature.update(sessionHeader, (short)0, SECURE_BLOCK_SIZE);
+        sessionSignature.sign(apduBuffer, dataOffset, dataLength, sessionHeader, (short)0);
         
-        // Get the month.
-        byte month = apduBuffer[ISO7816.OFFSET_CDATA + 1];
+        if (!isMacEqual(sessionHeader, apduBuffer, (short)(dataOffset + dataLength)))
+        	closeSession();
         
-        // Get the year.
-        byte year = apduBuffer[ISO7816.OFFSET_CDATA + 2];
+        // Decrypt the data of the command (the whole data must come out, with no block kept back by the cipher).
+        if (sessionDecryptCipher.update(apduBuffer, dataOffset, dataLength, apduBuffer, dataOffset) != dataLength)
+        	ISOException.throwIt(ISO7816.SW_UNKNOWN);
         
-        // Check if the patient has a chronic disease.
-        boolean isChronic = (patientData[5] != 0);
+        // Remove the padding.
+        if (dataLength > 0)
+        {
+            while (dataLength > 0 && apduBuffer[(short)(dataOffset + dataLength - 1)] == 0)
+            	dataLength--;
+            
+            if (dataLength == 0 || apduBuffer[(short)(dataOffset + dataLength - 1)] != (byte)0x80)
+            	closeSession();
+            
+            dataLength--;
+        }
+        
+        // Run the command; the PIN comes in clear inside the secure messaging.
+        byte ins = apduBuffer[ISO7816.OFFSET_INS];
+        short outputLength = 0;
+        
+        if (ins == INS_VERIFY)
+        {
+            if (dataLength > PIN_MAXIMUM_SIZE)
+            	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            
+            checkPin(apduBuffer, dataOffset, (byte)dataLength);
+        }
+        
+        else
+        	outputLength = execute(ins, apduBuffer[ISO7816.OFFSET_P1], apduBuffer[ISO7816.OFFSET_P2], apduBuffer, dataOffset, dataLength, batchResponse, (short)0, SECURE_MAXIMUM_OUTPUT);
+        
+        // Encrypt the output, padded to the size of a block.
+        short responseLength = 0;
         
-        // Check if the patient has a chronic disease at the requested specialty.
-        boolean isChronicEligible = (isChronic && patientData[6] == specialtyCode);
+        if (outputLength > 0)
+        {
+            batchResponse[outputLength] = (byte)0x80;
+            responseLength = (short)((outputLength + SECURE_BLOCK_SIZE) & ~(SECURE_BLOCK_SIZE - 1));
+            Util.arrayFillNonAtomic(batchResponse, (short)(outputLength + 1), (short)(responseLength - outputLength - 1), (byte)0);
+            
+            if (sessionEncryptCipher.update(batchResponse, (short)0, responseLength, apduBuffer, (short)0) != responseLength)
+            	ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        }
+        
+        // Sign the response.
+        setSessionHeader(counter, ISO7816.SW_NO_ERROR, responseLength);
+        sessionSignature.update(sessionHeader, (short)0, SECURE_BLOCK_SIZE);
+        responseLength += sessionSignature.sign(apduBuffer, (short)0, responseLength, apduBuffer, responseLength);
+        
+        // Send the encrypted output and the signature.
+        apdu.setOutgoingAndSend((short)0, responseLength);
+    }
 
-        // Check if the patient didn't go to another consult this month at the requested specialty.
-        boolean noRepeatThisMonth = true;
+    
+    // Compare the computed MAC with the received one in constant time (every byte is compared, whatever the first difference).
+    private static boolean isMacEqual (byte[] mac, byte[] buffer, short offset)
+    {
+        byte difference = 0;
         
-        if (!isChronic)
-            for (short entry = 0; entry < 3; entry++)
+        for (short index = 0; index < SECURE_BLOCK_SIZE; index++)
+        	difference |= (byte)(mac[index] ^ buffer[(short)(offset + index)]);
+        
+        return difference == 0;
+    }
+
+    
+    private void setSessionHeader (short counter, short first, short second)
+    {
+        Util.setShort(sessionHeader, (short)0, counter);
+        Util.setShort(sessionHeader, (short)2, first);
+        Util.setShort(sessionHeader, (short)4, second);
+        sessionHeader[6] = (byte)0x80;
+        Util.arrayFillNonAtomic(sessionHeader, (short)7, (short)(SECURE_BLOCK_SIZE - 7), (byte)0);
+    }
+
+    
+    private void closeSession ()
+    {
+    	// Close the session and clear the session keys, so a new session must be opened.
+        sessionState[SESSION_OPEN] = 0;
+        sessionEncryptionKey.clearKey();
+        sessionMacKey.clearKey();
+        
+        ISOException.throwIt(SW_SECURE_DATA_INCORRECT);
+    }
+
+    
+    private void loadWorkingCopy ()
+    {
+        short offset = Util.arrayCopyNonAtomic(savedRecord, (short)0, patientData, (short)0, (short)patientData.length);
+        
+        Util.arrayCopyNonAtomic(savedRecord, offset, consultIndex, (short)0, CONSULT_INDEX_SIZE);
+        offset += CONSULT_INDEX_SIZE;
+        
+        Util.arrayCopyNonAtomic(savedRecord, offset, vacationLog, (short)0, VACATION_LOG_SIZE);
+        offset += VACATION_LOG_SIZE;
+        
+        Util.arrayCopyNonAtomic(savedRecord, offset, vacationMonths, (short)0, VACATION_MONTHS_SIZE);
+        offset += VACATION_MONTHS_SIZE;
+        
+        for (byte index = 0; index < RECORD_STATE_SIZE; index++)
+        {
+            recordState[index] = Util.getShort(savedRecord, offset);
+            offset += 2;
+        }
+        
+        Util.arrayCopyNonAtomic(savedRecord, offset, consultLog, (short)0, (short)consultLog.length);
+        
+        workingCopyChanged[0] = false;
+    }
+
+    
+    private void saveWorkingCopy ()
+    {
+    	// Nothing to save if the working copy did not change.
+        if (!workingCopyChanged[0])
+        	return;
+        
+        // Save the whole record in one transaction, so a torn session keeps the previous record.
+        JCSystem.beginTransaction();
+        
+        short offset = Util.arrayCopy(patientData, (short)0, savedRecord, (short)0, (short)patientData.length);
+        offset = Util.arrayCopy(consultIndex, (short)0, savedRecord, offset, CONSULT_INDEX_SIZE);
+        offset = Util.arrayCopy(vacationLog, (short)0, savedRecord, offset, VACATION_LOG_SIZE);
+        offset = Util.arrayCopy(vacationMonths, (short)0, savedRecord, offset, VACATION_MONTHS_SIZE);
+        
+        for (byte index = 0; index < RECORD_STATE_SIZE; index++)
+        	offset = Util.setShort(savedRecord, offset, recordState[index]);
+        
+        Util.arrayCopy(consultLog, (short)0, savedRecord, offset, (short)consultLog.length);
+        
+        JCSystem.commitTransaction();
+        countStat(STATS_PERSISTENT_WRITES);
+        
+        workingCopyChanged[0] = false;
+    }
+
+    
+    private void markChanged ()
+    {
+    	// Remember to save the working copy; without it, the record was just written to EEPROM.
+        if (workingCopy)
+        	workingCopyChanged[0] = true;
+        
+        else
+        	countStat(STATS_PERSISTENT_WRITES);
+    }
+
+    
+    private void requireVerified ()
+    {
+    	// Check if the PIN of the user is the correct one.
+        if (!pin.isValidated())
+            ISOException.throwIt(SW_VERIFICATION_FAILED);
+    }
+
+
+    private void verify (byte[] buffer, short offset, short length)
+    {
+        // Validate the length of the data.
+        if (length != 32)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        short initializationVectorOffset = offset;
+        short ciphertextOffset = (short)(initializationVectorOffset + 16);
+        
+        // Decrypt the PIN.
+        aesCipher.init(aesKey, Cipher.MODE_DECRYPT, buffer, initializationVectorOffset, (short)16);
+        aesCipher.doFinal(buffer, ciphertextOffset, (short)16, pinBuffer, (short)0);
+        
+        // Validate the PIN of the user.
+        checkPin(pinBuffer, (short)0, getPinLength(pinBuffer, (short)0));
+    }
+
+    
+    private static byte getPinLength (byte[] buffer, short offset)
+    {
+    	// Get the length of a PIN padded with zeros to PIN_MAXIMUM_SIZE bytes.
+        byte pinLength = 0;
+        
+        while (pinLength < PIN_MAXIMUM_SIZE && buffer[(short)(offset + pinLength)] != 0)
+        	pinLength++;
+        
+        return pinLength;
+    }
+
+    
+    private void checkPin (byte[] buffer, short offset, byte length)
+    {
+    	// Check the PIN of the user; every check writes the try counter to EEPROM.
+        boolean valid = pin.check(buffer, offset, length);
+        
+        countStat(STATS_PERSISTENT_WRITES);
+        
+        if (!valid)
+        {
+            countStat(STATS_PIN_FAILURES);
+            ISOException.throwIt(SW_VERIFICATION_FAILED);
+        }
+    }
+
+    
+    private void updatePin (byte[] buffer, short offset, short length)
+    {
+        // Make sure there is enough room for both the old and the new PINs of the user.
+        if (length < (short)(PIN_MAXIMUM_SIZE * 2))
+        	ISOException.throwIt(SW_NOT_ENOUGH_DATA);
+        
+        // Validate the current PIN of the user (both PINs are padded with zeros, as in VERIFY).
+        checkPin(buffer, offset, getPinLength(buffer, offset));
+        
+        // Update the PIN of the user.
+        pin.update(buffer, (short)(offset + PIN_MAXIMUM_SIZE), getPinLength(buffer, (short)(offset + PIN_MAXIMUM_SIZE)));
+        countStat(STATS_PERSISTENT_WRITES);
+    }
+
+    
+    // GET PATIENT DATA: P1 P2 is the offset in the record (P1 < 0x80), or P1 = 0x80 and P2 is the mask of the fields to get.
+    // Inside a batch or a secure command, the data of P1 = 0x80 can give the offset in the selected fields, so a read that
+    // doesn't fit in one output goes on from where it stopped.
+    // Record: birthdate (3 bytes), blood group and Rh factor (2), chronic diagnosis and specialty (2), donor code (1),
+    //         consults from the oldest to the newest (5 bytes each),
+    //         medical vacations from the oldest to the newest (start and end day numbers, 4 bytes each).
+    private void getPatientData (APDU apdu)
+    {
+    	// Get the APDU buffer.
+        byte[] apduBuffer = apdu.getBuffer();
+        
+        // Get the fields and the offset to start from.
+        selectPatientData(apduBuffer[ISO7816.OFFSET_P1], apduBuffer[ISO7816.OFFSET_P2], apduBuffer, (short)0, (short)0);
+        
+        // Send the data of the patient.
+        sendPatientData(apdu);
+    }
+
+    
+    // GET EMERGENCY DATA: no PIN needed, returns blood group, Rh factor, chronic diagnosis, chronic specialty and donor code (5 bytes).
+    // With P1 = 1 and a 16-byte challenge as data, the 5 bytes are followed by an AES MAC (16 bytes, with the emergency key) of the challenge and the 5 bytes.
+    private void getEmergencyData (APDU apdu)
+    {
+    	// Get the APDU buffer.
+        byte[] apduBuffer = apdu.getBuffer();
+        
+        // Get the length of the response.
+        short responseLength = EMERGENCY_DATA_SIZE;
+        
+        switch (apduBuffer[ISO7816.OFFSET_P1])
+        {
+        	// Only the emergency data.
+            case 0:
+            	break;
+            	
+            // The emergency data signed together with the challenge of the terminal.
+            case 1:
+            	short apduLength = apdu.setIncomingAndReceive();
+            	
+            	if (apduLength != EMERGENCY_CHALLENGE_SIZE)
+            		ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            	
+            	// Build the signed block in the batch buffer (unused outside a batch): challenge, emergency data, zero padding.
+            	Util.arrayCopyNonAtomic(apduBuffer, apdu.getOffsetCdata(), batchResponse, (short)0, EMERGENCY_CHALLENGE_SIZE);
+            	Util.arrayCopyNonAtomic(patientData, EMERGENCY_DATA_OFFSET, batchResponse, EMERGENCY_CHALLENGE_SIZE, EMERGENCY_DATA_SIZE);
+            	Util.arrayFillNonAtomic(batchResponse, (short)(EMERGENCY_CHALLENGE_SIZE + EMERGENCY_DATA_SIZE), (short)(16 - EMERGENCY_DATA_SIZE), (byte)0);
+            	
+            	// Sign the block, right after the emergency data in the response.
+            	responseLength += emergencySignature.sign(batchResponse, (short)0, (short)32, apduBuffer, EMERGENCY_DATA_SIZE);
+            	break;
+            	
+            // If other option, reject it.
+            default:
+            	ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        // Get the emergency data.
+        Util.arrayCopyNonAtomic(patientData, EMERGENCY_DATA_OFFSET, apduBuffer, (short)0, EMERGENCY_DATA_SIZE);
+        
+        // Send the emergency data (and the signature).
+        apdu.setOutgoingAndSend((short)0, responseLength);
+    }
+
+    
+    // GET RESPONSE: continue the previous GET PATIENT DATA that did not fit in one response.
+    private void getResponse (APDU apdu)
+    {
+    	// Make sure there is something left to read.
+        if (readState[READ_FIELDS] == 0)
+        	ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        
+        requireVerified();
+        
+        // Send the rest of the data of the patient.
+        sendPatientData(apdu);
+    }
+
+    
+    // With P1 = 0x80, the data is empty (start from the beginning of the fields) or the offset in the selected fields (2 bytes).
+    private void selectPatientData (byte p1, byte p2, byte[] buffer, short offset, short length)
+    {
+    	// Get either the selected fields from the given offset, or all the fields from the offset in P1 P2.
+        byte fields = FIELD_ALL;
+        short start = Util.makeShort(p1, p2);
+        
+        if (p1 == READ_BY_FIELDS)
+        {
+            fields = (byte)(p2 & FIELD_ALL);
+            start = 0;
+            
+            if (length == 2)
+            	start = Util.getShort(buffer, offset);
+            else if (length != 0)
+            	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        else if (length != 0)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        else if (p1 < 0)
+        	ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        
+        // Make sure the offset is inside the record.
+        if (fields == 0 || start < 0 || start > getPatientDataLength(fields))
+        	ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        
+        readState[READ_FIELDS] = fields;
+        readState[READ_START] = start;
+    }
+
+    
+    private void sendPatientData (APDU apdu)
+    {
+        byte fields = (byte)readState[READ_FIELDS];
+        short start = readState[READ_START];
+        
+        // How many bytes the terminal expects.
+        short expectedLength = apdu.setOutgoing();
+        
+        // Send as many bytes as the terminal expects.
+        short remaining = (short)(getPatientDataLength(fields) - start);
+        short length = (remaining < expectedLength) ? remaining : expectedLength;
+        
+        apdu.setOutgoingLength(length);
+        copyPatientData(apdu, null, (short)0, fields, start, length);
+        
+        remaining -= length;
+        
+        // If there is nothing left, the read is done.
+        if (remaining == 0)
+        {
+            readState[READ_FIELDS] = 0;
+            return;
+        }
+        
+        // Otherwise, keep the offset for GET RESPONSE and tell how many bytes are left.
+        readState[READ_START] = (short)(start + length);
+        
+        ISOException.throwIt((short)(ISO7816.SW_BYTES_REMAINING_00 | (remaining > 0xFF ? 0 : remaining)));
+    }
+
+    
+    // Send (if output is null) or copy length bytes of the selected fields, starting from the given offset, and return the length.
+    private short copyPatientData (APDU apdu, byte[] output, short outputOffset, byte fields, short start, short length)
+    {
+        short end = (short)(start + length);
+        short position = 0;
+        
+        for (byte part = 0; part < 8; part++)
+        {
+            byte field;
+            byte[] source = patientData;
+            short sourceOffset;
+            short sourceLength;
+            
+            switch (part)
+            {
+                case 0:
+                	field = FIELD_BIRTHDATE;
+                	sourceOffset = 0;
+                	sourceLength = 3;
+                	break;
+                case 1:
+                	field = FIELD_BLOOD;
+                	sourceOffset = 3;
+                	sourceLength = 2;
+                	break;
+                case 2:
+                	field = FIELD_CHRONIC;
+                	sourceOffset = 5;
+                	sourceLength = 2;
+                	break;
+                case 3:
+                	field = FIELD_DONOR;
+                	sourceOffset = 7;
+                	sourceLength = 1;
+                	break;
+                	
+                // The consults, starting from the oldest one.
+                case 4:
+                	field = FIELD_CONSULTS;
+                	source = consultLog;
+                	sourceOffset = recordState[RECORD_CONSULT_HEAD];
+                	sourceLength = (short)(consultLog.length - recordState[RECORD_CONSULT_HEAD]);
+                	break;
+                case 5:
+                	field = FIELD_CONSULTS;
+                	source = consultLog;
+                	sourceOffset = 0;
+                	sourceLength = recordState[RECORD_CONSULT_HEAD];
+                	break;
+                	
+                // The medical vacations, starting from the oldest one.
+                case 6:
+                	field = FIELD_VACATION;
+                	source = vacationLog;
+                	sourceOffset = recordState[RECORD_VACATION_HEAD];
+                	sourceLength = (short)(VACATION_LOG_SIZE - recordState[RECORD_VACATION_HEAD]);
+                	break;
+                default:
+                	field = FIELD_VACATION;
+                	source = vacationLog;
+                	sourceOffset = 0;
+                	sourceLength = recordState[RECORD_VACATION_HEAD];
+            }
+            
+            // Skip the fields that were not selected.
+            if ((fields & field) == 0)
+            	continue;
+            
+            // Get the part of the field that was asked for.
+            short from = (start > position) ? start : position;
+            short to = (short)(position + sourceLength);
+            
+            if (end < to)
+            	to = end;
+            
+            if (from < to)
             {
-                short base = (short)(8 + entry * 5);
-                byte oldSpecialty = patientData[(short)(base + 1)];
-                byte oldMonth     = patientData[(short)(base + 3)];
+                sourceOffset = (short)(sourceOffset + from - position);
                 
-                if (oldSpecialty == specialtyCode && oldMonth == month)
-                {
-                    noRepeatThisMonth = false;
-                    break;
-                }
+                if (output == null)
+                	apdu.sendBytesLong(source, sourceOffset, (short)(to - from));
+                else
+                	outputOffset = Util.arrayCopyNonAtomic(source, sourceOffset, output, outputOffset, (short)(to - from));
             }
+            
+            position += sourceLength;
+        }
+        
+        return length;
+    }
+
+    
+    private short getPatientDataLength (byte fields)
+    {
+        short length = 0;
+        
+        if ((fields & FIELD_BIRTHDATE) != 0)
+        	length += 3;
+        if ((fields & FIELD_BLOOD) != 0)
+        	length += 2;
+        if ((fields & FIELD_CHRONIC) != 0)
+        	length += 2;
+        if ((fields & FIELD_DONOR) != 0)
+        	length += 1;
+        if ((fields & FIELD_CONSULTS) != 0)
+        	length += (short)consultLog.length;
+        if ((fields & FIELD_VACATION) != 0)
+        	length += VACATION_LOG_SIZE;
+        
+        return length;
+    }
+
+    
+    // SET PATIENT DATA: P1 is the option (0 = chronic diagnosis, 1 = chronic specialty, 2 = donor code), data 1 byte value
+    private void setPatientData (byte option, byte[] buffer, short offset, short length)
+    {
+        // Ensure the length of the data.
+        if (length != 1)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        // Get the value corresponding to the given option.
+        byte value = buffer[offset];
+        
+        switch (option)
+        {
+        	// Set the chronic diagnosis.
+            case 0:
+            	patientData[5] = value;
+            	break;
+            	
+            // Set the chronic specialty.
+            case 1:
+            	patientData[6] = value;
+            	break;
+            	
+            // Set the donor code.
+            case 2:
+            	patientData[7] = value;
+            	break;
+            	
+            // If other option, reject it.
+            default:
+            	ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        markChanged();
+    }
 
+    
+    // SET CONSULT DATA: P1 is the diagnosis code, P2 is the specialty code, data 3 bytes date
+    private void setConsultData (byte diagnosisCode, byte specialtyCode, byte[] buffer, short offset, short length)
+    {
+        // Ensure the correct length of the command.
+        if (length != 3)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        // Get the day.
+        byte day = buffer[offset];
+        
+        // Get the month.
+        byte month = buffer[(short)(offset + 1)];
+        
+        // Get the year.
+        byte year = buffer[(short)(offset + 2)];
+        
         // Ensure the eligibility status.
-        if (!(isChronicEligible || (!isChronic && noRepeatThisMonth)))
+        if (!isConsultEligible(specialtyCode, month, year))
             ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
 
-        // Rotate the three oldest consults.
-        Util.arrayCopy(patientData, (short)13, patientData, (short)8, (short)10);
-
-	    // Get the offset of the new consult to be added.
-	    short position = (short)(8 + 2 * 5);
+        // Get the month of the consult.
+        short consultMonth = (short)((year & 0xFF) * 12 + month);
+        
+        // Write the consult, the head and the index in one transaction, so a tear keeps the index of the log it was built from.
+        // The working copy is saved in its own transaction.
+        if (!workingCopy)
+        	JCSystem.beginTransaction();
+        
+	    // Overwrite the oldest consult with the new one.
+	    short position = recordState[RECORD_CONSULT_HEAD];
      
      	// Set the new data of the patient.
-        patientData[position]   		   = diagnosisCode;
-        patientData[(short)(position + 1)] = specialtyCode;
-        patientData[(short)(position + 2)] = day;
-        patientData[(short)(position + 3)] = month;
-        patientData[(short)(position + 4)] = year;
+        consultLog[position]              = diagnosisCode;
+        consultLog[(short)(position + 1)] = specialtyCode;
+        consultLog[(short)(position + 2)] = day;
+        consultLog[(short)(position + 3)] = month;
+        consultLog[(short)(position + 4)] = year;
+        
+        // Move the head to the next oldest consult.
+        position += CONSULT_ENTRY_SIZE;
+        
+        if (position == (short)consultLog.length)
+        	position = 0;
+        
+        recordState[RECORD_CONSULT_HEAD] = position;
+        
+        // If the consult starts a new month, clear the index of the specialties (byte by byte, as arrayFillNonAtomic
+        // would bypass the transaction).
+        if (consultMonth > recordState[RECORD_INDEX_MONTH])
+        {
+            for (short index = 0; index < CONSULT_INDEX_SIZE; index++)
+            	consultIndex[index] = 0;
+            
+            recordState[RECORD_INDEX_MONTH] = consultMonth;
+        }
+        
+        // Mark the specialty as consulted in the most recent month.
+        if (consultMonth == recordState[RECORD_INDEX_MONTH])
+        	consultIndex[(short)((specialtyCode & 0xFF) >> 3)] |= (byte)(1 << (specialtyCode & 7));
+        
+        if (!workingCopy)
+        	JCSystem.commitTransaction();
+        
+        markChanged();
     }
 
     
-    // SET MEDICAL VACATION: data 6 bytes start(3) and end(3)
-    private void setMedicalVacation (APDU apdu)
+    // CHECK CONSULTS: data 3 bytes date followed by the specialty codes; returns one bit per specialty (1 = eligible),
+    // starting from the highest bit of the first byte.
+    private short checkConsults (byte[] buffer, short offset, short length, byte[] output, short outputOffset, short outputLength)
     {
-    	// Get the APDU buffer.
-        byte[] apduBuffer = apdu.getBuffer();
+    	// Ensure there is a date and at least one specialty.
+        if (length < 4)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
-        // Get the length of the APDU.
-        short apduLength = apdu.setIncomingAndReceive();
+        // Get the month and the year (the day doesn't matter for the rules).
+        byte month = buffer[(short)(offset + 1)];
+        byte year = buffer[(short)(offset + 2)];
+        
+        short specialties = (short)(length - 3);
+        short bitmapLength = (short)((short)(specialties + 7) >> 3);
+        
+        // Ensure the bitmap fits in the output.
+        if (bitmapLength > outputLength)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        Util.arrayFillNonAtomic(output, outputOffset, bitmapLength, (byte)0);
+        
+        // Apply the same rules as SET CONSULT DATA to every specialty.
+        for (short index = 0; index < specialties; index++)
+            if (isConsultEligible(buffer[(short)(offset + 3 + index)], month, year))
+            	output[(short)(outputOffset + (index >> 3))] |= (byte)(0x80 >> (index & 7));
+        
+        return bitmapLength;
+    }
+
+    
+    private boolean isConsultEligible (byte specialtyCode, byte month, byte year)
+    {
+        // Check if the patient has a chronic disease.
+        boolean isChronic = (patientData[5] != 0);
+        
+        // A patient with a chronic disease can only go to the chronic specialty.
+        if (isChronic)
+        	return patientData[6] == specialtyCode;
         
-        // Ensure the length of the APDU.
-        if (apduLength != 6)
+        // Get the month of the consult.
+        short consultMonth = (short)((year & 0xFF) * 12 + month);
+        
+        // Check the index if the consult is in the most recent month.
+        if (consultMonth == recordState[RECORD_INDEX_MONTH])
+        	return (consultIndex[(short)((specialtyCode & 0xFF) >> 3)] & (byte)(1 << (specialtyCode & 7))) == 0;
+        
+        // A consult in a later month has no other consult in that month yet.
+        if (consultMonth > recordState[RECORD_INDEX_MONTH])
+        	return true;
+        
+        // For an earlier month, check if the patient didn't go to another consult that month at the requested specialty.
+        for (short base = 0; base < (short)consultLog.length; base += CONSULT_ENTRY_SIZE)
+            if (consultLog[(short)(base + 1)] == specialtyCode && consultLog[(short)(base + 3)] == month && consultLog[(short)(base + 4)] == year)
+            	return false;
+        
+        return true;
+    }
+
+    
+    // SET MEDICAL VACATION: data 6 bytes start(3) and end(3)
+    private void setMedicalVacation (byte[] buffer, short offset, short length)
+    {
+        // Ensure the length of the data.
+        if (length != 6)
         	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
         // Extract the new vacation dates.
-        byte newStartDay   = apduBuffer[ISO7816.OFFSET_CDATA];
-        byte newStartMonth = apduBuffer[(short)(ISO7816.OFFSET_CDATA + 1)];
-        byte newStartYear  = apduBuffer[(short)(ISO7816.OFFSET_CDATA + 2)];
-        byte newEndDay     = apduBuffer[(short)(ISO7816.OFFSET_CDATA + 3)];
-        byte newEndMonth   = apduBuffer[(short)(ISO7816.OFFSET_CDATA + 4)];
-        byte newEndYear    = apduBuffer[(short)(ISO7816.OFFSET_CDATA + 5)];
+        byte newStartMonth = buffer[(short)(offset + 1)];
+        byte newStartYear  = buffer[(short)(offset + 2)];
+        byte newEndMonth   = buffer[(short)(offset + 4)];
+        byte newEndYear    = buffer[(short)(offset + 5)];
+        
+        short newStart = getDayNumber(buffer[offset], newStartMonth, newStartYear);
+        short newEnd   = getDayNumber(buffer[(short)(offset + 3)], newEndMonth, newEndYear);
+        
+        // Make sure the vacation doesn't end before it starts.
+        if (newEnd < newStart)
+        	ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 
+        // Get the months the vacation starts and ends in.
+        short startMonth = (short)(newStartYear * 12 + newStartMonth);
+        short endMonth   = (short)(newEndYear * 12 + newEndMonth);
+        
+        // Make sure the vacation starts in the last 12 months counted, so its days are counted against the cap.
+        if (startMonth <= (short)(getLatestVacationMonth() - VACATION_MONTHS))
+        	ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        
         // Check if the patient has a chronic disease.
         boolean isChronic = (patientData[5] != 0);
         
+        // Check the days already counted for each month (only needed without a chronic disease).
         if (!isChronic)
         {
-            byte oldStartDay   = patientData[23];
-            byte oldStartMonth = patientData[24];
-            byte oldStartYear  = patientData[25];
-            byte oldEndDay     = patientData[26];
-            // byte oldEndMonth   = patientData[27];
-            // byte oldEndYear    = patientData[28];
-
-            short alreadyDays = 0;
+        	// At most 10 days a month means the vacation can't go past the month after the one it starts in.
+            if ((short)(endMonth - startMonth) > 1)
+                ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
             
-            // Check if the it's the same month and year.
-            if (oldStartMonth == newStartMonth && oldStartYear == newStartYear)
-                alreadyDays = (short)(oldEndDay - oldStartDay + 1);
+            if ((short)(getMonthVacationDays(startMonth) + getNewVacationDays(startMonth, newStart, newEnd)) > VACATION_DAYS_PER_MONTH)
+                ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
             
-            short newDays = 0;
+            if (endMonth != startMonth && (short)(getMonthVacationDays(endMonth) + getNewVacationDays(endMonth, newStart, newEnd)) > VACATION_DAYS_PER_MONTH)
+                ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        // Write the counters, the vacation and the head in one transaction, so the counters always match the log.
+        // The working copy is saved in its own transaction.
+        if (!workingCopy)
+        	JCSystem.beginTransaction();
+        
+        // Count the new days of every month of the vacation, also with a chronic disease, so the counters stay right if
+        // the chronic disease is cleared (the slots only keep the last 12 months).
+        short month = (short)(endMonth - VACATION_MONTHS + 1);
+        
+        if (month < startMonth)
+        	month = startMonth;
+        
+        for (; month <= endMonth; month++)
+        	addMonthVacationDays(month, getNewVacationDays(month, newStart, newEnd));
+	    
+	    // Overwrite the oldest medical vacation with the new one.
+	    short position = recordState[RECORD_VACATION_HEAD];
+	    
+        Util.setShort(vacationLog, position, newStart);
+        Util.setShort(vacationLog, (short)(position + 2), newEnd);
+        
+        // Move the head to the next oldest medical vacation.
+        position += VACATION_ENTRY_SIZE;
+        
+        if (position == VACATION_LOG_SIZE)
+        	position = 0;
+        
+        recordState[RECORD_VACATION_HEAD] = position;
+        
+        if (!workingCopy)
+        	JCSystem.commitTransaction();
+        
+        markChanged();
+    }
+    
+    
+    // Return the number of days of the given month (year * 12 + month) covered by the new vacation and by none of the
+    // vacations in the history, so the days shared with any of them are counted only once.
+    private short getNewVacationDays (short month, short newStart, short newEnd)
+    {
+        byte year = (byte)((short)(month - 1) / 12);
+        byte monthOfYear = (byte)(month - year * 12);
+        
+        short monthStart = getDayNumber((byte)1, monthOfYear, year);
+        short monthEnd   = (short)(monthStart + getDaysInMonth(monthOfYear, year) - 1);
+        
+        // Get the days of the new vacation in the month.
+        short day = (newStart > monthStart) ? newStart : monthStart;
+        short end = (newEnd < monthEnd) ? newEnd : monthEnd;
+        short days = 0;
+        
+        // Count the days no vacation of the history covers, skipping to the end of the ones that do.
+        while (day <= end)
+        {
+            short coveredEnd = getCoveredEnd(day);
             
-            if (oldStartMonth == newStartMonth)
-                newDays = (short)(newEndDay - newStartDay + 1);
+            if (coveredEnd == 0)
+            {
+                days++;
+                day++;
+            }
             
             else
-                newDays = (short)(getDaysInMonth(newStartMonth, newStartYear) - newStartDay + 1);
+            	day = (short)(coveredEnd + 1);
+        }
+        
+        return days;
+    }
+    
+    
+    // Return the end of a vacation of the history that covers the given day, or 0 if none does.
+    private short getCoveredEnd (short day)
+    {
+        for (short position = 0; position < VACATION_LOG_SIZE; position += VACATION_ENTRY_SIZE)
+        {
+            short start = Util.getShort(vacationLog, position);
+            short end   = Util.getShort(vacationLog, (short)(position + 2));
             
-            if ((short)(alreadyDays + newDays) > 10)
-                ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+            // An empty entry has the day number 0, before any day.
+            if (start != 0 && start <= day && day <= end)
+            	return end;
         }
-
-	    // Get the offset of the new holiday to be added.
-	    short position = (short)(3 + 2 * 5 + 2 * 5);
-	    
-	    // Set the new data of the patient.
-        patientData[position]   		   = newStartDay;
-        patientData[(short)(position + 1)] = newStartMonth;
-        patientData[(short)(position + 2)] = newStartYear;
-        patientData[(short)(position + 3)] = newEndDay;
-        patientData[(short)(position + 4)] = newEndMonth;
-        patientData[(short)(position + 4)] = newEndYear;
+        
+        return 0;
+    }
+    
+    
+    // Return the latest month (year * 12 + month) with medical vacation days counted, or 0 if none.
+    private short getLatestVacationMonth ()
+    {
+        short latest = 0;
+        
+        for (short slot = 0; slot < VACATION_MONTHS_SIZE; slot += VACATION_MONTH_SIZE)
+        {
+            short month = Util.getShort(vacationMonths, slot);
+            
+            if (month > latest)
+            	latest = month;
+        }
+        
+        return latest;
+    }
+    
+    
+    // Return the days of medical vacation already counted for the given month (year * 12 + month).
+    private short getMonthVacationDays (short month)
+    {
+        short slot = (short)((short)(month % VACATION_MONTHS) * VACATION_MONTH_SIZE);
+        
+        if (Util.getShort(vacationMonths, slot) != month)
+        	return 0;
+        
+        return vacationMonths[(short)(slot + 2)];
+    }
+    
+    
+    private void addMonthVacationDays (short month, short days)
+    {
+        short slot = (short)((short)(month % VACATION_MONTHS) * VACATION_MONTH_SIZE);
+        short slotMonth = Util.getShort(vacationMonths, slot);
+        
+        // Keep the slot of a later month (the given month is no longer one of the last 12).
+        if (slotMonth > month)
+        	return;
+        
+        // Reuse the slot of the same month of an earlier year.
+        if (slotMonth != month)
+        {
+            Util.setShort(vacationMonths, slot, month);
+            vacationMonths[(short)(slot + 2)] = 0;
+        }
+        
+        vacationMonths[(short)(slot + 2)] = (byte)(vacationMonths[(short)(slot + 2)] + days);
+    }
+    
+    
+    // Return the number of the day (1 = 01/01/2000, at most 32508 = 31/12/2088), so that date differences are subtractions.
+    private short getDayNumber (byte day, byte month, byte year)
+    {
+    	// Validate the date.
+        if (year < 0 || year > MAXIMUM_YEAR || month < 1 || month > 12 || day < 1 || day > getDaysInMonth(month, year))
+        	ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        
+        // Count the days of the previous years (one more for every leap year), the previous months and the day itself.
+        short dayNumber = (short)(year * 365 + ((year + 3) >> 2) + DAYS_BEFORE_MONTH[(short)(month - 1)] + day);
+        
+        // Add the 29th of February of a leap year.
+        if (month > 2 && (year & 3) == 0)
+        	dayNumber++;
+        
+        return dayNumber;
     }
     
     
     private byte getDaysInMonth (byte month, byte year)
     {
-        switch (month)
-        {
-            case  1:
-            case  3:
-            case  5:
-            case  7:
-            case  8:
-            case 10:
-            case 12:
-            	return 31;
-            case  4:
-            case  6:
-            case  9:
-            case 11:
-            	return 30;
-            case 2:
-                int y = (year & 0xFF) + 2000;
-                boolean leap = ((y % 4) == 0 && (y % 100) != 0) || (y % 400) == 0;
-                return (byte)(leap ? 29 : 28);
-            default:
-                return 30;
+        short days = (short)(DAYS_BEFORE_MONTH[month] - DAYS_BEFORE_MONTH[(short)(month - 1)]);
+        
+        // Every year from 2000 to 2088 divisible by 4 is a leap year.
+        if (month == 2 && (year & 3) == 0)
+        	days++;
+        
+        return (byte)days;
+    }
+
+    
+    // GET STATS: returns the usage statistics of the card: PIN failures (4 bytes), persistent writes (4 bytes),
+    // then the counters that are not 0:
+    // number of INS, then for each: INS (0xFF - any other INS), commands (4 bytes),
+    // number of status words, then for each: status word (0x0000 - any other rejected status word), rejected commands (4 bytes).
+    // Returns the length of the statistics (at most STATS_MAXIMUM_OUTPUT bytes).
+    private short getStats (byte[] output, short outputOffset, short outputLength)
+    {
+    	// Ensure the statistics fit in the output.
+        if (outputLength < STATS_MAXIMUM_OUTPUT)
+        	ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        // Get the PIN failures and the persistent writes.
+        putStat(output, outputOffset, STATS_PIN_FAILURES);
+        putStat(output, (short)(outputOffset + STATS_COUNTER_SIZE), STATS_PERSISTENT_WRITES);
+        
+        short length = (short)(outputOffset + 2 * STATS_COUNTER_SIZE);
+        
+        // Get the commands of each INS.
+        short countOffset = length++;
+        output[countOffset] = 0;
+        
+        for (short index = 0; index <= STATS_INS_COUNTED; index++)
+        {
+            output[length] = (index < STATS_INS_COUNTED) ? STATS_INS[index] : STATS_OTHER_INS;
+            
+            if (putStat(output, (short)(length + 1), (short)(STATS_INS_COUNTERS + index)))
+            {
+                length += 1 + STATS_COUNTER_SIZE;
+                output[countOffset]++;
+            }
         }
+        
+        // Get the rejected commands of each status word.
+        countOffset = length++;
+        output[countOffset] = 0;
+        
+        for (short slot = 0; slot < STATS_SW_SLOTS; slot++)
+        {
+            Util.setShort(output, length, getStatusWord(slot));
+            
+            if (putStat(output, (short)(length + 2), (short)(STATS_COUNTERS + slot)))
+            {
+                length += STATS_SW_SLOT_SIZE;
+                output[countOffset]++;
+            }
+        }
+        
+        return (short)(length - outputOffset);
+    }
+
+    
+    // Copy the total of the count (the counter in EEPROM and the count not added yet) and return true if it is not 0.
+    // Counts: the counters, then the status words.
+    private boolean putStat (byte[] buffer, short offset, short index)
+    {
+        Util.arrayCopyNonAtomic(stats, getStatsOffset(index), buffer, offset, STATS_COUNTER_SIZE);
+        addToCounter(buffer, offset, statsDelta[(short)(index + 1)]);
+        
+        return Util.getShort(buffer, offset) != 0 || Util.getShort(buffer, (short)(offset + 2)) != 0;
+    }
+
+    
+    // Count one for the counter.
+    private void countStat (short counter)
+    {
+        statsDelta[(short)(counter + 1)]++;
+    }
+
+    
+    // Count the command by its INS, and add the counts to EEPROM every few commands.
+    private void countCommand (byte ins)
+    {
+        short counter = STATS_OTHER_INS_COUNTER;
+        
+        for (short index = 0; index < STATS_INS_COUNTED; index++)
+        {
+            if (STATS_INS[index] == ins)
+            {
+                counter = (short)(STATS_INS_COUNTERS + index);
+                break;
+            }
+        }
+        
+        countStat(counter);
+        
+        if (++statsDelta[0] >= STATS_FLUSH_INTERVAL)
+        	flushStats();
+    }
+
+    
+    // Count the rejected command in the slot of its status word (a free slot is given to a new status word, in RAM until the
+    // counts are added to EEPROM).
+    private void countRejected (short statusWord)
+    {
+    	// A 61xx status word only tells there is more to read.
+        if ((short)(statusWord & (short)0xFF00) == ISO7816.SW_BYTES_REMAINING_00)
+        	return;
+        
+        short slot = 0;
+        
+        for (; slot < (short)(STATS_SW_SLOTS - 1); slot++)
+        {
+            short slotStatusWord = getStatusWord(slot);
+            
+            if (slotStatusWord == statusWord)
+            	break;
+            
+            if (slotStatusWord == 0)
+            {
+                statsDelta[(short)(STATS_DELTA_STATUS_WORDS + slot)] = statusWord;
+                break;
+            }
+        }
+        
+        statsDelta[(short)(1 + STATS_COUNTERS + slot)]++;
+    }
+
+    
+    // Return the status word of the slot: saved in EEPROM, or given in RAM since the last time (0 if the slot is free).
+    private short getStatusWord (short slot)
+    {
+        short statusWord = Util.getShort(stats, (short)(STATS_SW_OFFSET + slot * STATS_SW_SLOT_SIZE));
+        
+        if (statusWord == 0)
+        	statusWord = statsDelta[(short)(STATS_DELTA_STATUS_WORDS + slot)];
+        
+        return statusWord;
+    }
+
+    
+    // Add the counts of RAM to the counters in EEPROM (a torn card loses at most the counts since the last time).
+    private void flushStats ()
+    {
+        // Save the status words given to free slots before their counts, so a count is never saved in a free slot.
+        for (short slot = 0; slot < STATS_SW_SLOTS; slot++)
+        {
+            short statusWord = statsDelta[(short)(STATS_DELTA_STATUS_WORDS + slot)];
+            
+            if (statusWord != 0)
+            {
+                Util.setShort(statsCounter, (short)0, statusWord);
+                Util.arrayCopy(statsCounter, (short)0, stats, (short)(STATS_SW_OFFSET + slot * STATS_SW_SLOT_SIZE), (short)2);
+                statsDelta[(short)(STATS_DELTA_STATUS_WORDS + slot)] = 0;
+            }
+        }
+        
+        // Add the counts in RAM and write each counter at once, so a tear never leaves half a counter.
+        for (short index = 0; index < (short)(STATS_COUNTERS + STATS_SW_SLOTS); index++)
+        {
+            short count = statsDelta[(short)(index + 1)];
+            
+            if (count != 0)
+            {
+                short offset = getStatsOffset(index);
+                
+                Util.arrayCopyNonAtomic(stats, offset, statsCounter, (short)0, STATS_COUNTER_SIZE);
+                addToCounter(statsCounter, (short)0, count);
+                Util.arrayCopy(statsCounter, (short)0, stats, offset, STATS_COUNTER_SIZE);
+                statsDelta[(short)(index + 1)] = 0;
+            }
+        }
+        
+        statsDelta[0] = 0;
+    }
+
+    
+    // Return the offset in EEPROM of the counter of the count (counters, then status words).
+    private short getStatsOffset (short index)
+    {
+        if (index < STATS_COUNTERS)
+        	return (short)(index * STATS_COUNTER_SIZE);
+        
+        return (short)(STATS_SW_OFFSET + (short)(index - STATS_COUNTERS) * STATS_SW_SLOT_SIZE + 2);
+    }
+
+    
+    // Add the count to the counter of 4 bytes (unsigned; it stops at 0xFFFFFFFF).
+    private static void addToCounter (byte[] buffer, short offset, short count)
+    {
+        if (count == 0)
+        	return;
+        
+        short high = Util.getShort(buffer, offset);
+        short low = Util.getShort(buffer, (short)(offset + 2));
+        short sum = (short)(low + count);
+        
+        // Carry to the high half when the low half goes past 0xFFFF (compared as unsigned).
+        if ((short)(sum ^ (short)0x8000) < (short)(low ^ (short)0x8000))
+        {
+            if (high == (short)0xFFFF)
+            	sum = (short)0xFFFF;
+            
+            else
+            	high++;
+        }
+        
+        Util.setShort(buffer, offset, high);
+        Util.setShort(buffer, (short)(offset + 2), sum);
     }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+package javacard.framework;
+
+import java.util.Arrays;
+
+
+
+// Application identifier of an applet: 5 to 16 bytes, the first 5 of them the registered application provider (RID).
+public final class AID
+{
+    // Define the limits of an AID.
+    static final byte MINIMUM_LENGTH						= 5;
+    static final byte MAXIMUM_LENGTH						= 16;
+    static final byte RID_LENGTH							= 5;
+
+
+    private final byte[] bytes;
+
+
+    public AID (byte[] bArray, short offset, byte length) throws SystemException, NullPointerException, ArrayIndexOutOfBoundsException
+    {
+        if (length < MINIMUM_LENGTH || length > MAXIMUM_LENGTH)
+            SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+
+        if (offset < 0 || offset + length > bArray.length)
+            throw new ArrayIndexOutOfBoundsException(offset);
+
+        bytes = Arrays.copyOfRange(bArray, offset, offset + length);
+    }
+
+
+    // Copy the AID to the array; return its length.
+    public final byte getBytes (byte[] dest, short offset)
+    {
+        System.arraycopy(bytes, 0, dest, offset, bytes.length);
+
+        return (byte) bytes.length;
+    }
+
+
+    // Copy length bytes of the AID, from aidOffset, to the array; return the number of bytes copied.
+    public final byte getPartialBytes (short aidOffset, byte[] dest, short oOffset, byte oLength)
+    {
+        if (aidOffset < 0 || aidOffset > bytes.length)
+            throw new ArrayIndexOutOfBoundsException(aidOffset);
+
+        int length = Math.min(oLength, bytes.length - aidOffset);
+
+        System.arraycopy(bytes, aidOffset, dest, oOffset, length);
+
+        return (byte) length;
+    }
+
+
+    @Override
+    public final boolean equals (Object other)
+    {
+        return other instanceof AID && Arrays.equals(bytes, ((AID) other).bytes);
+    }
+
+
+    @Override
+    public int hashCode ()
+    {
+        return Arrays.hashCode(bytes);
+    }
+
+
+    public final boolean equals (byte[] bArray, short offset, byte length)
+    {
+        return length == bytes.length && Arrays.equals(bytes, 0, bytes.length, bArray, offset, offset + length);
+    }
+
+
+    // Return if the AID starts with the given bytes.
+    public final boolean partialEquals (byte[] bArray, short offset, byte length)
+    {
+        return length <= bytes.length && Arrays.equals(bytes, 0, length, bArray, offset, offset + length);
+    }
+
+
+    public final boolean RIDEquals (AID otherAID)
+    {
+        return Arrays.equals(bytes, 0, RID_LENGTH, otherAID.bytes, 0, RID_LENGTH);
+    }
+
+
+    @Override
+    public String toString ()
+    {
+        StringBuilder text = new StringBuilder();
+
+        for (byte value : bytes)
+            text.append(String.format("%02X", value));
+
+        return text.toString();
+    }
+}
@@ -0,0 +1,363 @@
+package javacard.framework;
+
+
+
+// The command being processed and its response. The runtime puts the header of the command in the buffer; the data comes
+// in with setIncomingAndReceive() (and receiveBytes(), in blocks of BLOCK_SIZE bytes when there are more), and the output
+// goes out with the sendBytes() calls, after setOutgoing() and setOutgoingLength(). The calls are checked against the
+// states of the command, like on a card: a call out of order throws APDUException.
+public final class APDU
+{
+    // Define the protocols.
+    public static final byte PROTOCOL_T0					= 0;
+    public static final byte PROTOCOL_T1					= 1;
+
+
+    // Define the states of the command.
+    public static final byte STATE_INITIAL					= 0;
+    public static final byte STATE_PARTIAL_INCOMING			= 1;
+    public static final byte STATE_FULL_INCOMING			= 2;
+    public static final byte STATE_OUTGOING					= 3;
+    public static final byte STATE_OUTGOING_LENGTH_KNOWN	= 4;
+    public static final byte STATE_PARTIAL_OUTGOING			= 5;
+    public static final byte STATE_FULL_OUTGOING			= 6;
+    public static final byte STATE_ERROR_NO_T0_GETRESPONSE	= -1;
+    public static final byte STATE_ERROR_T1_IFD_ABORT		= -2;
+    public static final byte STATE_ERROR_IO					= -3;
+    public static final byte STATE_ERROR_NO_T0_REISSUE		= -4;
+
+
+    // Define the sizes of the buffer: a short command (header, Lc, 255 bytes of data, Le), or, for the applets that
+    // implement ExtendedLength, the largest array of a card (32767 bytes); the rest of a longer command is received in blocks.
+    static final int BUFFER_SIZE							= 5 + 255 + 1;
+    static final int EXTENDED_BUFFER_SIZE					= Short.MAX_VALUE;
+
+
+    // Define the size of the blocks of incoming data, and the largest outputs (short and extended).
+    static final short BLOCK_SIZE							= 256;
+    static final short MAXIMUM_OUTPUT						= 256;
+    static final short MAXIMUM_EXTENDED_OUTPUT				= 32767;
+
+
+    // Declare the runtime of the card, which takes the output.
+    private final CardRuntime runtime;
+
+
+    // Declare the buffers: the short one, and the extended one, allocated when an extended applet first needs it.
+    private final byte[] shortBuffer = new byte[BUFFER_SIZE];
+    private byte[] extendedBuffer;
+    private byte[] buffer = shortBuffer;
+
+
+    // Declare the command (its data is taken from there as it is received).
+    private byte[] command;
+    private int dataOffset;
+
+
+    // Declare the state of the command.
+    private byte state;
+    private short maximumOutput;
+    private short offsetCdata;
+    private short incomingLength;
+    private short received;
+    private short expectedLength;
+    private short outgoingLength;
+    private short sent;
+
+
+    APDU (CardRuntime runtime)
+    {
+        this.runtime = runtime;
+    }
+
+
+    // Start the given command (its length already checked by parse()); the extended buffer serves the extended applets.
+    void begin (byte[] command, int offset, int length, boolean extendedApplet)
+    {
+        if (extendedApplet && extendedBuffer == null)
+            extendedBuffer = new byte[EXTENDED_BUFFER_SIZE];
+
+        buffer = extendedApplet ? extendedBuffer : shortBuffer;
+        maximumOutput = extendedApplet ? MAXIMUM_EXTENDED_OUTPUT : MAXIMUM_OUTPUT;
+        state = STATE_INITIAL;
+        received = 0;
+        outgoingLength = 0;
+        sent = 0;
+
+        this.command = command;
+
+        boolean extended = isExtended(command, offset, length);
+        offsetCdata = extended ? ISO7816.OFFSET_EXT_CDATA : ISO7816.OFFSET_CDATA;
+
+        // Lc and Le, by case: 1 - header only, 2 - Le, 3 - Lc and data, 4 - Lc, data and Le. Without Le, any output is expected.
+        int headerLength = extended ? 7 : 5;
+        int lc = 0;
+        int le = 0;
+
+        if (length > 4)
+        {
+            int lengthField = extended ? ((command[offset + 5] & 0xFF) << 8) | (command[offset + 6] & 0xFF) : command[offset + 4] & 0xFF;
+
+            if (length == (extended ? 7 : 5))
+                le = lengthField;
+            else
+            {
+                lc = lengthField;
+
+                if (length > headerLength + lc)
+                    le = extended ? ((command[offset + length - 2] & 0xFF) << 8) | (command[offset + length - 1] & 0xFF) : command[offset + length - 1] & 0xFF;
+            }
+
+            if (le == 0)
+                le = extended ? 65536 : 256;
+        }
+        else
+            le = 256;
+
+        incomingLength = (short) lc;
+        expectedLength = (short) Math.min(le, maximumOutput);
+        dataOffset = offset + headerLength;
+
+        System.arraycopy(command, offset, buffer, 0, Math.min(length, headerLength));
+
+        if (length == 4)
+            buffer[ISO7816.OFFSET_LC] = 0;
+    }
+
+
+    // Return if the command is well formed, short or extended.
+    static boolean parse (byte[] command, int offset, int length)
+    {
+        if (length < 4)
+            return false;
+
+        if (length <= 5)
+            return true;
+
+        int lc = command[offset + ISO7816.OFFSET_LC] & 0xFF;
+
+        if (lc != 0)
+            return length == 5 + lc || length == 6 + lc;
+
+        // Extended: 00 Le1 Le2, or 00 Lc1 Lc2, the data (32767 bytes at most), and maybe Le1 Le2.
+        if (length == 7)
+            return true;
+
+        int extendedLc = ((command[offset + 5] & 0xFF) << 8) | (command[offset + 6] & 0xFF);
+
+        return extendedLc > 0 && extendedLc <= MAXIMUM_EXTENDED_OUTPUT && (length == 7 + extendedLc || length == 9 + extendedLc);
+    }
+
+
+    // Return if the command is extended.
+    static boolean isExtended (byte[] command, int offset, int length)
+    {
+        return length > 5 && command[offset + ISO7816.OFFSET_LC] == 0;
+    }
+
+
+    public byte[] getBuffer ()
+    {
+        return buffer;
+    }
+
+
+    public static short getInBlockSize ()
+    {
+        return BLOCK_SIZE;
+    }
+
+
+    public static short getOutBlockSize ()
+    {
+        return MAXIMUM_OUTPUT + 2;
+    }
+
+
+    public static byte getProtocol ()
+    {
+        return PROTOCOL_T1;
+    }
+
+
+    public byte getNAD ()
+    {
+        return 0;
+    }
+
+
+    public byte getCurrentState ()
+    {
+        return state;
+    }
+
+
+    public static APDU getCurrentAPDU () throws SecurityException
+    {
+        return CardRuntime.current().getAPDU();
+    }
+
+
+    public static byte[] getCurrentAPDUBuffer () throws SecurityException
+    {
+        return getCurrentAPDU().getBuffer();
+    }
+
+
+    public boolean isISOInterindustryCLA ()
+    {
+        return (buffer[ISO7816.OFFSET_CLA] & 0x80) == 0;
+    }
+
+
+    public boolean isValidCLA ()
+    {
+        return buffer[ISO7816.OFFSET_CLA] != (byte) 0xFF;
+    }
+
+
+    public boolean isCommandChainingCLA ()
+    {
+        return isISOInterindustryCLA() && (buffer[ISO7816.OFFSET_CLA] & 0x10) != 0;
+    }
+
+
+    // Secure messaging: b4 b3 in the first interindustry CLA (0x0X, 0x1X), b6 in the further ones (0x4X to 0x7X).
+    public boolean isSecureMessagingCLA ()
+    {
+        byte cla = buffer[ISO7816.OFFSET_CLA];
+
+        return isISOInterindustryCLA() && ((cla & 0x40) == 0 ? (cla & 0x0C) != 0 : (cla & 0x20) != 0);
+    }
+
+
+    public byte getCLAChannel ()
+    {
+        byte cla = buffer[ISO7816.OFFSET_CLA];
+
+        return (byte) ((cla & 0x40) == 0 ? cla & 0x03 : 4 + (cla & 0x0F));
+    }
+
+
+    public short getIncomingLength ()
+    {
+        return incomingLength;
+    }
+
+
+    public short getOffsetCdata ()
+    {
+        return offsetCdata;
+    }
+
+
+    // Receive the first block of data, after the header; return its length.
+    public short setIncomingAndReceive () throws APDUException
+    {
+        if (state != STATE_INITIAL)
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+
+        return receive(offsetCdata);
+    }
+
+
+    // Receive the next block of data at the given offset; return its length (0 - all the data was received).
+    public short receiveBytes (short bOff) throws APDUException
+    {
+        if (state != STATE_PARTIAL_INCOMING && state != STATE_FULL_INCOMING)
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+
+        return receive(bOff);
+    }
+
+
+    private short receive (short bOff)
+    {
+        short length = (short) Math.min(incomingLength - received, BLOCK_SIZE);
+
+        if (bOff < 0 || bOff + length > buffer.length)
+            APDUException.throwIt(APDUException.BUFFER_BOUNDS);
+
+        System.arraycopy(command, dataOffset + received, buffer, bOff, length);
+        received += length;
+        state = received == incomingLength ? STATE_FULL_INCOMING : STATE_PARTIAL_INCOMING;
+
+        return length;
+    }
+
+
+    // Start the output; return the number of bytes expected (Le, 256 - or 32767 when extended - without Le).
+    public short setOutgoing () throws APDUException
+    {
+        if (state < STATE_INITIAL || state >= STATE_OUTGOING)
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+
+        state = STATE_OUTGOING;
+
+        return expectedLength;
+    }
+
+
+    public short setOutgoingNoChaining () throws APDUException
+    {
+        return setOutgoing();
+    }
+
+
+    public void setOutgoingLength (short len) throws APDUException
+    {
+        if (state != STATE_OUTGOING)
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+
+        if (len < 0 || len > maximumOutput)
+            APDUException.throwIt(APDUException.BAD_LENGTH);
+
+        outgoingLength = len;
+        state = STATE_OUTGOING_LENGTH_KNOWN;
+    }
+
+
+    public void sendBytes (short bOff, short len) throws APDUException
+    {
+        if (bOff < 0 || len < 0 || bOff + len > buffer.length)
+            APDUException.throwIt(APDUException.BUFFER_BOUNDS);
+
+        send(buffer, bOff, len);
+    }
+
+
+    public void sendBytesLong (byte[] outData, short bOff, short len) throws APDUException, SecurityException
+    {
+        if (bOff < 0 || len < 0 || bOff + len > outData.length)
+            throw new ArrayIndexOutOfBoundsException(bOff);
+
+        send(outData, bOff, len);
+    }
+
+
+    public void setOutgoingAndSend (short bOff, short len) throws APDUException
+    {
+        setOutgoing();
+        setOutgoingLength(len);
+        sendBytes(bOff, len);
+    }
+
+
+    private void send (byte[] data, short offset, short length)
+    {
+        if (state != STATE_OUTGOING_LENGTH_KNOWN && state != STATE_PARTIAL_OUTGOING)
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+
+        if (sent + length > outgoingLength)
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
+
+        runtime.respond(data, offset, length);
+        sent += length;
+        state = sent == outgoingLength ? STATE_FULL_OUTGOING : STATE_PARTIAL_OUTGOING;
+    }
+
+
+    public void waitExtension () throws APDUException
+    {
+    }
+}
@@ -0,0 +1,37 @@
+package javacard.framework;
+
+
+
+// Exception of the APDU class: a call out of order in the states of the command, or a length out of bounds.
+public class APDUException extends CardRuntimeException
+{
+    // Define the reasons.
+    public static final short ILLEGAL_USE					= 1;
+    public static final short BUFFER_BOUNDS					= 2;
+    public static final short BAD_LENGTH					= 3;
+    public static final short IO_ERROR						= 4;
+    public static final short NO_T0_GETRESPONSE				= 0xAA;
+    public static final short T1_IFD_ABORT					= 0xAB;
+    public static final short NO_T0_REISSUE					= 0xAC;
+
+
+    private static final long serialVersionUID = 1L;
+
+
+    private static final ThreadLocal<APDUException> systemInstance = ThreadLocal.withInitial(() -> new APDUException((short) 0));
+
+
+    public APDUException (short reason)
+    {
+        super(reason);
+    }
+
+
+    public static void throwIt (short reason) throws APDUException
+    {
+        APDUException exception = systemInstance.get();
+
+        exception.setReason(reason);
+        throw exception;
+    }
+}
@@ -0,0 +1,61 @@
+package javacard.framework;
+
+
+
+// Base of the applets. The runtime calls the static install() of the applet class on CREATE (it must create the applet
+// and register() it), select() and deselect() when the applet gains and loses the selection, and process() for each
+// command while it is selected, the SELECT included.
+public abstract class Applet
+{
+    protected Applet ()
+    {
+    }
+
+
+    // An applet class that doesn't declare its own install() can't be installed.
+    public static void install (byte[] bArray, short bOffset, byte bLength) throws ISOException
+    {
+        ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+    }
+
+
+    public abstract void process (APDU apdu) throws ISOException;
+
+
+    public boolean select ()
+    {
+        return true;
+    }
+
+
+    public void deselect ()
+    {
+    }
+
+
+    public Shareable getShareableInterfaceObject (AID clientAID, byte parameter)
+    {
+        return null;
+    }
+
+
+    // Register the applet under the AID of the CREATE that installs it.
+    protected final void register () throws SystemException
+    {
+        CardRuntime.current().register(this, null);
+    }
+
+
+    // Register the applet under the given AID.
+    protected final void register (byte[] bArray, short bOffset, byte bLength) throws SystemException
+    {
+        CardRuntime.current().register(this, new AID(bArray, bOffset, bLength));
+    }
+
+
+    // Return if the command being processed is the SELECT of this applet.
+    protected final boolean selectingApplet ()
+    {
+        return CardRuntime.current().isSelectingApplet();
+    }
+}
@@ -0,0 +1,724 @@
+package javacard.framework;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import javacardx.apdu.ExtendedLength;
+
+
+
+// A Java Card run in the JVM: the installer, the applets installed, the selection, the transient arrays and the
+// transaction. process() takes a command and returns the response (the output and the status word), like the card in a
+// reader; terminal.SimulatedCard puts it behind javax.smartcardio. Not part of the Java Card API.
+//
+// What it follows from the runtime of a card:
+//     - The installer (INSTALLER_AID) is selected at power up and on reset(); CREATE installs the applets whose classes
+//       were added with addAppletClass(), through their static install().
+//     - SELECT by AID calls deselect() of the selected applet, clears its CLEAR_ON_DESELECT arrays, then calls select()
+//       and process() of the new one; a SELECT of an AID that isn't installed goes to the selected applet.
+//     - An ISOException gives its reason as the status word, any other exception 0x6F00; the output sent before stays.
+//     - A transaction still open when the applet returns (or throws) is aborted. The abort puts back the persistent
+//       arrays and fields reached from the applet, except for the non-atomic writes (Util, the PIN try counters).
+//     - Extended commands go only to the applets that implement ExtendedLength (0x6700 for the others).
+//
+// The persistent writes counted are the calls of the API that write persistent arrays outside of a transaction, and
+// one per transaction committed. The allocations counted (setAllocationTracking) are those of the thread while the
+// applets run: the applets, and the runtime on their behalf.
+public final class CardRuntime
+{
+    // Define the AID of the installer.
+    public static final byte[] INSTALLER_AID = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x08, 0x01};
+
+
+    // Define the status words of the runtime: no applet with the AID of the CREATE, an applet already installed with it.
+    public static final short SW_APPLET_NOT_FOUND			= ISO7816.SW_FILE_NOT_FOUND;
+    public static final short SW_APPLET_EXISTS				= 0x6A89;
+
+
+    // Told when an applet gains or loses the selection.
+    public interface SelectionListener
+    {
+        // Called before select() of the applet.
+        void selecting (Applet applet);
+
+        // Called after deselect() of the applet, its CLEAR_ON_DESELECT arrays cleared.
+        void deselected (Applet applet);
+    }
+
+
+    // An applet installed, or being installed.
+    private static final class Entry
+    {
+        AID aid;
+        final byte[] parameters;
+        final boolean extended;
+        final List<Object> clearOnDeselect = new ArrayList<>();
+        Applet applet;
+        PersistentImage image;
+
+
+        Entry (AID aid, byte[] parameters, boolean extended)
+        {
+            this.aid = aid;
+            this.parameters = parameters;
+            this.extended = extended;
+        }
+    }
+
+
+    // An applet class that can be installed.
+    private static final class AppletClass
+    {
+        final byte[] aid;
+        final Class<?> type;
+
+
+        AppletClass (byte[] aid, Class<?> type)
+        {
+            this.aid = aid;
+            this.type = type;
+        }
+    }
+
+
+    // Declare the runtime of the card used by the current thread (set while it runs a command of the card).
+    private static final ThreadLocal<CardRuntime> current = new ThreadLocal<>();
+
+
+    // Declare the bean telling the bytes a thread allocated (ManagementFactory allocates each time it is asked for it).
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+    // Declare the applet classes, the applets installed (the installer first) and the applets being run.
+    private final List<AppletClass> appletClasses = new ArrayList<>();
+    private final List<Entry> applets = new ArrayList<>();
+    private final Entry installer;
+    private Entry selected;
+    private Entry context;
+    private Entry installing;
+    private boolean selecting;
+    private SelectionListener listener;
+
+
+    // Declare the command being processed and its response.
+    private final APDU apdu = new APDU(this);
+    private byte[] response = new byte[APDU.MAXIMUM_OUTPUT + 2];
+    private int responseLength;
+
+
+    // Declare the transient arrays, with their events.
+    private final IdentityHashMap<Object, Byte> transients = new IdentityHashMap<>();
+
+
+    // Declare the transaction open (the copy of the state it puts back on abort), if any.
+    private PersistentImage transaction;
+
+
+    // Declare the counters and the random generator.
+    private long persistentWrites;
+    private long allocatedBytes;
+    private boolean trackingAllocations;
+    private final SplittableRandom random;
+
+
+    public CardRuntime ()
+    {
+        this(System.nanoTime());
+    }
+
+
+    // Create a card with the given seed for the random data of the applets.
+    public CardRuntime (long seed)
+    {
+        random = new SplittableRandom(seed);
+        installer = new Entry(new AID(INSTALLER_AID, (short) 0, (byte) INSTALLER_AID.length), new byte[0], false);
+        installer.applet = new Installer(this);
+        applets.add(installer);
+        selected = installer;
+    }
+
+
+    // Return the runtime of the card the current thread runs a command of, or null.
+    public static CardRuntime getCurrent ()
+    {
+        return current.get();
+    }
+
+
+    static CardRuntime current ()
+    {
+        CardRuntime runtime = current.get();
+
+        if (runtime == null)
+            throw new IllegalStateException("No card runtime on this thread");
+
+        return runtime;
+    }
+
+
+    // Let CREATE install the given applet class (a subclass of Applet, with a static install()) under the given AID.
+    public void addAppletClass (byte[] aid, Class<?> type)
+    {
+        if (!Applet.class.isAssignableFrom(type))
+            throw new IllegalArgumentException(type.getName() + " is not an applet");
+
+        appletClasses.add(new AppletClass(aid.clone(), type));
+    }
+
+
+    public void setSelectionListener (SelectionListener listener)
+    {
+        this.listener = listener;
+    }
+
+
+    public void setAllocationTracking (boolean tracking)
+    {
+        trackingAllocations = tracking;
+    }
+
+
+    // Return the bytes allocated while the applets ran, since the card was created (with the tracking on).
+    public long getAllocatedBytes ()
+    {
+        return allocatedBytes;
+    }
+
+
+    // Return the persistent writes since the card was created.
+    public long getPersistentWrites ()
+    {
+        return persistentWrites;
+    }
+
+
+    // Run the command; return the length of the response (in getResponse()), the status word included.
+    public int process (byte[] command, int offset, int length)
+    {
+        CardRuntime previous = current.get();
+
+        current.set(this);
+        responseLength = 0;
+
+        try
+        {
+            short statusWord = dispatch(command, offset, length);
+
+            ensureResponseCapacity(2);
+            response[responseLength++] = (byte) (statusWord >> 8);
+            response[responseLength++] = (byte) statusWord;
+        }
+        finally
+        {
+            current.set(previous);
+        }
+
+        return responseLength;
+    }
+
+
+    public byte[] getResponse ()
+    {
+        return response;
+    }
+
+
+    // Power the card off and on: the transaction open is aborted, the transient arrays are cleared and the installer is
+    // selected (the applet selected before isn't deselected, as when the card is pulled out).
+    public void reset ()
+    {
+        CardRuntime previous = current.get();
+
+        current.set(this);
+
+        try
+        {
+            if (transaction != null)
+                rollback();
+
+            for (Object array : transients.keySet())
+                clear(array);
+
+            selected = installer;
+        }
+        finally
+        {
+            current.set(previous);
+        }
+    }
+
+
+    // Install an applet (the work of CREATE): its class is the one added for the AID, and its static install() gets the
+    // length of the AID, the AID, and the parameters from their second byte on: [Li][AID][Lc][C][La][A], with the
+    // parameters 0x00 Lc C La A (the first byte is taken by the installer). Return the status word of the install.
+    public short install (byte[] aid, byte[] parameters)
+    {
+        AppletClass appletClass = null;
+
+        for (AppletClass candidate : appletClasses)
+        {
+            if (Arrays.equals(candidate.aid, aid))
+                appletClass = candidate;
+        }
+
+        if (appletClass == null)
+            return SW_APPLET_NOT_FOUND;
+
+        if (lookupAID(aid, (short) 0, (byte) aid.length) != null)
+            return SW_APPLET_EXISTS;
+
+        int parametersLength = Math.max(parameters.length - 1, 0);
+        byte[] installData = new byte[1 + aid.length + parametersLength];
+
+        installData[0] = (byte) aid.length;
+        System.arraycopy(aid, 0, installData, 1, aid.length);
+        System.arraycopy(parameters, parameters.length - parametersLength, installData, 1 + aid.length, parametersLength);
+
+        Entry entry = new Entry(new AID(aid, (short) 0, (byte) aid.length), parameters.clone(), ExtendedLength.class.isAssignableFrom(appletClass.type));
+        CardRuntime previous = current.get();
+        Entry previousContext = context;
+        Entry previousInstalling = installing;
+        short statusWord = ISO7816.SW_NO_ERROR;
+
+        current.set(this);
+        context = entry;
+        installing = entry;
+
+        try
+        {
+            Method install = appletClass.type.getMethod("install", byte[].class, short.class, byte.class);
+
+            install.setAccessible(true);
+            install.invoke(null, installData, (short) 0, (byte) installData.length);
+        }
+        catch (InvocationTargetException e)
+        {
+            statusWord = e.getCause() instanceof ISOException ? ((ISOException) e.getCause()).getReason() : ISO7816.SW_UNKNOWN;
+        }
+        catch (ReflectiveOperationException e)
+        {
+            statusWord = ISO7816.SW_FUNC_NOT_SUPPORTED;
+        }
+        finally
+        {
+            if (transaction != null)
+                rollback();
+
+            current.set(previous);
+            context = previousContext;
+            installing = previousInstalling;
+        }
+
+        // An applet that failed to install (or didn't register) is dropped, with its transient arrays.
+        if (statusWord != ISO7816.SW_NO_ERROR || entry.applet == null)
+        {
+            applets.remove(entry);
+            transients.keySet().removeAll(entry.clearOnDeselect);
+
+            return statusWord != ISO7816.SW_NO_ERROR ? statusWord : ISO7816.SW_UNKNOWN;
+        }
+
+        return ISO7816.SW_NO_ERROR;
+    }
+
+
+    // Return the number of applets installed (the installer left out).
+    public int getAppletCount ()
+    {
+        return applets.size() - 1;
+    }
+
+
+    public Applet getApplet (int index)
+    {
+        return applets.get(index + 1).applet;
+    }
+
+
+    public byte[] getAppletAID (int index)
+    {
+        return getBytes(applets.get(index + 1).aid);
+    }
+
+
+    // Return the parameters of the CREATE that installed the applet.
+    public byte[] getInstallParameters (int index)
+    {
+        return applets.get(index + 1).parameters.clone();
+    }
+
+
+    // Return the AID of the applet selected (the installer included), or null if none is.
+    public byte[] getSelectedAID ()
+    {
+        return selected == null ? null : getBytes(selected.aid);
+    }
+
+
+    // Make the applet with the given AID (or none, for null) the selected one, without calling deselect() or select():
+    // for a card whose applets were given the state of another card, where that applet was selected.
+    public void resumeSelection (byte[] aid)
+    {
+        selected = aid == null ? null : find(aid, 0, aid.length, false);
+
+        if (aid != null && selected == null)
+            throw new IllegalArgumentException("No applet with the AID");
+    }
+
+
+    // Write random bytes (for RandomData).
+    public void generateRandom (byte[] buffer, short offset, short length)
+    {
+        if (offset < 0 || length < 0 || offset + length > buffer.length)
+            throw new ArrayIndexOutOfBoundsException(offset);
+
+        for (int index = offset; index < offset + length; index++)
+            buffer[index] = (byte) random.nextInt(256);
+    }
+
+
+    private short dispatch (byte[] command, int offset, int length)
+    {
+        if (!APDU.parse(command, offset, length))
+            return ISO7816.SW_WRONG_LENGTH;
+
+        // SELECT by AID (short): the applet with the AID, or the first one whose AID starts with it.
+        if (length >= 5 && command[offset] == ISO7816.CLA_ISO7816 && command[offset + ISO7816.OFFSET_INS] == ISO7816.INS_SELECT
+                && command[offset + ISO7816.OFFSET_P1] == 0x04 && !APDU.isExtended(command, offset, length))
+        {
+            int aidLength = command[offset + ISO7816.OFFSET_LC] & 0xFF;
+
+            if (length >= 5 + aidLength && aidLength >= AID.MINIMUM_LENGTH && aidLength <= AID.MAXIMUM_LENGTH)
+            {
+                Entry target = find(command, offset + 5, aidLength, false);
+
+                if (target == null)
+                    target = find(command, offset + 5, aidLength, true);
+
+                if (target != null)
+                    return select(target, command, offset, length);
+            }
+        }
+
+        if (selected == null)
+            return ISO7816.SW_APPLET_SELECT_FAILED;
+
+        return run(selected, command, offset, length, false);
+    }
+
+
+    // Deselect the selected applet and select the target; if it accepts, it processes the SELECT.
+    private short select (Entry target, byte[] command, int offset, int length)
+    {
+        if (selected != null)
+        {
+            Entry deselected = selected;
+
+            selected = null;
+            context = deselected;
+
+            long allocated = getThreadAllocatedBytes();
+
+            try
+            {
+                deselected.applet.deselect();
+            }
+            catch (RuntimeException e)
+            {
+                // A failure of deselect() doesn't stop the selection.
+            }
+            finally
+            {
+                endCallback(allocated);
+            }
+
+            for (Object array : deselected.clearOnDeselect)
+                clear(array);
+
+            if (listener != null)
+                listener.deselected(deselected.applet);
+        }
+
+        if (listener != null)
+            listener.selecting(target.applet);
+
+        context = target;
+
+        long allocated = getThreadAllocatedBytes();
+        boolean accepted;
+
+        try
+        {
+            accepted = target.applet.select();
+        }
+        catch (RuntimeException e)
+        {
+            accepted = false;
+        }
+        finally
+        {
+            endCallback(allocated);
+        }
+
+        if (!accepted)
+            return ISO7816.SW_APPLET_SELECT_FAILED;
+
+        selected = target;
+
+        return run(target, command, offset, length, true);
+    }
+
+
+    // Let the applet process the command; return the status word.
+    private short run (Entry entry, byte[] command, int offset, int length, boolean selectingApplet)
+    {
+        if (APDU.isExtended(command, offset, length) && !entry.extended)
+            return ISO7816.SW_WRONG_LENGTH;
+
+        apdu.begin(command, offset, length, entry.extended);
+        context = entry;
+        selecting = selectingApplet;
+
+        long allocated = getThreadAllocatedBytes();
+
+        try
+        {
+            entry.applet.process(apdu);
+
+            return ISO7816.SW_NO_ERROR;
+        }
+        catch (ISOException e)
+        {
+            return e.getReason();
+        }
+        catch (RuntimeException e)
+        {
+            return ISO7816.SW_UNKNOWN;
+        }
+        finally
+        {
+            selecting = false;
+            endCallback(allocated);
+        }
+    }
+
+
+    // After a callback of an applet: abort the transaction left open, count the allocations, leave the context.
+    private void endCallback (long allocated)
+    {
+        if (transaction != null)
+            rollback();
+
+        if (trackingAllocations)
+            allocatedBytes += getThreadAllocatedBytes() - allocated;
+
+        context = null;
+    }
+
+
+    private long getThreadAllocatedBytes ()
+    {
+        if (!trackingAllocations)
+            return 0;
+
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+
+
+    // Return the applet with the AID (or, with prefix, whose AID starts with the bytes), or null.
+    private Entry find (byte[] buffer, int offset, int length, boolean prefix)
+    {
+        for (Entry entry : applets)
+        {
+            if (prefix ? entry.aid.partialEquals(buffer, (short) offset, (byte) length) : entry.aid.equals(buffer, (short) offset, (byte) length))
+                return entry;
+        }
+
+        return null;
+    }
+
+
+    private static byte[] getBytes (AID aid)
+    {
+        byte[] bytes = new byte[AID.MAXIMUM_LENGTH];
+
+        return Arrays.copyOf(bytes, aid.getBytes(bytes, (short) 0));
+    }
+
+
+    private void ensureResponseCapacity (int length)
+    {
+        if (responseLength + length > response.length)
+            response = Arrays.copyOf(response, Math.max(response.length * 2, responseLength + length));
+    }
+
+
+    private static void clear (Object array)
+    {
+        if (array instanceof byte[])
+            Arrays.fill((byte[]) array, (byte) 0);
+        else if (array instanceof short[])
+            Arrays.fill((short[]) array, (short) 0);
+        else if (array instanceof boolean[])
+            Arrays.fill((boolean[]) array, false);
+        else
+            Arrays.fill((Object[]) array, null);
+    }
+
+
+    // Register the applet being installed, under the AID of the CREATE or the given one.
+    void register (Applet applet, AID aid)
+    {
+        if (installing == null || installing.applet != null)
+            SystemException.throwIt(SystemException.ILLEGAL_AID);
+
+        if (aid != null && !aid.equals(installing.aid))
+        {
+            byte[] bytes = getBytes(aid);
+
+            if (lookupAID(bytes, (short) 0, (byte) bytes.length) != null)
+                SystemException.throwIt(SystemException.ILLEGAL_AID);
+
+            installing.aid = aid;
+        }
+
+        installing.applet = applet;
+        applets.add(installing);
+    }
+
+
+    boolean isSelectingApplet ()
+    {
+        return selecting;
+    }
+
+
+    APDU getAPDU ()
+    {
+        return apdu;
+    }
+
+
+    AID getContextAID ()
+    {
+        return context == null ? null : context.aid;
+    }
+
+
+    AID lookupAID (byte[] buffer, short offset, byte length)
+    {
+        Entry entry = find(buffer, offset, length, false);
+
+        return entry == null || entry == installer ? null : entry.aid;
+    }
+
+
+    // Add the output to the response.
+    void respond (byte[] data, short offset, short length)
+    {
+        ensureResponseCapacity(length);
+        System.arraycopy(data, offset, response, responseLength, length);
+        responseLength += length;
+    }
+
+
+    // Make the array transient: cleared on reset, or when the applet being run (its owner) is deselected.
+    <T> T makeTransient (T array, byte event)
+    {
+        if (event == JCSystem.CLEAR_ON_DESELECT)
+        {
+            if (context == null)
+                SystemException.throwIt(SystemException.ILLEGAL_TRANSIENT);
+
+            context.clearOnDeselect.add(array);
+        }
+        else if (event != JCSystem.CLEAR_ON_RESET)
+            SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+
+        transients.put(array, event);
+
+        return array;
+    }
+
+
+    byte getTransientEvent (Object object)
+    {
+        Byte event = transients.get(object);
+
+        return event == null ? JCSystem.NOT_A_TRANSIENT_OBJECT : event;
+    }
+
+
+    // Count the write of bytes of the array; a non-atomic write in a transaction is kept by an abort.
+    void written (Object array, int offset, int length, boolean atomic)
+    {
+        if (transients.containsKey(array))
+            return;
+
+        if (transaction == null)
+            persistentWrites++;
+        else if (!atomic)
+        {
+            persistentWrites++;
+            transaction.written(array, offset, length);
+        }
+    }
+
+
+    // Begin a transaction: copy the persistent state of the applet being run.
+    void beginTransaction ()
+    {
+        if (transaction != null)
+            TransactionException.throwIt(TransactionException.IN_PROGRESS);
+
+        // The applet must be registered (a transaction can't be begun before register() in install()).
+        if (context == null || context.applet == null)
+            TransactionException.throwIt(TransactionException.INTERNAL_FAILURE);
+
+        if (context.image == null || !context.image.capture())
+        {
+            context.image = new PersistentImage(this, context.applet);
+            context.image.capture();
+        }
+
+        transaction = context.image;
+    }
+
+
+    void commitTransaction ()
+    {
+        if (transaction == null)
+            TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+
+        transaction = null;
+        persistentWrites++;
+    }
+
+
+    void abortTransaction ()
+    {
+        if (transaction == null)
+            TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+
+        rollback();
+    }
+
+
+    byte getTransactionDepth ()
+    {
+        return (byte) (transaction == null ? 0 : 1);
+    }
+
+
+    private void rollback ()
+    {
+        transaction.restore();
+        transaction = null;
+    }
+}
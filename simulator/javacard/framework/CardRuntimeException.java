@@ -0,0 +1,45 @@
+package javacard.framework;
+
+
+
+// Base of the exceptions of the runtime: a reason code instead of a message. Like the instances the card owns, the one
+// thrown by throwIt() is reused (one per thread here, since the cards of a simulator run on many threads) and has no
+// stack trace, so throwing allocates nothing.
+public class CardRuntimeException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+
+    private static final ThreadLocal<CardRuntimeException> systemInstance = ThreadLocal.withInitial(() -> new CardRuntimeException((short) 0));
+
+
+    private short reason;
+
+
+    public CardRuntimeException (short reason)
+    {
+        super(null, null, false, false);
+        this.reason = reason;
+    }
+
+
+    public short getReason ()
+    {
+        return reason;
+    }
+
+
+    public void setReason (short reason)
+    {
+        this.reason = reason;
+    }
+
+
+    public static void throwIt (short reason) throws CardRuntimeException
+    {
+        CardRuntimeException exception = systemInstance.get();
+
+        exception.setReason(reason);
+        throw exception;
+    }
+}
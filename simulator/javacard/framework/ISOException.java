@@ -0,0 +1,27 @@
+package javacard.framework;
+
+
+
+// Exception carrying the status word of the response: the runtime answers the command with its reason.
+public class ISOException extends CardRuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+
+    private static final ThreadLocal<ISOException> systemInstance = ThreadLocal.withInitial(() -> new ISOException((short) 0));
+
+
+    public ISOException (short reason)
+    {
+        super(reason);
+    }
+
+
+    public static void throwIt (short reason) throws ISOException
+    {
+        ISOException exception = systemInstance.get();
+
+        exception.setReason(reason);
+        throw exception;
+    }
+}
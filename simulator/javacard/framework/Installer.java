@@ -0,0 +1,56 @@
+package javacard.framework;
+
+import java.util.Arrays;
+
+
+
+// The installer of the card, selected at power up: CREATE (CLA 0x80, INS 0xB8) installs an applet.
+// Data of CREATE: length of the AID, AID, length of the parameters, parameters (see CardRuntime.install()).
+final class Installer extends Applet
+{
+    // Define the codes of the command.
+    static final byte CLA_INSTALLER							= (byte) 0x80;
+    static final byte INS_CREATE							= (byte) 0xB8;
+
+
+    private final CardRuntime runtime;
+
+
+    Installer (CardRuntime runtime)
+    {
+        this.runtime = runtime;
+    }
+
+
+    @Override
+    public void process (APDU apdu)
+    {
+        if (selectingApplet())
+            return;
+
+        byte[] buffer = apdu.getBuffer();
+
+        if (buffer[ISO7816.OFFSET_CLA] != CLA_INSTALLER)
+            ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+
+        if (buffer[ISO7816.OFFSET_INS] != INS_CREATE)
+            ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+
+        short length = apdu.setIncomingAndReceive();
+        short offset = apdu.getOffsetCdata();
+
+        // Check the lengths of the AID and of the parameters against the data.
+        byte aidLength = length > 0 ? buffer[offset] : 0;
+
+        if (aidLength < AID.MINIMUM_LENGTH || aidLength > AID.MAXIMUM_LENGTH || 2 + aidLength > length
+                || 2 + aidLength + (buffer[offset + 1 + aidLength] & 0xFF) != length)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+        byte[] aid = Arrays.copyOfRange(buffer, offset + 1, offset + 1 + aidLength);
+        byte[] parameters = Arrays.copyOfRange(buffer, offset + 2 + aidLength, offset + length);
+        short statusWord = runtime.install(aid, parameters);
+
+        if (statusWord != ISO7816.SW_NO_ERROR)
+            ISOException.throwIt(statusWord);
+    }
+}
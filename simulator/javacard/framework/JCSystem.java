@@ -0,0 +1,120 @@
+package javacard.framework;
+
+
+
+// The services of the runtime to the applets: transient arrays, transactions and the AIDs of the applets.
+public final class JCSystem
+{
+    // Define the kinds of transient arrays (the events that clear them).
+    public static final byte NOT_A_TRANSIENT_OBJECT			= 0;
+    public static final byte CLEAR_ON_RESET					= 1;
+    public static final byte CLEAR_ON_DESELECT				= 2;
+
+
+    // Define the version of the API (3.0).
+    static final short API_VERSION							= 0x0300;
+
+
+    private JCSystem ()
+    {
+    }
+
+
+    public static byte[] makeTransientByteArray (short length, byte event) throws NegativeArraySizeException, SystemException
+    {
+        return CardRuntime.current().makeTransient(new byte[length], event);
+    }
+
+
+    public static short[] makeTransientShortArray (short length, byte event) throws NegativeArraySizeException, SystemException
+    {
+        return CardRuntime.current().makeTransient(new short[length], event);
+    }
+
+
+    public static boolean[] makeTransientBooleanArray (short length, byte event) throws NegativeArraySizeException, SystemException
+    {
+        return CardRuntime.current().makeTransient(new boolean[length], event);
+    }
+
+
+    public static Object[] makeTransientObjectArray (short length, byte event) throws NegativeArraySizeException, SystemException
+    {
+        return CardRuntime.current().makeTransient(new Object[length], event);
+    }
+
+
+    public static byte isTransient (Object theObj)
+    {
+        return CardRuntime.current().getTransientEvent(theObj);
+    }
+
+
+    public static void beginTransaction () throws TransactionException
+    {
+        CardRuntime.current().beginTransaction();
+    }
+
+
+    public static void commitTransaction () throws TransactionException
+    {
+        CardRuntime.current().commitTransaction();
+    }
+
+
+    public static void abortTransaction () throws TransactionException
+    {
+        CardRuntime.current().abortTransaction();
+    }
+
+
+    public static byte getTransactionDepth ()
+    {
+        return CardRuntime.current().getTransactionDepth();
+    }
+
+
+    // The transaction keeps a copy of the whole persistent state of the applet, so its capacity has no limit.
+    public static short getUnusedCommitCapacity ()
+    {
+        return Short.MAX_VALUE;
+    }
+
+
+    public static short getMaxCommitCapacity ()
+    {
+        return Short.MAX_VALUE;
+    }
+
+
+    // Return the AID of the applet being run (being installed, selected or processing a command).
+    public static AID getAID ()
+    {
+        return CardRuntime.current().getContextAID();
+    }
+
+
+    // Return the AID of the applet with the given AID bytes, or null if there is none.
+    public static AID lookupAID (byte[] buffer, short offset, byte length)
+    {
+        return CardRuntime.current().lookupAID(buffer, offset, length);
+    }
+
+
+    public static short getVersion ()
+    {
+        return API_VERSION;
+    }
+
+
+    public static boolean isObjectDeletionSupported ()
+    {
+        return false;
+    }
+
+
+    public static void requestObjectDeletion () throws SystemException
+    {
+        SystemException.throwIt(SystemException.ILLEGAL_USE);
+    }
+}
@@ -0,0 +1,114 @@
+package javacard.framework;
+
+
+
+// PIN owned by the applet: the value and the try counter are persistent, the validated flag is transient (cleared on
+// reset). The try counter is written outside of the transaction, so aborting one doesn't give back the tries.
+public class OwnerPIN implements PIN
+{
+    // Define the positions in the state of the PIN.
+    private static final short TRIES_REMAINING				= 0;
+    private static final short SIZE							= 1;
+    private static final short STATE_SIZE					= 2;
+
+
+    private byte tryLimit;
+    private byte maximumSize;
+    private final byte[] value;
+    private final byte[] state;
+    private final boolean[] validated;
+
+
+    public OwnerPIN (byte tryLimit, byte maxPINSize) throws PINException
+    {
+        if (tryLimit < 1 || maxPINSize < 1)
+            PINException.throwIt(PINException.ILLEGAL_VALUE);
+
+        this.tryLimit = tryLimit;
+        this.maximumSize = maxPINSize;
+
+        value = new byte[maxPINSize];
+        state = new byte[STATE_SIZE];
+        state[TRIES_REMAINING] = tryLimit;
+        validated = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    }
+
+
+    protected boolean getValidatedFlag ()
+    {
+        return validated[0];
+    }
+
+
+    protected void setValidatedFlag (boolean value)
+    {
+        validated[0] = value;
+    }
+
+
+    @Override
+    public byte getTriesRemaining ()
+    {
+        return state[TRIES_REMAINING];
+    }
+
+
+    // Compare the PIN with the given one, after taking a try (none left - false right away); a match gives back the tries.
+    @Override
+    public boolean check (byte[] pin, short offset, byte length) throws ArrayIndexOutOfBoundsException, NullPointerException
+    {
+        setValidatedFlag(false);
+
+        if (state[TRIES_REMAINING] == 0)
+            return false;
+
+        Util.arrayFillNonAtomic(state, TRIES_REMAINING, (short) 1, (byte) (state[TRIES_REMAINING] - 1));
+
+        if (length != state[SIZE] || Util.arrayCompare(pin, offset, value, (short) 0, length) != 0)
+            return false;
+
+        setValidatedFlag(true);
+        Util.arrayFillNonAtomic(state, TRIES_REMAINING, (short) 1, tryLimit);
+
+        return true;
+    }
+
+
+    @Override
+    public boolean isValidated ()
+    {
+        return getValidatedFlag();
+    }
+
+
+    // Clear the validated flag, and give back the tries if it was set.
+    @Override
+    public void reset ()
+    {
+        if (!isValidated())
+            return;
+
+        setValidatedFlag(false);
+        Util.arrayFillNonAtomic(state, TRIES_REMAINING, (short) 1, tryLimit);
+    }
+
+
+    // Set a new value, with all the tries and not validated.
+    public void update (byte[] pin, short offset, byte length) throws PINException
+    {
+        if (length < 0 || length > maximumSize)
+            PINException.throwIt(PINException.ILLEGAL_VALUE);
+
+        Util.arrayCopy(pin, offset, value, (short) 0, length);
+        state[SIZE] = length;
+        setValidatedFlag(false);
+        Util.arrayFillNonAtomic(state, TRIES_REMAINING, (short) 1, tryLimit);
+    }
+
+
+    public void resetAndUnblock ()
+    {
+        setValidatedFlag(false);
+        Util.arrayFillNonAtomic(state, TRIES_REMAINING, (short) 1, tryLimit);
+    }
+}
@@ -0,0 +1,15 @@
+package javacard.framework;
+
+
+
+// A PIN with a try counter and a flag set while it is validated.
+public interface PIN
+{
+    boolean check (byte[] pin, short offset, byte length) throws ArrayIndexOutOfBoundsException, NullPointerException;
+
+    byte getTriesRemaining ();
+
+    boolean isValidated ();
+
+    void reset ();
+}
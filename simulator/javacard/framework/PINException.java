@@ -0,0 +1,31 @@
+package javacard.framework;
+
+
+
+// Exception of OwnerPIN: a PIN longer than its maximum size, or a try limit or a size below 1.
+public class PINException extends CardRuntimeException
+{
+    // Define the reasons.
+    public static final short ILLEGAL_VALUE					= 1;
+
+
+    private static final long serialVersionUID = 1L;
+
+
+    private static final ThreadLocal<PINException> systemInstance = ThreadLocal.withInitial(() -> new PINException((short) 0));
+
+
+    public PINException (short reason)
+    {
+        super(reason);
+    }
+
+
+    public static void throwIt (short reason) throws PINException
+    {
+        PINException exception = systemInstance.get();
+
+        exception.setReason(reason);
+        throw exception;
+    }
+}
@@ -0,0 +1,254 @@
+package javacard.framework;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+
+
+// Copy of the persistent state an applet reaches from its fields (its PINs, keys, ciphers, arrays...), taken when the
+// applet begins a transaction and put back when the transaction is aborted. The objects are followed through their fields
+// and through the object arrays; the transient arrays, the final fields (they can't change) and the static fields are
+// left out. The copies are kept for the next transactions, as long as the applet keeps the same objects in its fields.
+final class PersistentImage
+{
+    // Declare the persistent arrays and their copies.
+    private final Object[] arrays;
+    private final Object[] copies;
+    private final IdentityHashMap<Object, Object> copyOf = new IdentityHashMap<>();
+
+
+    // Declare the fields of primitive types that can change, their objects and the values copied.
+    private final Object[] owners;
+    private final Field[] fields;
+    private final long[] values;
+
+
+    // Declare the fields of object types that can change, their objects and the objects copied.
+    private final Object[] referenceOwners;
+    private final Field[] referenceFields;
+    private final Object[] references;
+
+
+    // Find the state reached from the applet.
+    PersistentImage (CardRuntime runtime, Object applet)
+    {
+        List<Object> arrayList = new ArrayList<>();
+        List<Object> ownerList = new ArrayList<>();
+        List<Field> fieldList = new ArrayList<>();
+        List<Object> referenceOwnerList = new ArrayList<>();
+        List<Field> referenceFieldList = new ArrayList<>();
+        IdentityHashMap<Object, Object> visited = new IdentityHashMap<>();
+        Deque<Object> pending = new ArrayDeque<>();
+
+        pending.push(applet);
+        visited.put(applet, applet);
+
+        while (!pending.isEmpty())
+        {
+            Object object = pending.pop();
+            Class<?> type = object.getClass();
+
+            if (type.isArray())
+            {
+                if (runtime.getTransientEvent(object) == JCSystem.NOT_A_TRANSIENT_OBJECT)
+                    arrayList.add(object);
+
+                if (object instanceof Object[])
+                {
+                    for (Object element : (Object[]) object)
+                        follow(element, visited, pending);
+                }
+
+                continue;
+            }
+
+            for (; type != Object.class; type = type.getSuperclass())
+            {
+                for (Field field : type.getDeclaredFields())
+                {
+                    int modifiers = field.getModifiers();
+
+                    if (Modifier.isStatic(modifiers) || field.isSynthetic())
+                        continue;
+
+                    field.setAccessible(true);
+
+                    if (!field.getType().isPrimitive())
+                        follow(get(field, object), visited, pending);
+
+                    if (Modifier.isFinal(modifiers))
+                        continue;
+
+                    if (field.getType().isPrimitive())
+                    {
+                        ownerList.add(object);
+                        fieldList.add(field);
+                    }
+                    else
+                    {
+                        referenceOwnerList.add(object);
+                        referenceFieldList.add(field);
+                    }
+                }
+            }
+        }
+
+        arrays = arrayList.toArray();
+        copies = new Object[arrays.length];
+
+        for (int index = 0; index < arrays.length; index++)
+        {
+            copies[index] = copy(arrays[index]);
+            copyOf.put(arrays[index], copies[index]);
+        }
+
+        owners = ownerList.toArray();
+        fields = fieldList.toArray(new Field[0]);
+        values = new long[fields.length];
+        referenceOwners = referenceOwnerList.toArray();
+        referenceFields = referenceFieldList.toArray(new Field[0]);
+        references = new Object[referenceFields.length];
+
+        for (int index = 0; index < referenceFields.length; index++)
+            references[index] = get(referenceFields[index], referenceOwners[index]);
+    }
+
+
+    // Copy the state; return false (and copy nothing) if the applet reaches other objects than when the image was made.
+    boolean capture ()
+    {
+        for (int index = 0; index < referenceFields.length; index++)
+        {
+            if (get(referenceFields[index], referenceOwners[index]) != references[index])
+                return false;
+        }
+
+        for (int index = 0; index < arrays.length; index++)
+        {
+            if (arrays[index] instanceof Object[] && !Arrays.equals((Object[]) arrays[index], (Object[]) copies[index], (one, other) -> one == other ? 0 : 1))
+                return false;
+        }
+
+        for (int index = 0; index < arrays.length; index++)
+            System.arraycopy(arrays[index], 0, copies[index], 0, Array.getLength(arrays[index]));
+
+        for (int index = 0; index < fields.length; index++)
+            values[index] = getValue(fields[index], owners[index]);
+
+        return true;
+    }
+
+
+    // Put back the state copied.
+    void restore ()
+    {
+        for (int index = 0; index < arrays.length; index++)
+            System.arraycopy(copies[index], 0, arrays[index], 0, Array.getLength(arrays[index]));
+
+        try
+        {
+            for (int index = 0; index < fields.length; index++)
+                setValue(fields[index], owners[index], values[index]);
+
+            for (int index = 0; index < referenceFields.length; index++)
+                referenceFields[index].set(referenceOwners[index], references[index]);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    // Write bytes written outside of the transaction to the copy as well, so an abort keeps them.
+    void written (Object array, int offset, int length)
+    {
+        Object copy = copyOf.get(array);
+
+        if (copy != null)
+            System.arraycopy(array, offset, copy, offset, length);
+    }
+
+
+    private static void follow (Object object, IdentityHashMap<Object, Object> visited, Deque<Object> pending)
+    {
+        if (object == null || visited.containsKey(object))
+            return;
+
+        // The objects of the JDK (the Class objects, the strings...) and the APDU are not state of the applet.
+        String name = object.getClass().getName();
+
+        if (!object.getClass().isArray() && (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.")
+                || name.startsWith("sun.") || object instanceof APDU || object instanceof CardRuntime))
+            return;
+
+        visited.put(object, object);
+        pending.push(object);
+    }
+
+
+    private static Object copy (Object array)
+    {
+        int length = Array.getLength(array);
+        Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+
+        System.arraycopy(array, 0, copy, 0, length);
+
+        return copy;
+    }
+
+
+    private static Object get (Field field, Object owner)
+    {
+        try
+        {
+            return field.get(owner);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static long getValue (Field field, Object owner)
+    {
+        try
+        {
+            if (field.getType() == boolean.class)
+                return field.getBoolean(owner) ? 1 : 0;
+
+            return field.getLong(owner);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static void setValue (Field field, Object owner, long value) throws IllegalAccessException
+    {
+        Class<?> type = field.getType();
+
+        if (type == boolean.class)
+            field.setBoolean(owner, value != 0);
+        else if (type == byte.class)
+            field.setByte(owner, (byte) value);
+        else if (type == short.class)
+            field.setShort(owner, (short) value);
+        else if (type == char.class)
+            field.setChar(owner, (char) value);
+        else if (type == int.class)
+            field.setInt(owner, (int) value);
+        else
+            field.setLong(owner, value);
+    }
+}
@@ -0,0 +1,8 @@
+package javacard.framework;
+
+
+
+// Marks the interfaces an applet shares with the applets of other packages.
+public interface Shareable
+{
+}
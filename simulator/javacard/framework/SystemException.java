@@ -0,0 +1,36 @@
+package javacard.framework;
+
+
+
+// Exception of the runtime: a value out of range, an AID already in use, a call out of place.
+public class SystemException extends CardRuntimeException
+{
+    // Define the reasons.
+    public static final short ILLEGAL_VALUE					= 1;
+    public static final short NO_TRANSIENT_SPACE			= 2;
+    public static final short ILLEGAL_TRANSIENT				= 3;
+    public static final short ILLEGAL_AID					= 4;
+    public static final short NO_RESOURCE					= 5;
+    public static final short ILLEGAL_USE					= 6;
+
+
+    private static final long serialVersionUID = 1L;
+
+
+    private static final ThreadLocal<SystemException> systemInstance = ThreadLocal.withInitial(() -> new SystemException((short) 0));
+
+
+    public SystemException (short reason)
+    {
+        super(reason);
+    }
+
+
+    public static void throwIt (short reason) throws SystemException
+    {
+        SystemException exception = systemInstance.get();
+
+        exception.setReason(reason);
+        throw exception;
+    }
+}
@@ -0,0 +1,34 @@
+package javacard.framework;
+
+
+
+// Exception of the transactions: a transaction begun inside another, or ended when none is open.
+public class TransactionException extends CardRuntimeException
+{
+    // Define the reasons.
+    public static final short IN_PROGRESS					= 1;
+    public static final short NOT_IN_PROGRESS				= 2;
+    public static final short BUFFER_FULL					= 3;
+    public static final short INTERNAL_FAILURE				= 4;
+
+
+    private static final long serialVersionUID = 1L;
+
+
+    private static final ThreadLocal<TransactionException> systemInstance = ThreadLocal.withInitial(() -> new TransactionException((short) 0));
+
+
+    public TransactionException (short reason)
+    {
+        super(reason);
+    }
+
+
+    public static void throwIt (short reason) throws TransactionException
+    {
+        TransactionException exception = systemInstance.get();
+
+        exception.setReason(reason);
+        throw exception;
+    }
+}
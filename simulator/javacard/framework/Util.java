@@ -0,0 +1,101 @@
+package javacard.framework;
+
+
+
+// Copies, fills and compares of arrays, and the shorts in byte arrays (big endian). The copies to persistent arrays are
+// counted by the runtime of the card; the non-atomic ones are written through an open transaction (an abort keeps them).
+public class Util
+{
+    private Util ()
+    {
+    }
+
+
+    // Copy the bytes as a whole: inside a transaction they are part of it.
+    public static final short arrayCopy (byte[] src, short srcOff, byte[] dest, short destOff, short length)
+            throws ArrayIndexOutOfBoundsException, NullPointerException, TransactionException
+    {
+        System.arraycopy(src, srcOff, dest, destOff, length);
+        written(dest, destOff, length, true);
+
+        return (short) (destOff + length);
+    }
+
+
+    public static final short arrayCopyNonAtomic (byte[] src, short srcOff, byte[] dest, short destOff, short length)
+            throws ArrayIndexOutOfBoundsException, NullPointerException
+    {
+        System.arraycopy(src, srcOff, dest, destOff, length);
+        written(dest, destOff, length, false);
+
+        return (short) (destOff + length);
+    }
+
+
+    public static final short arrayFillNonAtomic (byte[] bArray, short bOff, short bLen, byte bValue)
+            throws ArrayIndexOutOfBoundsException, NullPointerException
+    {
+        if (bLen < 0 || bOff < 0 || bOff + bLen > bArray.length)
+            throw new ArrayIndexOutOfBoundsException(bOff);
+
+        for (int index = bOff; index < bOff + bLen; index++)
+            bArray[index] = bValue;
+
+        written(bArray, bOff, bLen, false);
+
+        return (short) (bOff + bLen);
+    }
+
+
+    // Compare the bytes (signed); return 0 if they are equal, -1 if the first difference is lower in src, 1 if it is higher.
+    public static final byte arrayCompare (byte[] src, short srcOff, byte[] dest, short destOff, short length)
+            throws ArrayIndexOutOfBoundsException, NullPointerException
+    {
+        if (length < 0 || srcOff < 0 || destOff < 0 || srcOff + length > src.length || destOff + length > dest.length)
+            throw new ArrayIndexOutOfBoundsException(length);
+
+        for (int index = 0; index < length; index++)
+        {
+            if (src[srcOff + index] != dest[destOff + index])
+                return (byte) (src[srcOff + index] < dest[destOff + index] ? -1 : 1);
+        }
+
+        return 0;
+    }
+
+
+    public static final short makeShort (byte b1, byte b2)
+    {
+        return (short) (((b1 & 0xFF) << 8) | (b2 & 0xFF));
+    }
+
+
+    public static final short getShort (byte[] bArray, short bOff) throws NullPointerException, ArrayIndexOutOfBoundsException
+    {
+        return makeShort(bArray[bOff], bArray[bOff + 1]);
+    }
+
+
+    public static final short setShort (byte[] bArray, short bOff, short sValue) throws TransactionException, NullPointerException,
+            ArrayIndexOutOfBoundsException
+    {
+        if (bOff < 0 || bOff + 2 > bArray.length)
+            throw new ArrayIndexOutOfBoundsException(bOff);
+
+        bArray[bOff] = (byte) (sValue >> 8);
+        bArray[bOff + 1] = (byte) sValue;
+        written(bArray, bOff, (short) 2, true);
+
+        return (short) (bOff + 2);
+    }
+
+
+    // Tell the runtime of the card (if any: the arrays can be used outside of one) that the bytes were written.
+    private static void written (byte[] array, short offset, short length, boolean atomic)
+    {
+        CardRuntime runtime = CardRuntime.getCurrent();
+
+        if (runtime != null)
+            runtime.written(array, offset, length, atomic);
+    }
+}
@@ -0,0 +1,85 @@
+package javacard.security;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+
+
+// AES key in a byte array, persistent or transient (cleared on deselect or on reset) as its type says, like the flag
+// telling that it is set.
+final class AESKeyImpl implements AESKey
+{
+    private byte type;
+    private short size;
+    private final byte[] data;
+    private final boolean[] initialized;
+
+
+    AESKeyImpl (byte type, short size)
+    {
+        this.type = type;
+        this.size = size;
+
+        if (type == KeyBuilder.TYPE_AES)
+        {
+            data = new byte[size / 8];
+            initialized = new boolean[1];
+        }
+        else
+        {
+            byte event = type == KeyBuilder.TYPE_AES_TRANSIENT_DESELECT ? JCSystem.CLEAR_ON_DESELECT : JCSystem.CLEAR_ON_RESET;
+
+            data = JCSystem.makeTransientByteArray((short) (size / 8), event);
+            initialized = JCSystem.makeTransientBooleanArray((short) 1, event);
+        }
+    }
+
+
+    @Override
+    public void setKey (byte[] keyData, short kOff)
+    {
+        Util.arrayCopy(keyData, kOff, data, (short) 0, (short) data.length);
+        initialized[0] = true;
+    }
+
+
+    @Override
+    public byte getKey (byte[] keyData, short kOff)
+    {
+        if (!initialized[0])
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+
+        Util.arrayCopyNonAtomic(data, (short) 0, keyData, kOff, (short) data.length);
+
+        return (byte) data.length;
+    }
+
+
+    @Override
+    public void clearKey ()
+    {
+        Util.arrayFillNonAtomic(data, (short) 0, (short) data.length, (byte) 0);
+        initialized[0] = false;
+    }
+
+
+    @Override
+    public boolean isInitialized ()
+    {
+        return initialized[0];
+    }
+
+
+    @Override
+    public short getSize ()
+    {
+        return size;
+    }
+
+
+    @Override
+    public byte getType ()
+    {
+        return type;
+    }
+}
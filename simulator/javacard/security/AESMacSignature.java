@@ -0,0 +1,128 @@
+package javacard.security;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacardx.crypto.Cipher;
+
+
+
+// AES CBC-MAC without padding: the last block of the AES-CBC encryption of the data (a multiple of 16 bytes).
+// The data may come in pieces with update(); sign() and verify() start the next MAC over.
+final class AESMacSignature extends Signature
+{
+    // Define the size of the MAC.
+    private static final short BLOCK_SIZE					= 16;
+
+
+    private final Cipher cipher;
+    private final byte[] block;
+    private byte mode;
+    private boolean empty;
+
+
+    AESMacSignature ()
+    {
+        cipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        block = JCSystem.makeTransientByteArray(BLOCK_SIZE, JCSystem.CLEAR_ON_RESET);
+    }
+
+
+    @Override
+    public void init (Key theKey, byte theMode)
+    {
+        checkMode(theMode);
+        cipher.init(theKey, Cipher.MODE_ENCRYPT);
+        start(theMode);
+    }
+
+
+    @Override
+    public void init (Key theKey, byte theMode, byte[] bArray, short bOff, short bLen)
+    {
+        checkMode(theMode);
+        cipher.init(theKey, Cipher.MODE_ENCRYPT, bArray, bOff, bLen);
+        start(theMode);
+    }
+
+
+    @Override
+    public byte getAlgorithm ()
+    {
+        return ALG_AES_MAC_128_NOPAD;
+    }
+
+
+    @Override
+    public short getLength ()
+    {
+        return BLOCK_SIZE;
+    }
+
+
+    // Encrypt the data, at most a block at a time, keeping only the last block of output.
+    @Override
+    public void update (byte[] inBuff, short inOffset, short inLength)
+    {
+        if (mode == 0)
+            CryptoException.throwIt(CryptoException.INVALID_INIT);
+
+        for (short done = 0; done < inLength; done += BLOCK_SIZE)
+            cipher.update(inBuff, (short) (inOffset + done), (short) Math.min(BLOCK_SIZE, inLength - done), block, (short) 0);
+
+        if (inLength > 0)
+            empty = false;
+    }
+
+
+    @Override
+    public short sign (byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset)
+    {
+        if (mode != MODE_SIGN)
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+
+        finish(inBuff, inOffset, inLength);
+        Util.arrayCopyNonAtomic(block, (short) 0, sigBuff, sigOffset, BLOCK_SIZE);
+
+        return BLOCK_SIZE;
+    }
+
+
+    @Override
+    public boolean verify (byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset, short sigLength)
+    {
+        if (mode != MODE_VERIFY)
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+
+        finish(inBuff, inOffset, inLength);
+
+        return sigLength == BLOCK_SIZE && Util.arrayCompare(block, (short) 0, sigBuff, sigOffset, BLOCK_SIZE) == 0;
+    }
+
+
+    // Encrypt the last data; the whole data must be a non-empty multiple of the block size.
+    private void finish (byte[] inBuff, short inOffset, short inLength)
+    {
+        update(inBuff, inOffset, inLength);
+
+        if (empty)
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+
+        // doFinal() checks that no partial block is left, and starts the chaining over.
+        cipher.doFinal(inBuff, inOffset, (short) 0, block, BLOCK_SIZE);
+        empty = true;
+    }
+
+
+    private void start (byte theMode)
+    {
+        mode = theMode;
+        empty = true;
+    }
+
+
+    private static void checkMode (byte theMode)
+    {
+        if (theMode != MODE_SIGN && theMode != MODE_VERIFY)
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+}
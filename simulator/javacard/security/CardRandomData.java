@@ -0,0 +1,47 @@
+package javacard.security;
+
+import javacard.framework.CardRuntime;
+
+
+
+// Random data from the generator of the card running the applet.
+final class CardRandomData extends RandomData
+{
+    private byte algorithm;
+
+
+    CardRandomData (byte algorithm)
+    {
+        this.algorithm = algorithm;
+    }
+
+
+    @Override
+    public void generateData (byte[] buffer, short offset, short length)
+    {
+        CardRuntime.getCurrent().generateRandom(buffer, offset, length);
+    }
+
+
+    @Override
+    public short nextBytes (byte[] buffer, short offset, short length)
+    {
+        generateData(buffer, offset, length);
+
+        return (short) (offset + length);
+    }
+
+
+    // The seed of the card is set when it is created.
+    @Override
+    public void setSeed (byte[] buffer, short offset, short length)
+    {
+    }
+
+
+    @Override
+    public byte getAlgorithm ()
+    {
+        return algorithm;
+    }
+}
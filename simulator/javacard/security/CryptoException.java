@@ -0,0 +1,37 @@
+package javacard.security;
+
+import javacard.framework.CardRuntimeException;
+
+
+
+// Exception of the keys, ciphers and signatures: an algorithm not supported, a key not set, a cipher not initialized.
+public class CryptoException extends CardRuntimeException
+{
+    // Define the reasons.
+    public static final short ILLEGAL_VALUE					= 1;
+    public static final short UNINITIALIZED_KEY				= 2;
+    public static final short NO_SUCH_ALGORITHM				= 3;
+    public static final short INVALID_INIT					= 4;
+    public static final short ILLEGAL_USE					= 5;
+
+
+    private static final long serialVersionUID = 1L;
+
+
+    private static final ThreadLocal<CryptoException> systemInstance = ThreadLocal.withInitial(() -> new CryptoException((short) 0));
+
+
+    public CryptoException (short reason)
+    {
+        super(reason);
+    }
+
+
+    public static void throwIt (short reason) throws CryptoException
+    {
+        CryptoException exception = systemInstance.get();
+
+        exception.setReason(reason);
+        throw exception;
+    }
+}
@@ -0,0 +1,15 @@
+package javacard.security;
+
+
+
+// Base of the keys: a type (KeyBuilder.TYPE_...), a size in bits, and the initialized flag (set by setting the key).
+public interface Key
+{
+    void clearKey ();
+
+    boolean isInitialized ();
+
+    short getSize ();
+
+    byte getType ();
+}
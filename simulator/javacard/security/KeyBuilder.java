@@ -0,0 +1,35 @@
+package javacard.security;
+
+
+
+// Builds the keys; only the AES keys are supported by the simulator (CryptoException.NO_SUCH_ALGORITHM for the others).
+public class KeyBuilder
+{
+    // Define the types of keys.
+    public static final byte TYPE_AES_TRANSIENT_RESET		= 13;
+    public static final byte TYPE_AES_TRANSIENT_DESELECT	= 14;
+    public static final byte TYPE_AES						= 15;
+
+
+    // Define the sizes of the keys (bits).
+    public static final short LENGTH_AES_128				= 128;
+    public static final short LENGTH_AES_192				= 192;
+    public static final short LENGTH_AES_256				= 256;
+
+
+    private KeyBuilder ()
+    {
+    }
+
+
+    public static Key buildKey (byte keyType, short keyLength, boolean keyEncryption) throws CryptoException
+    {
+        if (keyType != TYPE_AES && keyType != TYPE_AES_TRANSIENT_DESELECT && keyType != TYPE_AES_TRANSIENT_RESET)
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+
+        if (keyLength != LENGTH_AES_128 && keyLength != LENGTH_AES_192 && keyLength != LENGTH_AES_256)
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+
+        return new AESKeyImpl(keyType, keyLength);
+    }
+}
@@ -0,0 +1,35 @@
+package javacard.security;
+
+
+
+// Generator of random data; all the algorithms draw from the random generator of the card (seeded with the card).
+public abstract class RandomData
+{
+    // Define the algorithms.
+    public static final byte ALG_PSEUDO_RANDOM				= 1;
+    public static final byte ALG_SECURE_RANDOM				= 2;
+    public static final byte ALG_TRNG						= 3;
+
+
+    protected RandomData ()
+    {
+    }
+
+
+    public static final RandomData getInstance (byte algorithm) throws CryptoException
+    {
+        if (algorithm != ALG_PSEUDO_RANDOM && algorithm != ALG_SECURE_RANDOM && algorithm != ALG_TRNG)
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+
+        return new CardRandomData(algorithm);
+    }
+
+
+    public abstract void generateData (byte[] buffer, short offset, short length) throws CryptoException;
+
+    public abstract short nextBytes (byte[] buffer, short offset, short length) throws CryptoException;
+
+    public abstract void setSeed (byte[] buffer, short offset, short length);
+
+    public abstract byte getAlgorithm ();
+}
@@ -0,0 +1,8 @@
+package javacard.security;
+
+
+
+// Base of the keys of the symmetric algorithms.
+public interface SecretKey extends Key
+{
+}
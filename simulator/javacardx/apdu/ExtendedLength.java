@@ -0,0 +1,8 @@
+package javacardx.apdu;
+
+
+
+// Marks the applets that take extended commands (Lc and Le of 2 bytes, up to 32767 bytes of data).
+public interface ExtendedLength
+{
+}
@@ -0,0 +1,245 @@
+package javacardx.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.AESKey;
+import javacard.security.CryptoException;
+import javacard.security.Key;
+
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+
+
+// AES without padding, CBC or ECB, over the AES block function of the JDK. The key is copied at init() and the state
+// (chaining block, partial block of update()) is kept in transient arrays (cleared on reset), so the object holds only
+// arrays, like the objects of the applets; the JDK ciphers are kept per thread, and set up again only for another key.
+final class AESCipher extends Cipher
+{
+    // Define the size of a block and the largest key.
+    private static final short BLOCK_SIZE					= 16;
+    private static final short MAXIMUM_KEY_SIZE				= 32;
+
+
+    // Define the positions in the state: the mode (0 - not initialized), the length of the key, the bytes of the partial block.
+    private static final short STATE_MODE					= 0;
+    private static final short STATE_KEY_LENGTH				= 1;
+    private static final short STATE_PENDING				= 2;
+    private static final short STATE_SIZE					= 3;
+
+
+    // The AES block functions of the JDK of a thread, with the key each one is set up with.
+    private static final class BlockFunctions
+    {
+        final javax.crypto.Cipher encrypt;
+        final javax.crypto.Cipher decrypt;
+        final byte[] encryptKey = new byte[MAXIMUM_KEY_SIZE + 1];
+        final byte[] decryptKey = new byte[MAXIMUM_KEY_SIZE + 1];
+
+
+        BlockFunctions ()
+        {
+            try
+            {
+                encrypt = javax.crypto.Cipher.getInstance("AES/ECB/NoPadding");
+                decrypt = javax.crypto.Cipher.getInstance("AES/ECB/NoPadding");
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+
+        // Return the function set up with the key (its length in the last byte of the copy).
+        javax.crypto.Cipher get (boolean decrypting, byte[] key, int keyLength)
+        {
+            javax.crypto.Cipher function = decrypting ? decrypt : encrypt;
+            byte[] copy = decrypting ? decryptKey : encryptKey;
+
+            if (copy[MAXIMUM_KEY_SIZE] != keyLength || !Arrays.equals(copy, 0, keyLength, key, 0, keyLength))
+            {
+                try
+                {
+                    function.init(decrypting ? javax.crypto.Cipher.DECRYPT_MODE : javax.crypto.Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, keyLength, "AES"));
+                }
+                catch (GeneralSecurityException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+
+                System.arraycopy(key, 0, copy, 0, keyLength);
+                copy[MAXIMUM_KEY_SIZE] = (byte) keyLength;
+            }
+
+            return function;
+        }
+    }
+
+
+    private static final ThreadLocal<BlockFunctions> blockFunctions = ThreadLocal.withInitial(BlockFunctions::new);
+
+
+    private byte algorithm;
+    private final byte[] state;
+    private final byte[] key;
+    private final byte[] iv;
+    private final byte[] chain;
+    private final byte[] pending;
+    private final byte[] block;
+
+
+    AESCipher (byte algorithm)
+    {
+        this.algorithm = algorithm;
+
+        state = JCSystem.makeTransientByteArray(STATE_SIZE, JCSystem.CLEAR_ON_RESET);
+        key = JCSystem.makeTransientByteArray(MAXIMUM_KEY_SIZE, JCSystem.CLEAR_ON_RESET);
+        iv = JCSystem.makeTransientByteArray(BLOCK_SIZE, JCSystem.CLEAR_ON_RESET);
+        chain = JCSystem.makeTransientByteArray(BLOCK_SIZE, JCSystem.CLEAR_ON_RESET);
+        pending = JCSystem.makeTransientByteArray(BLOCK_SIZE, JCSystem.CLEAR_ON_RESET);
+        block = JCSystem.makeTransientByteArray(BLOCK_SIZE, JCSystem.CLEAR_ON_RESET);
+    }
+
+
+    // Initialize with the key and an IV of zeros.
+    @Override
+    public void init (Key theKey, byte theMode)
+    {
+        setKey(theKey, theMode);
+        Util.arrayFillNonAtomic(iv, (short) 0, BLOCK_SIZE, (byte) 0);
+        start();
+    }
+
+
+    // Initialize with the key and the IV (CBC only).
+    @Override
+    public void init (Key theKey, byte theMode, byte[] bArray, short bOff, short bLen)
+    {
+        if (algorithm != ALG_AES_BLOCK_128_CBC_NOPAD || bLen != BLOCK_SIZE)
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+
+        setKey(theKey, theMode);
+        Util.arrayCopyNonAtomic(bArray, bOff, iv, (short) 0, BLOCK_SIZE);
+        start();
+    }
+
+
+    @Override
+    public byte getAlgorithm ()
+    {
+        return algorithm;
+    }
+
+
+    // Process the whole blocks of the partial block and the data; keep the bytes left for the next call.
+    @Override
+    public short update (byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset)
+    {
+        if (state[STATE_MODE] == 0)
+            CryptoException.throwIt(CryptoException.INVALID_INIT);
+
+        if (inLength < 0 || inOffset < 0 || inOffset + inLength > inBuff.length)
+            throw new ArrayIndexOutOfBoundsException(inOffset);
+
+        short pendingLength = state[STATE_PENDING];
+        short outLength = (short) ((pendingLength + inLength) / BLOCK_SIZE * BLOCK_SIZE);
+        short consumed = 0;
+
+        if (outLength > 0 && (outOffset < 0 || outOffset + outLength > outBuff.length))
+            throw new ArrayIndexOutOfBoundsException(outOffset);
+
+        if (pendingLength > 0 && outLength > 0)
+        {
+            consumed = (short) (BLOCK_SIZE - pendingLength);
+            System.arraycopy(inBuff, inOffset, pending, pendingLength, consumed);
+            processBlock(pending, (short) 0, outBuff, outOffset);
+            pendingLength = 0;
+        }
+
+        for (short done = consumed == 0 ? 0 : BLOCK_SIZE; done < outLength; done += BLOCK_SIZE, consumed += BLOCK_SIZE)
+            processBlock(inBuff, (short) (inOffset + consumed), outBuff, (short) (outOffset + done));
+
+        System.arraycopy(inBuff, inOffset + consumed, pending, pendingLength, inLength - consumed);
+        state[STATE_PENDING] = (byte) (pendingLength + inLength - consumed);
+
+        return outLength;
+    }
+
+
+    // Process the last data (the whole data must be a multiple of the block size), then start the chaining over.
+    @Override
+    public short doFinal (byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset)
+    {
+        if (state[STATE_MODE] == 0)
+            CryptoException.throwIt(CryptoException.INVALID_INIT);
+
+        if ((state[STATE_PENDING] + inLength) % BLOCK_SIZE != 0)
+            CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+
+        short outLength = update(inBuff, inOffset, inLength, outBuff, outOffset);
+
+        start();
+
+        return outLength;
+    }
+
+
+    private void setKey (Key theKey, byte theMode)
+    {
+        if (!(theKey instanceof AESKey) || (theMode != MODE_ENCRYPT && theMode != MODE_DECRYPT))
+            CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+
+        if (!theKey.isInitialized())
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+
+        state[STATE_KEY_LENGTH] = ((AESKey) theKey).getKey(key, (short) 0);
+        state[STATE_MODE] = theMode;
+    }
+
+
+    // Start the chaining with the IV, with no partial block.
+    private void start ()
+    {
+        Util.arrayCopyNonAtomic(iv, (short) 0, chain, (short) 0, BLOCK_SIZE);
+        state[STATE_PENDING] = 0;
+    }
+
+
+    // Encrypt or decrypt a block (the output may be the input).
+    private void processBlock (byte[] in, short inOffset, byte[] out, short outOffset)
+    {
+        boolean decrypting = state[STATE_MODE] == MODE_DECRYPT;
+        boolean chaining = algorithm == ALG_AES_BLOCK_128_CBC_NOPAD;
+        javax.crypto.Cipher function = blockFunctions.get().get(decrypting, key, state[STATE_KEY_LENGTH]);
+
+        // Encryption: the block of input XOR the chaining block; decryption: a copy of the block of input (the next chaining block).
+        for (short index = 0; index < BLOCK_SIZE; index++)
+            block[index] = (byte) (in[inOffset + index] ^ (chaining && !decrypting ? chain[index] : 0));
+
+        try
+        {
+            function.update(block, 0, BLOCK_SIZE, out, outOffset);
+        }
+        catch (ShortBufferException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        if (!chaining)
+            return;
+
+        if (decrypting)
+        {
+            for (short index = 0; index < BLOCK_SIZE; index++)
+                out[outOffset + index] ^= chain[index];
+
+            System.arraycopy(block, 0, chain, 0, BLOCK_SIZE);
+        }
+        else
+            System.arraycopy(out, outOffset, chain, 0, BLOCK_SIZE);
+    }
+}
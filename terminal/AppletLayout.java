@@ -0,0 +1,341 @@
+package terminal;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+// The fields of an applet object laid out as bytes, so its state can be copied into a buffer and back (CardStateStore,
+// AppletSnapshot). byte[], short[] and boolean[] arrays and byte, short, int and boolean fields are copied as they are; other
+// objects (OwnerPIN, keys) are copied through their own fields, down to MAXIMUM_DEPTH.
+//
+// Any other field (long, char, other arrays, JDK objects, null references, objects deeper than MAXIMUM_DEPTH) makes the
+// layout throw IllegalArgumentException, so a state is never copied in part. Every applet copied with the layout must hold
+// the objects and array sizes of the template.
+final class AppletLayout
+{
+    // Define how deep the objects of the applet are followed.
+    static final int MAXIMUM_DEPTH							= 4;
+
+
+    // A primitive or array field, and the object fields leading from the applet to the object holding it.
+    private static final class Entry
+    {
+        final Field[] path;
+        final Field field;
+        final int size;
+
+
+        Entry (Field[] path, Field field, int size)
+        {
+            this.path = path;
+            this.field = field;
+            this.size = size;
+        }
+    }
+
+
+    private final Class<?> appletClass;
+    private final List<Entry> entries = new ArrayList<>();
+    private int size;
+    private int hash = 1;
+
+
+    // Lay out the named fields of the template (an applet object whose arrays have the sizes of every instance), or all its
+    // fields if no name is given.
+    AppletLayout (Object template, String... fieldNames)
+    {
+        appletClass = template.getClass();
+
+        if (fieldNames.length == 0)
+        {
+            for (Field field : getInstanceFields(appletClass))
+                addEntries(new Field[0], field, read(template, field), 0);
+        }
+
+        else
+        {
+            for (String name : fieldNames)
+            {
+                Field field = findField(appletClass, name);
+
+                addEntries(new Field[0], field, read(template, field), 0);
+            }
+        }
+
+        for (Entry entry : entries)
+        {
+            size += entry.size;
+            hash = 31 * hash + (getName(entry.field) + ":" + entry.size).hashCode();
+        }
+    }
+
+
+    // Return the number of bytes of the state.
+    int getSize ()
+    {
+        return size;
+    }
+
+
+    // Return a hash of the fields and their sizes, to recognize the state saved with another layout.
+    int getHash ()
+    {
+        return hash;
+    }
+
+
+    Class<?> getAppletClass ()
+    {
+        return appletClass;
+    }
+
+
+    // Copy the fields of the applet into the buffer.
+    void write (Object applet, ByteBuffer buffer)
+    {
+        try
+        {
+            for (Entry entry : entries)
+            {
+                Object owner = getOwner(applet, entry.path);
+                Class<?> type = entry.field.getType();
+
+                if (type == byte[].class)
+                    buffer.put((byte[]) getArray(owner, entry, 1));
+
+                else if (type == short[].class)
+                {
+                    for (short value : (short[]) getArray(owner, entry, 2))
+                        buffer.putShort(value);
+                }
+
+                else if (type == boolean[].class)
+                {
+                    for (boolean value : (boolean[]) getArray(owner, entry, 1))
+                        buffer.put((byte) (value ? 1 : 0));
+                }
+
+                else if (type == byte.class)
+                    buffer.put(entry.field.getByte(owner));
+
+                else if (type == short.class)
+                    buffer.putShort(entry.field.getShort(owner));
+
+                else if (type == int.class)
+                    buffer.putInt(entry.field.getInt(owner));
+
+                else
+                    buffer.put((byte) (entry.field.getBoolean(owner) ? 1 : 0));
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    // Copy the buffer into the fields of the applet.
+    void read (Object applet, ByteBuffer buffer)
+    {
+        try
+        {
+            for (Entry entry : entries)
+            {
+                Object owner = getOwner(applet, entry.path);
+                Class<?> type = entry.field.getType();
+
+                if (type == byte[].class)
+                    buffer.get((byte[]) getArray(owner, entry, 1));
+
+                else if (type == short[].class)
+                {
+                    short[] values = (short[]) getArray(owner, entry, 2);
+
+                    for (int index = 0; index < values.length; index++)
+                        values[index] = buffer.getShort();
+                }
+
+                else if (type == boolean[].class)
+                {
+                    boolean[] values = (boolean[]) getArray(owner, entry, 1);
+
+                    for (int index = 0; index < values.length; index++)
+                        values[index] = buffer.get() != 0;
+                }
+
+                else if (type == byte.class)
+                    entry.field.setByte(owner, buffer.get());
+
+                else if (type == short.class)
+                    entry.field.setShort(owner, buffer.getShort());
+
+                else if (type == int.class)
+                    entry.field.setInt(owner, buffer.getInt());
+
+                else
+                    entry.field.setBoolean(owner, buffer.get() != 0);
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    // Add the entries of the field: itself if primitive or a primitive array, else the fields of the object it holds.
+    private void addEntries (Field[] path, Field field, Object value, int depth)
+    {
+        Class<?> type = field.getType();
+
+        if (value == null && !type.isPrimitive())
+            throw new IllegalArgumentException(getName(field) + " is null in the template");
+
+        if (type == byte[].class)
+            entries.add(new Entry(path, field, ((byte[]) value).length));
+
+        else if (type == short[].class)
+            entries.add(new Entry(path, field, ((short[]) value).length * 2));
+
+        else if (type == boolean[].class)
+            entries.add(new Entry(path, field, ((boolean[]) value).length));
+
+        else if (type == byte.class || type == boolean.class)
+            entries.add(new Entry(path, field, 1));
+
+        else if (type == short.class)
+            entries.add(new Entry(path, field, 2));
+
+        else if (type == int.class)
+            entries.add(new Entry(path, field, 4));
+
+        else if (type.isPrimitive() || type.isArray() || isPlatformClass(value.getClass()))
+            throw new IllegalArgumentException(getName(field) + " has the unsupported type "
+                    + (type.isPrimitive() || type.isArray() ? type : value.getClass()).getTypeName());
+
+        else if (depth >= MAXIMUM_DEPTH)
+            throw new IllegalArgumentException(getName(field) + " is deeper than " + MAXIMUM_DEPTH + " objects");
+
+        // Follow the objects of the applet through their own fields.
+        else
+        {
+            Field[] childPath = new Field[path.length + 1];
+            System.arraycopy(path, 0, childPath, 0, path.length);
+            childPath[path.length] = field;
+
+            for (Field child : getInstanceFields(value.getClass()))
+                addEntries(childPath, child, read(value, child), depth + 1);
+        }
+    }
+
+
+    // Return the array of the entry, checking it has the size of the template.
+    private static Object getArray (Object owner, Entry entry, int elementSize) throws IllegalAccessException
+    {
+        Object array = entry.field.get(owner);
+
+        if (array == null || Array.getLength(array) * elementSize != entry.size)
+            throw new IllegalArgumentException(getName(entry.field) + " doesn't have the size of the template");
+
+        return array;
+    }
+
+
+    // Return true for the classes of the JDK (not javacard.*, whose objects are followed like those of the applet).
+    private static boolean isPlatformClass (Class<?> type)
+    {
+        String name = type.getName();
+
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.") || name.startsWith("sun.");
+    }
+
+
+    private static String getName (Field field)
+    {
+        return field.getDeclaringClass().getName() + "." + field.getName();
+    }
+
+
+    // Return the instance fields of the class and its superclasses, made accessible.
+    private static List<Field> getInstanceFields (Class<?> type)
+    {
+        List<Field> fields = new ArrayList<>();
+
+        for (Class<?> owner = type; owner != null && owner != Object.class; owner = owner.getSuperclass())
+        {
+            for (Field field : owner.getDeclaredFields())
+            {
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic())
+                    continue;
+
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+
+        return fields;
+    }
+
+
+    private static Field findField (Class<?> type, String name)
+    {
+        for (Class<?> owner = type; owner != null; owner = owner.getSuperclass())
+        {
+            try
+            {
+                Field field = owner.getDeclaredField(name);
+                field.setAccessible(true);
+
+                return field;
+            }
+            catch (NoSuchFieldException e)
+            {
+                // Look in the superclass.
+            }
+        }
+
+        throw new IllegalArgumentException("No field " + name + " in " + type.getName());
+    }
+
+
+    private static Object read (Object owner, Field field)
+    {
+        try
+        {
+            return field.get(owner);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static Object getOwner (Object applet, Field[] path)
+    {
+        Object owner = applet;
+
+        try
+        {
+            for (Field field : path)
+            {
+                owner = field.get(owner);
+
+                if (owner == null)
+                    throw new IllegalArgumentException(getName(field) + " is null, unlike in the template");
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        return owner;
+    }
+}
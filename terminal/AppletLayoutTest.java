@@ -0,0 +1,274 @@
+package terminal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+
+
+// Round trips of AppletLayout on a stub with the shape of the Wallet applet (a PIN object, a nullable fare key object,
+// short and byte arrays): AppletSnapshot capture and restore, CardStateStore page out and page in (also after reopening the
+// file), and the fields the layout must refuse. A failed check throws AssertionError, so the exit status tells the result.
+//
+// Usage: java terminal.AppletLayoutTest
+public final class AppletLayoutTest
+{
+    // Stand-in for OwnerPIN: the value, the try counter and the transient validation flag.
+    static final class StubPin
+    {
+        byte tryLimit;
+        byte triesLeft;
+        byte size;
+        byte[] value = new byte[8];
+        boolean[] validated = new boolean[1];
+    }
+
+
+    // Stand-in for Wallet, with the fields of CardStateStore.WALLET_FIELDS.
+    static final class StubWallet
+    {
+        StubPin pin = new StubPin();
+        StubPin fareKey = new StubPin();
+        short[] walletState = new short[6];
+        byte[] fareTable = new byte[24];
+        byte[] journal = new byte[128];
+        byte[] stats = new byte[112];
+        int sequence;
+        boolean personalized;
+    }
+
+
+    static final class LongField
+    {
+        long value;
+    }
+
+
+    static final class CharField
+    {
+        char value;
+    }
+
+
+    static final class IntArrayField
+    {
+        int[] values = new int[2];
+    }
+
+
+    static final class ObjectArrayField
+    {
+        Object[] values = new Object[2];
+    }
+
+
+    static final class StringField
+    {
+        String value = "";
+    }
+
+
+    static final class NullField
+    {
+        byte[] values;
+    }
+
+
+    private AppletLayoutTest ()
+    {
+    }
+
+
+    public static void main (String[] arguments) throws IOException
+    {
+        snapshotRoundTrip();
+        storeRoundTrip();
+        unsupportedFields();
+        differentInstances();
+
+        System.out.println("AppletLayoutTest: all checks passed");
+    }
+
+
+    // A snapshot restores every field, nested objects included, and doesn't follow later changes of the captured applet.
+    static void snapshotRoundTrip ()
+    {
+        StubWallet wallet = fill(new StubWallet(), 1);
+        AppletSnapshot snapshot = AppletSnapshot.capture(wallet);
+        StubWallet restored = new StubWallet();
+
+        check(snapshot.getSize() == 2 * (3 + 8 + 1) + 6 * 2 + 24 + 128 + 112 + 4 + 1, "snapshot size " + snapshot.getSize());
+
+        fill(wallet, 2);
+        snapshot.restore(restored);
+        check(isEqual(restored, fill(new StubWallet(), 1)), "restored state");
+
+        // Only the named fields are captured.
+        AppletSnapshot pinOnly = AppletSnapshot.capture(wallet, "pin");
+        StubWallet partial = new StubWallet();
+
+        pinOnly.restore(partial);
+        check(partial.pin.triesLeft == wallet.pin.triesLeft && Arrays.equals(partial.pin.value, wallet.pin.value), "restored PIN");
+        check(partial.sequence == 0 && partial.journal[0] == 0, "fields left out of the snapshot");
+    }
+
+
+    // A card paged out is paged in unchanged, also from the file reopened; the other cards stay never flushed.
+    static void storeRoundTrip () throws IOException
+    {
+        Path path = Files.createTempFile("cards", ".store");
+
+        try
+        {
+            try (CardStateStore store = CardStateStore.open(path, 8, new StubWallet(), CardStateStore.WALLET_FIELDS))
+            {
+                StubWallet wallet = new StubWallet();
+
+                check(!store.pageIn(3, wallet), "card never flushed");
+
+                store.pageOut(3, fill(new StubWallet(), 3));
+                store.pageOut(4, fill(new StubWallet(), 4));
+
+                check(store.pageIn(3, wallet) && isStoredEqual(wallet, fill(new StubWallet(), 3)), "card 3 paged in");
+                check(store.pageIn(4, wallet) && isStoredEqual(wallet, fill(new StubWallet(), 4)), "card 4 paged in");
+
+                store.clear(4);
+                check(!store.pageIn(4, wallet), "card 4 cleared");
+            }
+
+            try (CardStateStore store = CardStateStore.open(path, 8, new StubWallet(), CardStateStore.WALLET_FIELDS))
+            {
+                StubWallet wallet = new StubWallet();
+
+                check(store.pageIn(3, wallet) && isStoredEqual(wallet, fill(new StubWallet(), 3)), "card 3 after reopening");
+                check(!store.pageIn(5, wallet), "card 5 after reopening");
+            }
+
+            // The file can't be opened with another number of cards.
+            try (CardStateStore store = CardStateStore.open(path, 9, new StubWallet(), CardStateStore.WALLET_FIELDS))
+            {
+                throw new AssertionError("store opened with " + store.getSlots() + " cards instead of 8");
+            }
+            catch (IOException e)
+            {
+                // Expected.
+            }
+        }
+        finally
+        {
+            Files.delete(path);
+        }
+    }
+
+
+    // The layout refuses the fields it can't copy, instead of leaving them out.
+    static void unsupportedFields ()
+    {
+        checkRefused(new LongField());
+        checkRefused(new CharField());
+        checkRefused(new IntArrayField());
+        checkRefused(new ObjectArrayField());
+        checkRefused(new StringField());
+        checkRefused(new NullField());
+
+        StubWallet wallet = new StubWallet();
+        wallet.fareKey = null;
+        checkRefused(wallet);
+    }
+
+
+    // An applet without the objects or the array sizes of the template is refused.
+    static void differentInstances ()
+    {
+        AppletSnapshot snapshot = AppletSnapshot.capture(fill(new StubWallet(), 5));
+        StubWallet withoutFareKey = new StubWallet();
+        StubWallet shorterJournal = new StubWallet();
+
+        withoutFareKey.fareKey = null;
+        shorterJournal.journal = new byte[64];
+
+        checkRefused(() -> snapshot.restore(withoutFareKey));
+        checkRefused(() -> snapshot.restore(shorterJournal));
+        checkRefused(() -> snapshot.restore(new NullField()));
+    }
+
+
+    // Give every field of the wallet a value depending on the seed.
+    static StubWallet fill (StubWallet wallet, int seed)
+    {
+        fill(wallet.pin, seed);
+        fill(wallet.fareKey, seed + 7);
+
+        for (int index = 0; index < wallet.walletState.length; index++)
+            wallet.walletState[index] = (short) (seed * 1000 + index);
+
+        Arrays.fill(wallet.fareTable, (byte) seed);
+        Arrays.fill(wallet.journal, (byte) (seed + 1));
+        Arrays.fill(wallet.stats, (byte) (seed + 2));
+        wallet.sequence = seed * 100000;
+        wallet.personalized = seed % 2 != 0;
+
+        return wallet;
+    }
+
+
+    static void fill (StubPin pin, int seed)
+    {
+        pin.tryLimit = 3;
+        pin.triesLeft = (byte) (seed % 4);
+        pin.size = 5;
+        Arrays.fill(pin.value, (byte) (seed + 0x30));
+        pin.validated[0] = seed % 2 == 0;
+    }
+
+
+    static boolean isEqual (StubWallet one, StubWallet other)
+    {
+        return isStoredEqual(one, other) && one.sequence == other.sequence
+                && one.personalized == other.personalized;
+    }
+
+
+    // Compare the fields of CardStateStore.WALLET_FIELDS.
+    static boolean isStoredEqual (StubWallet one, StubWallet other)
+    {
+        return isEqual(one.pin, other.pin) && isEqual(one.fareKey, other.fareKey) && Arrays.equals(one.walletState, other.walletState)
+                && Arrays.equals(one.fareTable, other.fareTable) && Arrays.equals(one.journal, other.journal) && Arrays.equals(one.stats, other.stats);
+    }
+
+
+    static boolean isEqual (StubPin one, StubPin other)
+    {
+        return one.tryLimit == other.tryLimit && one.triesLeft == other.triesLeft && one.size == other.size
+                && Arrays.equals(one.value, other.value) && Arrays.equals(one.validated, other.validated);
+    }
+
+
+    static void checkRefused (Object applet)
+    {
+        checkRefused(() -> AppletSnapshot.capture(applet));
+    }
+
+
+    static void checkRefused (Runnable action)
+    {
+        try
+        {
+            action.run();
+        }
+        catch (IllegalArgumentException e)
+        {
+            return;
+        }
+
+        throw new AssertionError("not refused");
+    }
+
+
+    static void check (boolean condition, String message)
+    {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,67 @@
+package terminal;
+
+import java.nio.ByteBuffer;
+
+
+
+// The state of an applet object at one moment (its persistent and transient fields, the PIN with its try counter and
+// validation flag, the secure session), so a test can set a card up once and start every scenario from that state.
+//
+// It works on applet objects in the same JVM: a harness running the applet in-process captures it after the setup (install,
+// CREATE, SELECT, VERIFY, personalization), then for each test installs a new instance and restores the snapshot into it.
+// The snapshot is only read, so any number of tests can restore it at once. SimulatedCard.snapshot() is that harness (used by
+// ScriptReplay --fork); SimulatorTest checks it on the applets of the tree, AppletLayoutTest on a stub applet. An applet
+// holding crypto objects backed by the JDK is captured by naming its other fields, since those objects can't be copied.
+public final class AppletSnapshot
+{
+    private final AppletLayout layout;
+    private final byte[] state;
+
+
+    private AppletSnapshot (AppletLayout layout, byte[] state)
+    {
+        this.layout = layout;
+        this.state = state;
+    }
+
+
+    // Capture all the fields of the applet; throws IllegalArgumentException if one of them can't be copied.
+    public static AppletSnapshot capture (Object applet)
+    {
+        return capture(new AppletLayout(applet), applet);
+    }
+
+
+    // Capture the named fields of the applet (for example CardStateStore.WALLET_FIELDS, to leave out the transient state).
+    public static AppletSnapshot capture (Object applet, String... fieldNames)
+    {
+        return capture(new AppletLayout(applet, fieldNames), applet);
+    }
+
+
+    private static AppletSnapshot capture (AppletLayout layout, Object applet)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(layout.getSize());
+
+        layout.write(applet, buffer);
+
+        return new AppletSnapshot(layout, buffer.array());
+    }
+
+
+    // Return the number of bytes of the state.
+    public int getSize ()
+    {
+        return state.length;
+    }
+
+
+    // Copy the state into the applet, an instance of the same class installed with the same parameters.
+    public void restore (Object applet)
+    {
+        if (applet.getClass() != layout.getAppletClass())
+            throw new IllegalArgumentException("Snapshot of " + layout.getAppletClass().getName() + ", not of " + applet.getClass().getName());
+
+        layout.read(applet, ByteBuffer.wrap(state).asReadOnlyBuffer());
+    }
+}
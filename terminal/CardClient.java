@@ -0,0 +1,279 @@
+package terminal;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+
+
+
+// Base of the typed clients: builds the commands in buffers that are reused, decodes the status words into exceptions
+// and queues the commands that have no output while a pipeline is open.
+//
+// The JDK provider (sun.security.smartcardio) answers 61xx with its own GET RESPONSE and returns the whole output at once,
+// unless sun.security.smartcardio.t0GetResponse / t1GetResponse are false; so the response buffer holds the largest output
+// of the applets, and transmitChained() only sends GET RESPONSE itself with the providers that pass 61xx through.
+public abstract class CardClient
+{
+    // Define the status words common to the applets.
+    public static final int SW_NO_ERROR						= 0x9000;
+    public static final int SW1_BYTES_REMAINING				= 0x61;
+    public static final int SW_WRONG_LENGTH					= 0x6700;
+    public static final int SW_SECURITY_STATUS_NOT_SATISFIED	= 0x6982;
+    public static final int SW_CONDITIONS_NOT_SATISFIED		= 0x6985;
+    public static final int SW_WRONG_DATA					= 0x6A80;
+    public static final int SW_INCORRECT_P1P2				= 0x6A86;
+    public static final int SW_WRONG_P1P2					= 0x6B00;
+    public static final int SW_INS_NOT_SUPPORTED			= 0x6D00;
+    public static final int SW_CLA_NOT_SUPPORTED			= 0x6E00;
+    public static final int SW_UNKNOWN						= 0x6F00;
+
+
+    // Define the codes of the ISO commands.
+    static final byte CLA_ISO								= (byte) 0x00;
+    static final byte INS_SELECT							= (byte) 0xA4;
+    static final byte INS_GET_RESPONSE						= (byte) 0xC0;
+
+
+    // Define the limits of the buffers: a short command with 255 bytes of data and Le, a response of 256 bytes and SW1 SW2.
+    // A response collected by the provider is longer: the largest one is the whole Health record (540 bytes with 100 consults).
+    static final int MAXIMUM_DATA_SIZE						= 255;
+    static final int MAXIMUM_RESPONSE_SIZE					= 256;
+    static final int MAXIMUM_CHAINED_RESPONSE_SIZE			= 4096;
+    static final int PIPELINE_SIZE							= 4096;
+
+
+    // Declare the channel to the card.
+    private final CardChannel channel;
+
+
+    // Declare the buffers of the command and of the response, reused by every command.
+    private final ByteBuffer command = ByteBuffer.allocate(5 + MAXIMUM_DATA_SIZE + 1);
+    private final ByteBuffer response = ByteBuffer.allocate(MAXIMUM_CHAINED_RESPONSE_SIZE + 2);
+
+
+    // Declare the data of the last response (without the status word) and its length.
+    protected final byte[] responseData = response.array();
+    protected int responseLength;
+
+
+    // Declare the commands queued while a pipeline is open.
+    // Layout of a command: CLA, INS, P1, P2, Lc, data.
+    protected final byte[] pipeline = new byte[PIPELINE_SIZE];
+    protected int pipelineLength;
+    private boolean pipelining;
+
+
+    protected CardClient (CardChannel channel)
+    {
+        this.channel = channel;
+    }
+
+
+    // Return the channel to the card.
+    public CardChannel getChannel ()
+    {
+        return channel;
+    }
+
+
+    // GET STATS: get the usage statistics of the applet (failed PIN checks, persistent writes, commands and rejections).
+    public abstract CardStats getStats (CardStats into) throws CardException;
+
+
+    // Select the applet with the given AID.
+    public void select (byte[] aid) throws CardException
+    {
+        transmit(CLA_ISO, INS_SELECT, 0x04, 0x00, aid, 0, aid.length, 0);
+    }
+
+
+    // Queue the commands without output until endPipeline(), so they are sent back to back (or in a single APDU, when the applet can).
+    // A command with output sends the queued commands first.
+    public void beginPipeline ()
+    {
+        pipelining = true;
+    }
+
+
+    // Send the queued commands and stop queueing.
+    public void endPipeline () throws CardException
+    {
+        pipelining = false;
+        flush();
+    }
+
+
+    // Send the queued commands; the first one that fails throws, and the ones after it are dropped.
+    public void flush () throws CardException
+    {
+        if (pipelineLength == 0)
+            return;
+
+        // Take the queue first, so a failure leaves it empty.
+        int length = pipelineLength;
+        pipelineLength = 0;
+
+        sendPipeline(pipeline, length);
+    }
+
+
+    // Send the queued commands (by default one APDU each).
+    protected void sendPipeline (byte[] commands, int length) throws CardException
+    {
+        for (int offset = 0; offset < length; offset += 5 + (commands[offset + 4] & 0xFF))
+            send(commands[offset], commands[offset + 1], commands[offset + 2], commands[offset + 3], commands, offset + 5, commands[offset + 4] & 0xFF, 0);
+    }
+
+
+    // Send a command without output, or queue it if a pipeline is open.
+    protected void command (int cla, int ins, int p1, int p2, byte[] data, int offset, int length) throws CardException
+    {
+        if (!pipelining)
+        {
+            transmit(cla, ins, p1, p2, data, offset, length, 0);
+            return;
+        }
+
+        checkDataLength(length);
+
+        // Send the queue first if the command doesn't fit in it.
+        if (pipelineLength + 5 + length > PIPELINE_SIZE)
+            flush();
+
+        pipeline[pipelineLength++] = (byte) cla;
+        pipeline[pipelineLength++] = (byte) ins;
+        pipeline[pipelineLength++] = (byte) p1;
+        pipeline[pipelineLength++] = (byte) p2;
+        pipeline[pipelineLength++] = (byte) length;
+
+        if (length > 0)
+            System.arraycopy(data, offset, pipeline, pipelineLength, length);
+
+        pipelineLength += length;
+    }
+
+
+    // Send the queued commands, then the given command, and return the length of its output (in responseData).
+    // Le is the number of bytes expected (0 - no output, 256 - any).
+    protected int transmit (int cla, int ins, int p1, int p2, byte[] data, int offset, int length, int le) throws CardException
+    {
+        flush();
+
+        return send(cla, ins, p1, p2, data, offset, length, le);
+    }
+
+
+    // Send the given command, then GET RESPONSE while the card has bytes left, and copy the whole output; return its length.
+    // With the JDK provider, the first response already holds the whole output.
+    protected int transmitChained (int cla, int ins, int p1, int p2, byte[] data, int offset, int length, byte[] output, int outputOffset) throws CardException
+    {
+        flush();
+
+        int statusWord = exchange(cla, ins, p1, p2, data, offset, length, MAXIMUM_RESPONSE_SIZE);
+        int total = 0;
+
+        while (true)
+        {
+            System.arraycopy(responseData, 0, output, outputOffset + total, responseLength);
+            total += responseLength;
+
+            if ((statusWord >> 8) != SW1_BYTES_REMAINING)
+                break;
+
+            // SW2 = 0 means 256 bytes or more are left.
+            int remaining = statusWord & 0xFF;
+
+            statusWord = exchange(CLA_ISO, INS_GET_RESPONSE, 0x00, 0x00, null, 0, 0, remaining == 0 ? MAXIMUM_RESPONSE_SIZE : remaining);
+        }
+
+        check(ins, statusWord);
+
+        return total;
+    }
+
+
+    // Send the given command and return the length of its output (in responseData).
+    protected int send (int cla, int ins, int p1, int p2, byte[] data, int offset, int length, int le) throws CardException
+    {
+        check(ins, exchange(cla, ins, p1, p2, data, offset, length, le));
+
+        return responseLength;
+    }
+
+
+    // Throw the exception of a status word other than 0x9000.
+    protected void check (int ins, int statusWord) throws StatusWordException
+    {
+        if (statusWord != SW_NO_ERROR)
+            throw new StatusWordException(ins, statusWord, describe(statusWord));
+    }
+
+
+    // Return the meaning of a status word; the clients add the status words of their applet.
+    protected String describe (int statusWord)
+    {
+        if ((statusWord >> 8) == SW1_BYTES_REMAINING)
+            return (statusWord & 0xFF) + " bytes remaining";
+
+        switch (statusWord)
+        {
+            case SW_WRONG_LENGTH:						return "wrong length";
+            case SW_SECURITY_STATUS_NOT_SATISFIED:		return "security status not satisfied";
+            case SW_CONDITIONS_NOT_SATISFIED:			return "conditions of use not satisfied";
+            case SW_WRONG_DATA:							return "wrong data";
+            case SW_INCORRECT_P1P2:						return "incorrect P1 P2";
+            case SW_WRONG_P1P2:							return "wrong P1 P2";
+            case SW_INS_NOT_SUPPORTED:					return "INS not supported";
+            case SW_CLA_NOT_SUPPORTED:					return "CLA not supported";
+            case SW_UNKNOWN:							return "unknown error";
+            default:									return "unexpected status word";
+        }
+    }
+
+
+    // Build the command in the command buffer, send it and return the status word; the output is left in responseData.
+    private int exchange (int cla, int ins, int p1, int p2, byte[] data, int offset, int length, int le) throws CardException
+    {
+        checkDataLength(length);
+
+        command.clear();
+        command.put((byte) cla).put((byte) ins).put((byte) p1).put((byte) p2);
+
+        if (length > 0)
+            command.put((byte) length).put(data, offset, length);
+
+        // Le = 256 is encoded as 0x00.
+        if (le > 0)
+            command.put((byte) le);
+
+        command.flip();
+        response.clear();
+
+        int received;
+
+        try
+        {
+            received = channel.transmit(command, response);
+        }
+        catch (BufferOverflowException e)
+        {
+            throw new CardException("Response longer than " + MAXIMUM_CHAINED_RESPONSE_SIZE + " bytes", e);
+        }
+
+        if (received < 2)
+            throw new CardException("Response without a status word");
+
+        responseLength = received - 2;
+
+        return ((responseData[responseLength] & 0xFF) << 8) | (responseData[responseLength + 1] & 0xFF);
+    }
+
+
+    private static void checkDataLength (int length)
+    {
+        if (length < 0 || length > MAXIMUM_DATA_SIZE)
+            throw new IllegalArgumentException("The data of a command is at most " + MAXIMUM_DATA_SIZE + " bytes");
+    }
+}
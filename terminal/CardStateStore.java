@@ -0,0 +1,200 @@
+package terminal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+
+// Keeps the persistent state of a fleet of cards run in-process in a memory-mapped file, one fixed-size slot per card, so the
+// harness running them needs one applet object per thread instead of one per card, and starts without replaying the installs.
+// FleetLoadGenerator.storedWallets is such a harness, on the selection listener of the simulator's runtime.
+//
+// The harness pages a card in before the SELECT (pageIn copies the slot into the fields of the applet object) and flushes it
+// after the deselect (pageOut copies the fields back into the slot), once deselect() has reset the PIN and saved the session. The fields are given by name and laid out by AppletLayout,
+// so the PIN value and its try counter follow the card. The template and every card must hold the same objects: a Wallet
+// created with a fare key, since fareKey is null otherwise.
+//
+// File: magic "CSTS", version (2 bytes), reserved (2 bytes), size of a slot (4 bytes), number of slots (4 bytes), hash of
+// the layout (4 bytes), then the slots. Slot: 1 if the card was ever flushed, then the fields in the order of the layout.
+public final class CardStateStore implements Closeable
+{
+    public static final int MAGIC							= 0x43535453;
+    public static final int VERSION							= 1;
+    static final int HEADER_SIZE							= 32;
+
+
+    // Define the largest part of the file mapped at once.
+    static final long MAXIMUM_MAPPING_SIZE					= 1L << 30;
+
+
+    // Define the persistent fields of the applets (Health installed without the working copy option).
+    public static final String[] WALLET_FIELDS = {"pin", "fareKey", "walletState", "fareTable", "journal", "stats"};
+    public static final String[] HEALTH_FIELDS = {"pin", "aesKey", "emergencyKey", "patientData", "consultLog", "consultIndex", "vacationLog", "vacationMonths", "recordState", "stats"};
+    public static final String[] HEALTH_WORKING_COPY_FIELDS = {"pin", "aesKey", "emergencyKey", "savedRecord", "stats"};
+
+
+    private final FileChannel file;
+    private final MappedByteBuffer[] mappings;
+    private final int slotsPerMapping;
+    private final AppletLayout layout;
+    private final int slotSize;
+    private final int slots;
+
+
+    // Declare a buffer for the slot being copied, for each thread.
+    private final ThreadLocal<ByteBuffer> slotBuffer;
+
+
+    private CardStateStore (FileChannel file, AppletLayout layout, int slotSize, int slots) throws IOException
+    {
+        this.file = file;
+        this.layout = layout;
+        this.slotSize = slotSize;
+        this.slots = slots;
+
+        // Map the slots in parts, each part holding whole slots.
+        slotsPerMapping = (int) Math.min(slots, MAXIMUM_MAPPING_SIZE / slotSize);
+        mappings = new MappedByteBuffer[(slots + slotsPerMapping - 1) / slotsPerMapping];
+
+        for (int mapping = 0; mapping < mappings.length; mapping++)
+        {
+            int count = Math.min(slotsPerMapping, slots - mapping * slotsPerMapping);
+
+            mappings[mapping] = file.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) mapping * slotsPerMapping * slotSize, (long) count * slotSize);
+        }
+
+        slotBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(slotSize));
+    }
+
+
+    // Open the store in the file (created if missing) for the given number of cards. The layout of the slots comes from the
+    // named fields of the template: an applet object just installed, whose arrays have the sizes of every card.
+    public static CardStateStore open (Path path, int slots, Object template, String... fieldNames) throws IOException
+    {
+        AppletLayout layout = new AppletLayout(template, fieldNames);
+        int slotSize = 1 + layout.getSize();
+        int hash = layout.getHash();
+
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            // A new file gets its header; an existing one must have the same layout.
+            if (file.size() == 0)
+            {
+                header.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0).putInt(slotSize).putInt(slots).putInt(hash);
+                header.clear();
+                file.write(header, 0);
+            }
+
+            else
+            {
+                file.read(header, 0);
+                header.flip();
+
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getShort() != VERSION)
+                    throw new IOException(path + " is not a card state store");
+
+                header.getShort();
+
+                if (header.getInt() != slotSize || header.getInt() != slots || header.getInt() != hash)
+                    throw new IOException(path + " has another layout or number of cards");
+            }
+
+            return new CardStateStore(file, layout, slotSize, slots);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+
+    public int getSlotSize ()
+    {
+        return slotSize;
+    }
+
+
+    public int getSlots ()
+    {
+        return slots;
+    }
+
+
+    // Copy the state of the card into the applet before the SELECT; return false if the card was never flushed (the applet
+    // is left as it is, so the harness installs and personalizes it).
+    public boolean pageIn (int card, Object applet)
+    {
+        ByteBuffer buffer = slotBuffer.get();
+
+        buffer.clear();
+        getMapping(card).get(getOffset(card), buffer.array(), 0, slotSize);
+
+        if (buffer.get() == 0)
+            return false;
+
+        layout.read(applet, buffer);
+
+        return true;
+    }
+
+
+    // Copy the state of the applet into the slot of the card after the deselect.
+    public void pageOut (int card, Object applet)
+    {
+        ByteBuffer buffer = slotBuffer.get();
+
+        buffer.clear();
+        buffer.put((byte) 1);
+
+        layout.write(applet, buffer);
+        getMapping(card).put(getOffset(card), buffer.array(), 0, slotSize);
+    }
+
+
+    // Forget the state of the card (it will be installed again).
+    public void clear (int card)
+    {
+        getMapping(card).put(getOffset(card), (byte) 0);
+    }
+
+
+    // Write the flushed slots to the disk.
+    public void force ()
+    {
+        for (MappedByteBuffer mapping : mappings)
+            mapping.force();
+    }
+
+
+    @Override
+    public void close () throws IOException
+    {
+        force();
+        file.close();
+    }
+
+
+    private MappedByteBuffer getMapping (int card)
+    {
+        if (card < 0 || card >= slots)
+            throw new IndexOutOfBoundsException("No slot for card " + card);
+
+        return mappings[card / slotsPerMapping];
+    }
+
+
+    private int getOffset (int card)
+    {
+        return (card % slotsPerMapping) * slotSize;
+    }
+}
@@ -0,0 +1,104 @@
+package terminal;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.smartcardio.CardException;
+
+
+
+// Usage statistics of an applet, filled by the GET STATS command of the clients so they can be reused: failed PIN
+// verifications, writes to the persistent memory, commands by INS and rejected commands by status word.
+// The card counts up to 0xFFFFFFFF and stays there; INS 0xFF counts the unknown instructions, SW 0000 the other status words.
+public final class CardStats
+{
+    // Define the instruction and the status word counting the others.
+    public static final int OTHER_INS						= 0xFF;
+    public static final int OTHER_STATUS_WORD				= 0x0000;
+
+
+    // Define the sizes of the response.
+    static final int COUNTER_SIZE							= 4;
+    static final int COMMAND_ENTRY_SIZE						= 1 + COUNTER_SIZE;
+    static final int REJECTION_ENTRY_SIZE					= 2 + COUNTER_SIZE;
+
+
+    public long pinFailures;
+    public long persistentWrites;
+    public final long[] commands = new long[256];
+    public final Map<Integer, Long> rejected = new TreeMap<>();
+
+
+    // Return the number of commands received with the given INS.
+    public long getCommands (int ins)
+    {
+        return commands[ins & 0xFF];
+    }
+
+
+    // Read the response of GET STATS: PIN failures (4 bytes), persistent writes (4 bytes), number of INS, INS (1 byte) and
+    // count (4 bytes) each, number of status words, status word (2 bytes) and count (4 bytes) each.
+    CardStats parse (byte[] response, int offset, int length) throws CardException
+    {
+        int end = offset + length;
+
+        pinFailures = getCounter(response, offset, end);
+        persistentWrites = getCounter(response, offset + COUNTER_SIZE, end);
+        offset += COUNTER_SIZE * 2;
+
+        Arrays.fill(commands, 0);
+        rejected.clear();
+
+        int count = getCount(response, offset++, end);
+
+        for (int entry = 0; entry < count; entry++, offset += COMMAND_ENTRY_SIZE)
+            commands[response[offset] & 0xFF] = getCounter(response, offset + 1, end);
+
+        count = getCount(response, offset++, end);
+
+        for (int entry = 0; entry < count; entry++, offset += REJECTION_ENTRY_SIZE)
+        {
+            int statusWord = ((response[offset] & 0xFF) << 8) | (response[offset + 1] & 0xFF);
+
+            rejected.put(statusWord, getCounter(response, offset + 2, end));
+        }
+
+        return this;
+    }
+
+
+    @Override
+    public String toString ()
+    {
+        StringBuilder text = new StringBuilder();
+
+        text.append(String.format("%d PIN failures, %d persistent writes%n", pinFailures, persistentWrites));
+
+        for (int ins = 0; ins < commands.length; ins++)
+            if (commands[ins] != 0)
+                text.append(String.format("INS %02X: %d%n", ins, commands[ins]));
+
+        rejected.forEach((statusWord, count) -> text.append(String.format("rejected with SW %04X: %d%n", statusWord, count)));
+
+        return text.toString();
+    }
+
+
+    private static int getCount (byte[] response, int offset, int end) throws CardException
+    {
+        if (offset >= end)
+            throw new CardException("Truncated GET STATS response");
+
+        return response[offset] & 0xFF;
+    }
+
+
+    private static long getCounter (byte[] response, int offset, int end) throws CardException
+    {
+        if (offset + COUNTER_SIZE > end)
+            throw new CardException("Truncated GET STATS response");
+
+        return ((long) (response[offset] & 0xFF) << 24) | ((response[offset + 1] & 0xFF) << 16) | ((response[offset + 2] & 0xFF) << 8) | (response[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,387 @@
+package terminal;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.TerminalFactory;
+
+
+
+// Measures the commands of the Health and Wallet applets through the typed clients: throughput, time per command, the bytes
+// allocated per command and the persistent writes per command. Each command gets warm-up runs, then measured runs.
+//
+// With --simulator, the applets run on a SimulatedCard: the times are those of the applets and the simulator, the bytes are
+// those the applets allocate (CardRuntime.getAllocatedBytes) and the writes are those of the runtime (every write to a
+// persistent array, and every commit). Each command starts from the same snapshot of the card, with a fixed random seed, so
+// a run repeats. On a card in a PC/SC reader with both applets installed, the times include the reader, the bytes are those
+// of the host and the writes are those the applet counts (GET STATS); each command starts where the previous one left the
+// card. JMH isn't used: the tree has no build file to fetch it.
+public final class CommandBenchmark
+{
+    // Define the default numbers of runs.
+    static final int DEFAULT_WARMUP							= 100;
+    static final int DEFAULT_ITERATIONS						= 1000;
+
+
+    // Define the first year of the consults and vacations (years since 2000).
+    static final int BASE_YEAR								= 50;
+
+
+    // Define the largest amount of one credit (WalletClient.credit sends it in one signed byte).
+    static final int MAXIMUM_CREDIT							= 127;
+
+
+    // Define the seed of the random data of the simulated card.
+    static final long SIMULATOR_SEED						= 1;
+
+
+    // Define the applets installed on the simulated card: the PINs, the AES key of Health and the fare key of the Wallet.
+    static final byte[] DEFAULT_PIN = {0x01, 0x02, 0x03, 0x04, 0x05};
+    static final byte[] SIMULATOR_HEALTH_KEY = {0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte) 0x88, (byte) 0x99, (byte) 0xAA,
+            (byte) 0xBB, (byte) 0xCC, (byte) 0xDD, (byte) 0xEE, (byte) 0xFF};
+    static final byte[] SIMULATOR_FARE_KEY = {'F', 'A', 'R', 'E', 'K', 'E', 'Y', '1'};
+
+
+    // Define the fare table of the Wallet used to measure the purchase of passes (bus pass: 1 trip, 1 RON).
+    static final byte[] PASS_FARE_TABLE = {0x00, 0x04, 0x00, 0x03, 0x00, 0x02, 0x00, 0x02, 0x00, 0x01, 0x00, 0x01,
+            0x00, 0x01, 0x00, 0x28, 0x01, 0x1E, 0x0A, 0x50, 0x00, 0x00, 0x00, 0x00};
+
+
+    // A command to measure; the iteration lets it vary its data.
+    interface Operation
+    {
+        void run (int iteration) throws CardException;
+    }
+
+
+    // Result of the measure of a command.
+    public static final class Result
+    {
+        public final String name;
+        public final int iterations;
+        public final long elapsedNanoseconds;
+        public final long allocatedBytes;
+        public final long persistentWrites;
+
+
+        Result (String name, int iterations, long elapsedNanoseconds, long allocatedBytes, long persistentWrites)
+        {
+            this.name = name;
+            this.iterations = iterations;
+            this.elapsedNanoseconds = elapsedNanoseconds;
+            this.allocatedBytes = allocatedBytes;
+            this.persistentWrites = persistentWrites;
+        }
+
+
+        public double getCommandsPerSecond ()
+        {
+            return iterations * 1e9 / elapsedNanoseconds;
+        }
+
+
+        @Override
+        public String toString ()
+        {
+            return String.format("%-20s %12.1f %12.1f %12.1f %12.2f", name, getCommandsPerSecond(), elapsedNanoseconds / 1e3 / iterations,
+                    allocatedBytes < 0 ? Double.NaN : (double) allocatedBytes / iterations,
+                    persistentWrites < 0 ? Double.NaN : (double) persistentWrites / iterations);
+        }
+    }
+
+
+    private final int warmup;
+    private final int iterations;
+    private final List<Result> results = new ArrayList<>();
+    private final CardStats stats = new CardStats();
+
+
+    // Declare the simulated card (null on a reader) and the state every command starts from on it.
+    private SimulatedCard card;
+    private SimulatedCard.Snapshot checkpoint;
+
+
+    public CommandBenchmark (int warmup, int iterations)
+    {
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+
+    public List<Result> getResults ()
+    {
+        return results;
+    }
+
+
+    // Measure on the simulated card instead of the card the channels given belong to (they must be its channel).
+    public void setSimulatedCard (SimulatedCard card)
+    {
+        this.card = card;
+    }
+
+
+    // Take the state the next commands start from: on the simulated card, each measure starts again from it.
+    void checkpoint ()
+    {
+        if (card != null)
+            checkpoint = card.snapshot();
+    }
+
+
+    // Measure the commands of the Health applet (selected, with the given key and PIN; the record gets consults and vacations).
+    public void measureHealth (CardChannel channel, byte[] aesKey, byte[] pin) throws CardException
+    {
+        HealthClient health = new HealthClient(channel, aesKey);
+        byte[] output = new byte[1024];
+
+        // Every command starts with the PIN verified and no chronic disease.
+        health.select();
+        health.verify(pin, 0, pin.length);
+        health.setChronicDiagnosis(0);
+        checkpoint();
+
+        measure("health.verify", health, iteration -> health.verify(pin, 0, pin.length));
+
+        // A new specialty each time, and a new month every 256 consults, so every consult is eligible (the dates start in 2050,
+        // after the consults already on the card).
+        measure("health.setConsult", health, iteration -> health.setConsult(1, iteration & 0xFF, 1, 1 + (iteration >> 8) % 12, BASE_YEAR + (iteration >> 8) / 12));
+
+        // One day of vacation each time, 10 days a month at most.
+        measure("health.setVacation", health, iteration ->
+        {
+            int day = 1 + iteration % 10;
+            int month = 1 + (iteration / 10) % 12;
+            int year = BASE_YEAR + iteration / 120;
+
+            health.setMedicalVacation(day, month, year, day, month, year);
+        });
+
+        measure("health.getPatientData", health, iteration -> health.getPatientData(output, 0));
+        measure("health.getEmergency", health, iteration -> health.getEmergencyData(output, 0));
+    }
+
+
+    // Measure the commands of the Wallet applet (with the given PIN and no active bus pass). The purchase of passes is
+    // measured only with the fare key, and on a reader with the current fare table of the card, which is put back afterwards.
+    public void measureWallet (CardChannel channel, byte[] pin, byte[] fareKey, byte[] fareTable) throws CardException
+    {
+        WalletClient wallet = new WalletClient(channel);
+        WalletClient.Balance balance = new WalletClient.Balance();
+
+        // Every command starts with the PIN verified and the RON of the morning tram tickets (1 RON each) debited.
+        wallet.select();
+        wallet.verify(pin, 0, pin.length);
+        credit(wallet);
+        checkpoint();
+
+        measure("wallet.verify", wallet, iteration -> wallet.verify(pin, 0, pin.length));
+        measure("wallet.credit", wallet, iteration -> wallet.credit(1));
+        measure("wallet.debit", wallet, iteration -> wallet.debit(WalletClient.TRAM, WalletClient.FARE_MORNING, 1));
+        measure("wallet.getBalance", wallet, iteration -> wallet.getBalance(balance));
+
+        if (fareKey == null || (fareTable == null && card == null))
+            return;
+
+        // A bus pass of a single trip, taken right away, so the next pass can be bought (each run measures both commands).
+        wallet.setFareTable(fareKey, 0, PASS_FARE_TABLE, 0);
+
+        try
+        {
+            credit(wallet);
+            checkpoint();
+
+            measure("wallet.pass+trip", wallet, iteration ->
+            {
+                wallet.purchasePass(WalletClient.BUS);
+                wallet.debit(WalletClient.BUS, WalletClient.FARE_FULL, 1);
+            });
+        }
+        finally
+        {
+            if (fareTable != null)
+                wallet.setFareTable(fareKey, 0, fareTable, 0);
+        }
+    }
+
+
+    // Credit 1 RON for each run of a command.
+    void credit (WalletClient wallet) throws CardException
+    {
+        for (int remaining = warmup + iterations; remaining > 0; remaining -= MAXIMUM_CREDIT)
+            wallet.credit(Math.min(remaining, MAXIMUM_CREDIT));
+    }
+
+
+    // Run the command for the warm-up, then measure it (on the simulated card, from the state of the last checkpoint).
+    void measure (String name, CardClient client, Operation operation) throws CardException
+    {
+        if (card != null)
+        {
+            card.restore(checkpoint, SIMULATOR_SEED);
+            card.getRuntime().setAllocationTracking(true);
+        }
+
+        for (int iteration = 0; iteration < warmup; iteration++)
+            operation.run(iteration);
+
+        long writesBefore = getPersistentWrites(client);
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+
+        for (int iteration = warmup; iteration < warmup + iterations; iteration++)
+            operation.run(iteration);
+
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+        long writesAfter = getPersistentWrites(client);
+
+        results.add(new Result(name, iterations, elapsed, allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore,
+                writesBefore < 0 || writesAfter < 0 ? -1 : writesAfter - writesBefore));
+    }
+
+
+    // Return the persistent writes so far: those of the simulated card, or those the applet counts (-1 if it refuses GET STATS).
+    long getPersistentWrites (CardClient client) throws CardException
+    {
+        if (card != null)
+            return card.getRuntime().getPersistentWrites();
+
+        try
+        {
+            return client.getStats(stats).persistentWrites;
+        }
+        catch (StatusWordException exception)
+        {
+            return -1;
+        }
+    }
+
+
+    // Return the bytes allocated so far: by the applets of the simulated card, or by this thread (-1 if the JVM can't tell).
+    long getAllocatedBytes ()
+    {
+        if (card != null)
+            return card.getRuntime().getAllocatedBytes();
+
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+
+        return -1;
+    }
+
+
+    // Usage: CommandBenchmark [--reader <index> | --simulator] [--warmup <count>] [--iterations <count>]
+    //                         [--health-key <hex>] [--health-pin <hex>] [--wallet-pin <hex>]
+    //                         [--wallet-fare-key <hex> --wallet-fare-table <hex>]
+    // On the simulator, both applets are installed with DEFAULT_PIN, SIMULATOR_HEALTH_KEY and SIMULATOR_FARE_KEY.
+    public static void main (String[] arguments) throws CardException
+    {
+        int reader = 0;
+        boolean simulator = false;
+        int warmup = DEFAULT_WARMUP;
+        int iterations = DEFAULT_ITERATIONS;
+        byte[] healthKey = null;
+        byte[] healthPin = DEFAULT_PIN;
+        byte[] walletPin = DEFAULT_PIN;
+        byte[] walletFareKey = null;
+        byte[] walletFareTable = null;
+
+        for (int index = 0; index < arguments.length; index++)
+        {
+            switch (arguments[index])
+            {
+                case "--reader":		reader = Integer.parseInt(arguments[++index]); break;
+                case "--simulator":		simulator = true; break;
+                case "--warmup":		warmup = Integer.parseInt(arguments[++index]); break;
+                case "--iterations":	iterations = Integer.parseInt(arguments[++index]); break;
+                case "--health-key":	healthKey = parseHex(arguments[++index]); break;
+                case "--health-pin":	healthPin = parseHex(arguments[++index]); break;
+                case "--wallet-pin":	walletPin = parseHex(arguments[++index]); break;
+                case "--wallet-fare-key":	walletFareKey = parseHex(arguments[++index]); break;
+                case "--wallet-fare-table":	walletFareTable = parseHex(arguments[++index]); break;
+                default:				throw new IllegalArgumentException("Unknown option " + arguments[index]);
+            }
+        }
+
+        if (walletFareTable != null && walletFareTable.length != WalletClient.FARE_TABLE_SIZE)
+            throw new IllegalArgumentException("The fare table has " + WalletClient.FARE_TABLE_SIZE + " bytes");
+
+        CommandBenchmark benchmark = new CommandBenchmark(warmup, iterations);
+        Card card;
+
+        if (simulator)
+        {
+            SimulatedCard simulatedCard = createSimulatedCard();
+
+            benchmark.setSimulatedCard(simulatedCard);
+            card = simulatedCard;
+            healthKey = SIMULATOR_HEALTH_KEY;
+            healthPin = DEFAULT_PIN;
+            walletPin = DEFAULT_PIN;
+            walletFareKey = SIMULATOR_FARE_KEY;
+        }
+        else
+            card = TerminalFactory.getDefault().terminals().list().get(reader).connect("*");
+
+        try
+        {
+            // The Health applet is measured only when its key is known.
+            if (healthKey != null)
+                benchmark.measureHealth(card.getBasicChannel(), healthKey, healthPin);
+
+            benchmark.measureWallet(card.getBasicChannel(), walletPin, walletFareKey, walletFareTable);
+        }
+        finally
+        {
+            card.disconnect(true);
+        }
+
+        System.out.println(String.format("%-20s %12s %12s %12s %12s", "command", "commands/s", "us/command", "bytes/command", "writes/command"));
+
+        for (Result result : benchmark.getResults())
+            System.out.println(result);
+    }
+
+
+    // Return a simulated card with both applets installed, as by the CREATE of the scripts.
+    static SimulatedCard createSimulatedCard () throws CardException
+    {
+        SimulatedCard card = new SimulatedCard(SIMULATOR_SEED);
+
+        card.install(HealthClient.AID, getAppletData(DEFAULT_PIN, SIMULATOR_HEALTH_KEY));
+        card.install(WalletClient.AID, getAppletData(DEFAULT_PIN, SIMULATOR_FARE_KEY));
+
+        return card;
+    }
+
+
+    // Return the data of the CREATE of both applets: size of the PIN, PIN, then the AES key (Health) or the fare key (Wallet).
+    static byte[] getAppletData (byte[] pin, byte[] key)
+    {
+        byte[] data = new byte[1 + pin.length + key.length];
+
+        data[0] = (byte) pin.length;
+        System.arraycopy(pin, 0, data, 1, pin.length);
+        System.arraycopy(key, 0, data, 1 + pin.length, key.length);
+
+        return data;
+    }
+
+
+    static byte[] parseHex (String text)
+    {
+        byte[] bytes = new byte[text.length() / 2];
+
+        for (int index = 0; index < bytes.length; index++)
+            bytes[index] = (byte) Integer.parseInt(text.substring(index * 2, index * 2 + 2), 16);
+
+        return bytes;
+    }
+}
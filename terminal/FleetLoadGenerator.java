@@ -0,0 +1,485 @@
+package terminal;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javacard.framework.Applet;
+import javacard.framework.CardRuntime;
+import javacard.framework.ISO7816;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+
+
+
+// Drives many Wallet cards at once with a mix of taps, credits and pass purchases, like the gates and the top-up machines
+// of a city, and reports the latency of each command (by INS) and the throughput of the whole fleet.
+// Each card gets its own channel from a CardSource. The main method uses PC/SC readers, one per card, so the fleet is as
+// large as the readers attached, or with --simulator a fleet of any size of simulated cards (simulatedWallets): each card is
+// created when it is first driven, gets its Wallet installed by the CREATE of homework 2, and is dropped once driven; with
+// --store the state of the cards is kept in a CardStateStore instead, paged in and out of one card per thread
+// (storedWallets), so it stays from one run to the next.
+// The cards run on a fixed pool of platform threads (JDK 17 has no virtual threads); a reader call blocks its thread, a
+// simulated card keeps it busy, so the pool needs no more threads than cores.
+public final class FleetLoadGenerator
+{
+    // Define the defaults of the load.
+    static final int DEFAULT_COMMANDS_PER_CARD				= 1000;
+    static final int DEFAULT_TAP_WEIGHT						= 70;
+    static final int DEFAULT_CREDIT_WEIGHT					= 20;
+    static final int DEFAULT_PASS_WEIGHT					= 10;
+    static final int DEFAULT_SIMULATED_CARDS				= 10000;
+
+
+    // Define the amounts of the credits (RON).
+    static final int MINIMUM_CREDIT							= 10;
+    static final int MAXIMUM_CREDIT							= 100;
+
+
+    // Provides the channel of each card, with the Wallet applet installed (the load generator selects it).
+    public interface CardSource
+    {
+        CardChannel connect (int card) throws CardException;
+
+
+        // End the session of the card once driven; a card in a reader is disconnected, so the reader can be used again.
+        default void release (int card, CardChannel channel) throws CardException
+        {
+            channel.getCard().disconnect(false);
+        }
+    }
+
+
+    // A fleet of simulated Wallet cards kept in a CardStateStore: each thread has one card with the Wallet installed, and
+    // plays every card it drives on it. A card is paged in when the Wallet is selected (or starts from the state of the
+    // Wallet just installed, if it was never flushed) and paged out when the Wallet is deselected, at the end of its session.
+    static final class StoredWallets implements CardSource
+    {
+        private final CardStateStore store;
+        private final byte[] appletData;
+        private final long seed;
+        private final AtomicLong threads = new AtomicLong();
+        private final ThreadLocal<Session> sessions = ThreadLocal.withInitial(this::createSession);
+
+
+        // The card of a thread, and the card of the fleet it plays.
+        private final class Session implements CardRuntime.SelectionListener
+        {
+            final SimulatedCard card;
+            final Applet wallet;
+            final AppletSnapshot installed;
+            int current = -1;
+
+
+            Session (SimulatedCard card)
+            {
+                this.card = card;
+                wallet = card.getRuntime().getApplet(0);
+                installed = AppletSnapshot.capture(wallet, CardStateStore.WALLET_FIELDS);
+            }
+
+
+            @Override
+            public void selecting (Applet applet)
+            {
+                if (applet == wallet && !store.pageIn(current, applet))
+                    installed.restore(applet);
+            }
+
+
+            @Override
+            public void deselected (Applet applet)
+            {
+                if (applet == wallet)
+                    store.pageOut(current, applet);
+            }
+        }
+
+
+        StoredWallets (CardStateStore store, byte[] appletData, long seed)
+        {
+            this.store = store;
+            this.appletData = appletData;
+            this.seed = seed;
+        }
+
+
+        // Power the card of the thread up (transient arrays cleared, installer selected) as the given card of the fleet.
+        @Override
+        public CardChannel connect (int card)
+        {
+            Session session = sessions.get();
+
+            session.card.disconnect(true);
+            session.current = card;
+
+            return session.card.getBasicChannel();
+        }
+
+
+        // Select the installer, so the Wallet is deselected and the card paged out.
+        @Override
+        public void release (int card, CardChannel channel) throws CardException
+        {
+            Session session = sessions.get();
+            ResponseAPDU response = channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, CardRuntime.INSTALLER_AID));
+
+            session.current = -1;
+
+            if (response.getSW() != (ISO7816.SW_NO_ERROR & 0xFFFF))
+                throw new CardException(String.format("Card %d not released: %04X", card, response.getSW()));
+        }
+
+
+        private Session createSession ()
+        {
+            SimulatedCard card = new SimulatedCard(seed + threads.getAndIncrement());
+
+            try
+            {
+                card.install(WalletClient.AID, appletData);
+            }
+            catch (CardException e)
+            {
+                throw new IllegalStateException(e);
+            }
+
+            Session session = new Session(card);
+
+            card.getRuntime().setSelectionListener(session);
+
+            return session;
+        }
+    }
+
+
+    // Result of a run: the latency of the commands by INS, and the status words of the rejected commands.
+    public static final class Report
+    {
+        public final LatencyHistogram[] latencies = new LatencyHistogram[256];
+        public final Map<Integer, Long> rejected = new TreeMap<>();
+        public long commands;
+        public long elapsedNanoseconds;
+
+
+        void record (int ins, long nanoseconds)
+        {
+            if (latencies[ins] == null)
+                latencies[ins] = new LatencyHistogram();
+
+            latencies[ins].record(nanoseconds);
+            commands++;
+        }
+
+
+        void reject (int statusWord)
+        {
+            rejected.merge(statusWord, 1L, Long::sum);
+        }
+
+
+        void add (Report other)
+        {
+            for (int ins = 0; ins < latencies.length; ins++)
+            {
+                if (other.latencies[ins] == null)
+                    continue;
+
+                if (latencies[ins] == null)
+                    latencies[ins] = new LatencyHistogram();
+
+                latencies[ins].add(other.latencies[ins]);
+            }
+
+            other.rejected.forEach((statusWord, count) -> rejected.merge(statusWord, count, Long::sum));
+            commands += other.commands;
+        }
+
+
+        public double getCommandsPerSecond ()
+        {
+            return elapsedNanoseconds == 0 ? 0 : commands * 1e9 / elapsedNanoseconds;
+        }
+
+
+        @Override
+        public String toString ()
+        {
+            StringBuilder text = new StringBuilder();
+
+            text.append(String.format("%-6s %10s %10s %10s %10s %10s %10s%n", "INS", "commands", "mean us", "p50 us", "p90 us", "p99 us", "max us"));
+
+            for (int ins = 0; ins < latencies.length; ins++)
+                if (latencies[ins] != null)
+                    text.append(String.format("0x%02X   %s%n", ins, latencies[ins]));
+
+            rejected.forEach((statusWord, count) -> text.append(String.format("rejected with SW %04X: %d%n", statusWord, count)));
+
+            text.append(String.format("%d commands, %.3f s, %.0f commands/s", commands, elapsedNanoseconds / 1e9, getCommandsPerSecond()));
+
+            return text.toString();
+        }
+    }
+
+
+    private final CardSource source;
+    private final byte[] pin;
+    private final int commandsPerCard;
+
+
+    // Declare the weights of the taps, credits and pass purchases in the mix.
+    private final int tapWeight;
+    private final int creditWeight;
+    private final int passWeight;
+
+
+    public FleetLoadGenerator (CardSource source, byte[] pin, int commandsPerCard, int tapWeight, int creditWeight, int passWeight)
+    {
+        if (tapWeight < 0 || creditWeight < 0 || passWeight < 0 || tapWeight + creditWeight + passWeight == 0)
+            throw new IllegalArgumentException("Wrong mix of commands");
+
+        this.source = source;
+        this.pin = pin;
+        this.commandsPerCard = commandsPerCard;
+        this.tapWeight = tapWeight;
+        this.creditWeight = creditWeight;
+        this.passWeight = passWeight;
+    }
+
+
+    // Return a source of simulated cards, each one with a Wallet installed with the PIN and the fare key; card i gets the
+    // random seed seed + i.
+    public static CardSource simulatedWallets (byte[] pin, byte[] fareKey, long seed)
+    {
+        return card -> createWalletCard(pin, fareKey, seed + card).getBasicChannel();
+    }
+
+
+    // Return a source of simulated Wallet cards whose state is kept in the store, each Wallet installed with the PIN and the
+    // fare key; the card of thread i gets the random seed seed + i. The store must be opened with CardStateStore.WALLET_FIELDS
+    // and a Wallet installed the same way (createWalletCard), with a slot for each card of the fleet.
+    public static CardSource storedWallets (CardStateStore store, byte[] pin, byte[] fareKey, long seed)
+    {
+        return new StoredWallets(store, CommandBenchmark.getAppletData(pin, fareKey), seed);
+    }
+
+
+    // Create a simulated card with a Wallet installed with the PIN and the fare key (the template of a store of Wallets).
+    public static SimulatedCard createWalletCard (byte[] pin, byte[] fareKey, long seed) throws CardException
+    {
+        SimulatedCard card = new SimulatedCard(seed);
+
+        card.install(WalletClient.AID, CommandBenchmark.getAppletData(pin, fareKey));
+
+        return card;
+    }
+
+
+    // Run the load on the given number of cards, with the given number of threads (each thread drives one card at a time).
+    public Report run (int cards, int threads, long seed) throws CardException, InterruptedException
+    {
+        // More threads than cards would only wait.
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, cards)));
+        List<Future<Report>> futures = new ArrayList<>(cards);
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        try
+        {
+            for (int card = 0; card < cards; card++)
+            {
+                int index = card;
+
+                futures.add(executor.submit(() -> runCard(index, new SplittableRandom(seed + index))));
+            }
+
+            for (Future<Report> future : futures)
+                report.add(future.get());
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof CardException)
+                throw (CardException) e.getCause();
+
+            throw new CardException("Card failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        report.elapsedNanoseconds = System.nanoTime() - start;
+
+        return report;
+    }
+
+
+    // Drive one card: select the Wallet, verify the PIN, start a transit session, then run the mix. The source releases the
+    // card at the end.
+    Report runCard (int card, SplittableRandom random) throws CardException
+    {
+        CardChannel channel = source.connect(card);
+
+        try
+        {
+            return runCard(new WalletClient(channel), random);
+        }
+        finally
+        {
+            source.release(card, channel);
+        }
+    }
+
+
+    Report runCard (WalletClient wallet, SplittableRandom random) throws CardException
+    {
+        Report report = new Report();
+        WalletClient.Balance balance = new WalletClient.Balance();
+        int totalWeight = tapWeight + creditWeight + passWeight;
+
+        wallet.select();
+        wallet.verify(pin, 0, pin.length);
+
+        int meansOfTransport = 1 + random.nextInt(2);
+        wallet.startTransit(meansOfTransport, WalletClient.FARE_FULL, 0);
+
+        for (int command = 0; command < commandsPerCard; command++)
+        {
+            int choice = random.nextInt(totalWeight);
+            int ins;
+            long start = System.nanoTime();
+
+            try
+            {
+                if (choice < tapWeight)
+                {
+                    ins = WalletClient.INS_TAP;
+                    wallet.tap(balance);
+                }
+
+                else if (choice < tapWeight + creditWeight)
+                {
+                    ins = WalletClient.INS_CREDIT;
+                    wallet.credit(MINIMUM_CREDIT + random.nextInt(MAXIMUM_CREDIT - MINIMUM_CREDIT + 1));
+                }
+
+                else
+                {
+                    ins = WalletClient.INS_PURCHASE_PASS;
+                    wallet.purchasePass(1 + random.nextInt(2));
+                }
+            }
+            catch (StatusWordException e)
+            {
+                // A rejected command still took the time of a command.
+                report.record(e.getIns(), System.nanoTime() - start);
+                report.reject(e.getStatusWord());
+                continue;
+            }
+
+            report.record(ins & 0xFF, System.nanoTime() - start);
+        }
+
+        return report;
+    }
+
+
+    // Usage: FleetLoadGenerator [--simulator [--store <file>]] [--cards <count>] [--threads <count>] [--commands <count per card>]
+    //                           [--mix <tap>:<credit>:<pass>] [--pin <hex>] [--seed <number>]
+    // On readers, card i is the card in the reader i, so there can't be more cards than readers.
+    public static void main (String[] arguments) throws CardException, InterruptedException, IOException
+    {
+        boolean simulator = false;
+        String storePath = null;
+        int cards = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int commands = DEFAULT_COMMANDS_PER_CARD;
+        int[] mix = {DEFAULT_TAP_WEIGHT, DEFAULT_CREDIT_WEIGHT, DEFAULT_PASS_WEIGHT};
+        byte[] pin = CommandBenchmark.DEFAULT_PIN;
+        long seed = 0;
+
+        for (int index = 0; index < arguments.length; index++)
+        {
+            switch (arguments[index])
+            {
+                case "--simulator":	simulator = true; break;
+                case "--store":		storePath = arguments[++index]; break;
+                case "--cards":		cards = Integer.parseInt(arguments[++index]); break;
+                case "--threads":	threads = Integer.parseInt(arguments[++index]); break;
+                case "--commands":	commands = Integer.parseInt(arguments[++index]); break;
+                case "--pin":		pin = CommandBenchmark.parseHex(arguments[++index]); break;
+                case "--seed":		seed = Long.parseLong(arguments[++index]); break;
+
+                case "--mix":
+                    String[] weights = arguments[++index].split(":");
+
+                    for (int weight = 0; weight < mix.length; weight++)
+                        mix[weight] = Integer.parseInt(weights[weight]);
+
+                    break;
+
+                default:			throw new IllegalArgumentException("Unknown option " + arguments[index]);
+            }
+        }
+
+        if (storePath != null && !simulator)
+            throw new IllegalArgumentException("--store needs --simulator");
+
+        CardSource source;
+        CardStateStore store = null;
+
+        if (simulator)
+        {
+            if (cards < 0)
+                cards = DEFAULT_SIMULATED_CARDS;
+
+            if (storePath != null)
+            {
+                Applet template = createWalletCard(pin, CommandBenchmark.SIMULATOR_FARE_KEY, seed).getRuntime().getApplet(0);
+
+                store = CardStateStore.open(Paths.get(storePath), cards, template, CardStateStore.WALLET_FIELDS);
+                source = storedWallets(store, pin, CommandBenchmark.SIMULATOR_FARE_KEY, seed);
+            }
+            else
+                source = simulatedWallets(pin, CommandBenchmark.SIMULATOR_FARE_KEY, seed);
+        }
+        else
+        {
+            List<CardTerminal> terminals = TerminalFactory.getDefault().terminals().list();
+
+            if (cards < 0)
+                cards = terminals.size();
+
+            if (cards > terminals.size())
+                throw new IllegalArgumentException("Only " + terminals.size() + " readers for " + cards + " cards");
+
+            source = card -> terminals.get(card).connect("*").getBasicChannel();
+        }
+
+        FleetLoadGenerator generator = new FleetLoadGenerator(source, pin, commands, mix[0], mix[1], mix[2]);
+
+        try
+        {
+            System.out.println(generator.run(cards, threads, seed));
+        }
+        finally
+        {
+            if (store != null)
+                store.close();
+        }
+    }
+}
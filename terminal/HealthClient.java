@@ -0,0 +1,647 @@
+package terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+
+
+
+// Typed client of health.Health (project).
+// The commands without output can be pipelined: outside a secure session they are sent in BATCH commands.
+public class HealthClient extends CardClient
+{
+    // Define the AID of the applet.
+    public static final byte[] AID = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x63, 0x03, 0x01, 0x0C, 0x07};
+
+
+    // Define the codes of the classes and of the instructions.
+    static final byte CLA_HEALTH							= (byte) 0x80;
+    static final byte CLA_HEALTH_SECURE						= (byte) 0x84;
+    static final byte INS_OPEN_SESSION						= (byte) 0x10;
+    static final byte INS_VERIFY							= (byte) 0x20;
+    static final byte INS_UPDATE_PIN						= (byte) 0x24;
+    static final byte INS_GET_PATIENT_DATA					= (byte) 0x30;
+    static final byte INS_GET_EMERGENCY_DATA				= (byte) 0x32;
+    static final byte INS_SET_PATIENT_DATA					= (byte) 0x40;
+    static final byte INS_SET_CONSULT_DATA					= (byte) 0x50;
+    static final byte INS_CHECK_CONSULTS					= (byte) 0x52;
+    static final byte INS_GET_STATS							= (byte) 0x5C;
+    static final byte INS_SET_MED_VACATION					= (byte) 0x60;
+    static final byte INS_BATCH								= (byte) 0x70;
+    static final byte INS_COMMIT							= (byte) 0x7A;
+
+
+    // Define the status words of the applet.
+    public static final int SW_VERIFICATION_FAILED			= 0x6300;
+    public static final int SW_NOT_ENOUGH_DATA				= 0x6A80;
+    public static final int SW_SECURE_DATA_INCORRECT		= 0x6988;
+
+
+    // Define the fields of the record, for getPatientData(fields, ...).
+    public static final int FIELD_BIRTHDATE					= 0x01;
+    public static final int FIELD_BLOOD						= 0x02;
+    public static final int FIELD_CHRONIC					= 0x04;
+    public static final int FIELD_DONOR						= 0x08;
+    public static final int FIELD_CONSULTS					= 0x10;
+    public static final int FIELD_VACATION					= 0x20;
+    static final int READ_BY_FIELDS							= 0x80;
+
+
+    // Define the sizes of the data of the applet.
+    public static final int PIN_MAXIMUM_SIZE				= 8;
+    public static final int EMERGENCY_DATA_SIZE				= 5;
+    public static final int EMERGENCY_CHALLENGE_SIZE		= 16;
+    static final int BLOCK_SIZE								= 16;
+    static final int BATCH_HEADER_SIZE						= 4;
+    static final int BATCH_RESULT_HEADER_SIZE				= 3;
+    static final int SECURE_MAXIMUM_OUTPUT					= 223;
+
+
+    // Define the label of the key of the emergency signature (the label encrypted with the installed key).
+    static final byte[] EMERGENCY_KEY_LABEL = "HEALTH EMERGENCY".getBytes(StandardCharsets.US_ASCII);
+
+
+    // Declare the AES key installed in the applet, used for the PIN, the signed emergency data and the session keys.
+    private final Cipher keyCipher;
+
+
+    // Declare the key of the emergency signature, derived from the installed key.
+    private final Cipher emergencyCipher;
+
+
+    // Declare the ciphers of the secure session (AES-CBC is chained by hand over ECB, so nothing is allocated per command).
+    private Cipher sessionEncryptCipher;
+    private Cipher sessionDecryptCipher;
+    private Cipher sessionMacCipher;
+    private boolean sessionOpen;
+    private int sessionCounter;
+
+
+    // Declare the chaining blocks of the commands and of the responses of the secure session.
+    private final byte[] commandChain = new byte[BLOCK_SIZE];
+    private final byte[] responseChain = new byte[BLOCK_SIZE];
+
+
+    // Declare the buffers for the data of the commands, the blocks and the MACs.
+    private final byte[] data = new byte[MAXIMUM_DATA_SIZE];
+    private final byte[] block = new byte[BLOCK_SIZE * 4];
+    private final byte[] mac = new byte[BLOCK_SIZE];
+    private final SecureRandom random = new SecureRandom();
+
+
+    public HealthClient (CardChannel channel, byte[] aesKey) throws CardException
+    {
+        super(channel);
+
+        keyCipher = getCipher(Cipher.ENCRYPT_MODE, aesKey, 0);
+        emergencyCipher = getCipher(Cipher.ENCRYPT_MODE, getEmergencyKey(aesKey), 0);
+    }
+
+
+    // Select the Health applet; a secure session ends with the selection.
+    public void select () throws CardException
+    {
+        sessionOpen = false;
+        select(AID);
+    }
+
+
+    // OPEN SESSION: agree on session keys with the card; the commands that follow are encrypted and signed.
+    // The card then refuses the commands in clear (except GET STATS) until it is selected again.
+    public void openSession () throws CardException
+    {
+        // Send the random of the terminal.
+        random.nextBytes(data);
+        transmit(CLA_HEALTH, INS_OPEN_SESSION, 0x00, 0x00, data, 0, BLOCK_SIZE, BLOCK_SIZE * 2);
+
+        if (responseLength != BLOCK_SIZE * 2)
+            throw new CardException("Wrong length of the OPEN SESSION response");
+
+        // Derive the session keys: AES-CBC (IV = 0) of card random [0..7], terminal random, card random [8..15].
+        System.arraycopy(responseData, 0, block, 0, 8);
+        System.arraycopy(data, 0, block, 8, BLOCK_SIZE);
+        System.arraycopy(responseData, 8, block, 24, 8);
+
+        Arrays.fill(mac, (byte) 0);
+        encryptChained(keyCipher, mac, block, 0, BLOCK_SIZE * 2);
+
+        sessionEncryptCipher = getCipher(Cipher.ENCRYPT_MODE, block, 0);
+        sessionDecryptCipher = getCipher(Cipher.DECRYPT_MODE, block, 0);
+        sessionMacCipher = getCipher(Cipher.ENCRYPT_MODE, block, BLOCK_SIZE);
+        Arrays.fill(block, (byte) 0);
+
+        // Check the MAC of both randoms, so the card is known to have the same session keys.
+        System.arraycopy(data, 0, block, 0, BLOCK_SIZE);
+        System.arraycopy(responseData, 0, block, BLOCK_SIZE, BLOCK_SIZE);
+        sign(sessionMacCipher, block, 0, BLOCK_SIZE * 2, null, 0, 0);
+
+        if (!Arrays.equals(mac, 0, BLOCK_SIZE, responseData, BLOCK_SIZE, BLOCK_SIZE * 2))
+            throw new CardException("Wrong MAC of the OPEN SESSION response");
+
+        Arrays.fill(commandChain, (byte) 0);
+        Arrays.fill(responseChain, (byte) 0);
+        sessionCounter = 0;
+        sessionOpen = true;
+    }
+
+
+    // Forget the secure session (the card ends it on deselect or after a wrong secure command).
+    public void closeSession ()
+    {
+        sessionOpen = false;
+    }
+
+
+    // Return true while the commands are sent through the secure session.
+    public boolean isSessionOpen ()
+    {
+        return sessionOpen;
+    }
+
+
+    // VERIFY: validate the PIN (sent encrypted with the installed key, or in the secure session).
+    public void verify (byte[] pin, int offset, int length) throws CardException
+    {
+        if (length > PIN_MAXIMUM_SIZE)
+            throw new IllegalArgumentException("The PIN is at most " + PIN_MAXIMUM_SIZE + " bytes");
+
+        if (sessionOpen)
+        {
+            command(CLA_HEALTH, INS_VERIFY, 0x00, 0x00, pin, offset, length);
+            return;
+        }
+
+        // Data: IV (16 bytes) followed by the PIN, padded with zeros, encrypted with AES-CBC.
+        random.nextBytes(mac);
+        System.arraycopy(mac, 0, data, 0, BLOCK_SIZE);
+        Arrays.fill(data, BLOCK_SIZE, BLOCK_SIZE * 2, (byte) 0);
+        System.arraycopy(pin, offset, data, BLOCK_SIZE, length);
+        encryptChained(keyCipher, mac, data, BLOCK_SIZE, BLOCK_SIZE);
+
+        command(CLA_HEALTH, INS_VERIFY, 0x00, 0x00, data, 0, BLOCK_SIZE * 2);
+    }
+
+
+    // UPDATE PIN: replace the PIN (each PIN is padded with zeros to 8 bytes).
+    public void updatePin (byte[] oldPin, byte[] newPin) throws CardException
+    {
+        if (oldPin.length > PIN_MAXIMUM_SIZE || newPin.length > PIN_MAXIMUM_SIZE)
+            throw new IllegalArgumentException("The PIN is at most " + PIN_MAXIMUM_SIZE + " bytes");
+
+        Arrays.fill(data, 0, PIN_MAXIMUM_SIZE * 2, (byte) 0);
+        System.arraycopy(oldPin, 0, data, 0, oldPin.length);
+        System.arraycopy(newPin, 0, data, PIN_MAXIMUM_SIZE, newPin.length);
+
+        command(CLA_HEALTH, INS_UPDATE_PIN, 0x00, 0x00, data, 0, PIN_MAXIMUM_SIZE * 2);
+    }
+
+
+    // GET PATIENT DATA: copy the whole record and return its length.
+    // Record: birthdate (3 bytes), blood group and Rh factor (2), chronic diagnosis and specialty (2), donor code (1),
+    //         consults (5 bytes each), medical vacations (4 bytes each).
+    public int getPatientData (byte[] output, int offset) throws CardException
+    {
+        if (!sessionOpen)
+            return transmitChained(CLA_HEALTH, INS_GET_PATIENT_DATA, 0x00, 0x00, null, 0, 0, output, offset);
+
+        // In the secure session, read by offset until a response is not full.
+        int total = 0;
+
+        do
+        {
+            transmit(CLA_HEALTH, INS_GET_PATIENT_DATA, total >> 8, total, null, 0, 0, MAXIMUM_RESPONSE_SIZE);
+
+            System.arraycopy(responseData, 0, output, offset + total, responseLength);
+            total += responseLength;
+        }
+        while (responseLength == SECURE_MAXIMUM_OUTPUT);
+
+        return total;
+    }
+
+
+    // GET PATIENT DATA: copy only the given fields (FIELD_...) of the record, in the order of the record, and return their length.
+    public int getPatientData (int fields, byte[] output, int offset) throws CardException
+    {
+        if (!sessionOpen)
+            return transmitChained(CLA_HEALTH, INS_GET_PATIENT_DATA, READ_BY_FIELDS, fields, null, 0, 0, output, offset);
+
+        // In the secure session, read from the offset in the fields until a response is not full (a response is clipped to
+        // SECURE_MAXIMUM_OUTPUT, so a single one would return the larger fields cut short).
+        int total = 0;
+
+        do
+        {
+            data[0] = (byte) (total >> 8);
+            data[1] = (byte) total;
+            transmit(CLA_HEALTH, INS_GET_PATIENT_DATA, READ_BY_FIELDS, fields, data, 0, 2, MAXIMUM_RESPONSE_SIZE);
+
+            System.arraycopy(responseData, 0, output, offset + total, responseLength);
+            total += responseLength;
+        }
+        while (responseLength == SECURE_MAXIMUM_OUTPUT);
+
+        return total;
+    }
+
+
+    // GET EMERGENCY DATA: copy blood group, Rh factor, chronic diagnosis, chronic specialty and donor code (no PIN needed).
+    public void getEmergencyData (byte[] output, int offset) throws CardException
+    {
+        transmit(CLA_HEALTH, INS_GET_EMERGENCY_DATA, 0x00, 0x00, null, 0, 0, EMERGENCY_DATA_SIZE);
+
+        copyEmergencyData(output, offset);
+    }
+
+
+    // GET EMERGENCY DATA signed together with a fresh challenge, so the data is known to come from the card.
+    // Only outside a secure session (inside one, the MAC of the session already authenticates the data).
+    public void getSignedEmergencyData (byte[] output, int offset) throws CardException
+    {
+        if (sessionOpen)
+            throw new IllegalStateException("The signed emergency data is only read outside a secure session");
+
+        random.nextBytes(data);
+        transmit(CLA_HEALTH, INS_GET_EMERGENCY_DATA, 0x01, 0x00, data, 0, EMERGENCY_CHALLENGE_SIZE, EMERGENCY_DATA_SIZE + BLOCK_SIZE);
+
+        if (responseLength != EMERGENCY_DATA_SIZE + BLOCK_SIZE)
+            throw new CardException("Wrong length of the signed emergency data");
+
+        // Check the AES MAC of the challenge, the emergency data and the zero padding.
+        Arrays.fill(block, 0, BLOCK_SIZE * 2, (byte) 0);
+        System.arraycopy(data, 0, block, 0, EMERGENCY_CHALLENGE_SIZE);
+        System.arraycopy(responseData, 0, block, EMERGENCY_CHALLENGE_SIZE, EMERGENCY_DATA_SIZE);
+        sign(emergencyCipher, block, 0, BLOCK_SIZE * 2, null, 0, 0);
+
+        if (!Arrays.equals(mac, 0, BLOCK_SIZE, responseData, EMERGENCY_DATA_SIZE, EMERGENCY_DATA_SIZE + BLOCK_SIZE))
+            throw new CardException("Wrong MAC of the emergency data");
+
+        copyEmergencyData(output, offset);
+    }
+
+
+    // Return the key of the emergency signature of a card installed with the given key, for the terminals that only check
+    // the emergency data (they don't need the installed key, which also protects the PIN).
+    public static byte[] getEmergencyKey (byte[] aesKey) throws CardException
+    {
+        byte[] key = EMERGENCY_KEY_LABEL.clone();
+
+        update(getCipher(Cipher.ENCRYPT_MODE, aesKey, 0), key, 0);
+
+        return key;
+    }
+
+
+    // SET PATIENT DATA: set the chronic diagnosis code (0 - no chronic disease).
+    public void setChronicDiagnosis (int code) throws CardException
+    {
+        setPatientData(0, code);
+    }
+
+
+    // SET PATIENT DATA: set the chronic specialty code.
+    public void setChronicSpecialty (int code) throws CardException
+    {
+        setPatientData(1, code);
+    }
+
+
+    // SET PATIENT DATA: set the donor code.
+    public void setDonor (boolean donor) throws CardException
+    {
+        setPatientData(2, donor ? 1 : 0);
+    }
+
+
+    // SET CONSULT DATA: add a consult (year - years since 2000).
+    public void setConsult (int diagnosisCode, int specialtyCode, int day, int month, int year) throws CardException
+    {
+        data[0] = (byte) day;
+        data[1] = (byte) month;
+        data[2] = (byte) year;
+
+        command(CLA_HEALTH, INS_SET_CONSULT_DATA, diagnosisCode, specialtyCode, data, 0, 3);
+    }
+
+
+    // CHECK CONSULTS: copy one bit per specialty (1 - eligible, from the highest bit of the first byte) and return the length.
+    public int checkConsults (int day, int month, int year, byte[] specialtyCodes, int codesOffset, int count, byte[] output, int offset) throws CardException
+    {
+        data[0] = (byte) day;
+        data[1] = (byte) month;
+        data[2] = (byte) year;
+        System.arraycopy(specialtyCodes, codesOffset, data, 3, count);
+
+        transmit(CLA_HEALTH, INS_CHECK_CONSULTS, 0x00, 0x00, data, 0, 3 + count, (count + 7) >> 3);
+        System.arraycopy(responseData, 0, output, offset, responseLength);
+
+        return responseLength;
+    }
+
+
+    // Return true if the specialty at the given index is eligible in the bitmap of CHECK CONSULTS.
+    public static boolean isEligible (byte[] bitmap, int offset, int index)
+    {
+        return (bitmap[offset + (index >> 3)] & (0x80 >> (index & 7))) != 0;
+    }
+
+
+    // SET MEDICAL VACATION: add a medical vacation from the start to the end date (years since 2000); the card refuses one
+    // that starts 12 months or more before the latest month it has counted.
+    public void setMedicalVacation (int startDay, int startMonth, int startYear, int endDay, int endMonth, int endYear) throws CardException
+    {
+        data[0] = (byte) startDay;
+        data[1] = (byte) startMonth;
+        data[2] = (byte) startYear;
+        data[3] = (byte) endDay;
+        data[4] = (byte) endMonth;
+        data[5] = (byte) endYear;
+
+        command(CLA_HEALTH, INS_SET_MED_VACATION, 0x00, 0x00, data, 0, 6);
+    }
+
+
+    // COMMIT: save the working copy of the record (applet installed with the working copy option).
+    public void commit () throws CardException
+    {
+        command(CLA_HEALTH, INS_COMMIT, 0x00, 0x00, data, 0, 0);
+    }
+
+
+    // GET STATS: get the usage statistics of the card (no PIN needed; in the secure session when one is open).
+    @Override
+    public CardStats getStats (CardStats into) throws CardException
+    {
+        transmit(CLA_HEALTH, INS_GET_STATS, 0x00, 0x00, null, 0, 0, MAXIMUM_RESPONSE_SIZE);
+
+        return into.parse(responseData, 0, responseLength);
+    }
+
+
+    @Override
+    protected void sendPipeline (byte[] commands, int length) throws CardException
+    {
+        // In the secure session, every command is wrapped on its own.
+        if (sessionOpen)
+        {
+            super.sendPipeline(commands, length);
+            return;
+        }
+
+        // Otherwise, pack the commands in BATCH commands: INS, P1, P2, Lc, data each.
+        int offset = 0;
+
+        while (offset < length)
+        {
+            int batchLength = 0;
+
+            while (offset < length)
+            {
+                int commandLength = BATCH_HEADER_SIZE + (commands[offset + 4] & 0xFF);
+
+                if (batchLength + commandLength > MAXIMUM_DATA_SIZE)
+                    break;
+
+                System.arraycopy(commands, offset + 1, data, batchLength, commandLength);
+                batchLength += commandLength;
+                offset += 1 + commandLength;
+            }
+
+            send(CLA_HEALTH, INS_BATCH, 0x00, 0x00, data, 0, batchLength, MAXIMUM_RESPONSE_SIZE);
+
+            // Check the result of every command: SW1, SW2, length of the output, output.
+            int commandOffset = 0;
+            int resultOffset = 0;
+
+            while (commandOffset < batchLength)
+            {
+                if (resultOffset + BATCH_RESULT_HEADER_SIZE > responseLength)
+                    throw new CardException("Missing result in the BATCH response");
+
+                int statusWord = ((responseData[resultOffset] & 0xFF) << 8) | (responseData[resultOffset + 1] & 0xFF);
+
+                check(data[commandOffset], statusWord);
+
+                resultOffset += BATCH_RESULT_HEADER_SIZE + (responseData[resultOffset + 2] & 0xFF);
+                commandOffset += BATCH_HEADER_SIZE + (data[commandOffset + 3] & 0xFF);
+            }
+        }
+    }
+
+
+    @Override
+    protected int send (int cla, int ins, int p1, int p2, byte[] commandData, int offset, int length, int le) throws CardException
+    {
+        // All the commands go through the secure session, when one is open (the card refuses them in clear).
+        if (!sessionOpen || cla != CLA_HEALTH || ins == INS_OPEN_SESSION)
+            return super.send(cla, ins, p1, p2, commandData, offset, length, le);
+
+        return sendSecure(ins, p1, p2, commandData, offset, length);
+    }
+
+
+    @Override
+    protected String describe (int statusWord)
+    {
+        switch (statusWord)
+        {
+            case SW_VERIFICATION_FAILED:				return "PIN verification failed or required";
+            case SW_NOT_ENOUGH_DATA:					return "not enough data";
+            case SW_SECURE_DATA_INCORRECT:				return "wrong secure command, session closed";
+            default:									return super.describe(statusWord);
+        }
+    }
+
+
+    // Wrap a command in the secure session: encrypted data (padded with 0x80 0x00 ...) followed by the MAC of the header block and the data.
+    private int sendSecure (int ins, int p1, int p2, byte[] commandData, int offset, int length) throws CardException
+    {
+        int paddedLength = (length == 0) ? 0 : (length + BLOCK_SIZE) & ~(BLOCK_SIZE - 1);
+
+        if (paddedLength + BLOCK_SIZE > MAXIMUM_DATA_SIZE)
+            throw new IllegalArgumentException("The data of a secure command is at most " + (MAXIMUM_DATA_SIZE - BLOCK_SIZE * 2) + " bytes");
+
+        // Pad and encrypt the data, chained over the whole session (commandData may be the data buffer itself).
+        if (length > 0 && (commandData != data || offset != 0))
+            System.arraycopy(commandData, offset, data, 0, length);
+
+        if (paddedLength > 0)
+        {
+            data[length] = (byte) 0x80;
+            Arrays.fill(data, length + 1, paddedLength, (byte) 0);
+            encryptChained(sessionEncryptCipher, commandChain, data, 0, paddedLength);
+        }
+
+        // Sign the header block and the encrypted data.
+        int counter = ++sessionCounter & 0xFFFF;
+
+        setHeader(counter, CLA_HEALTH_SECURE, ins, p1, p2);
+        sign(sessionMacCipher, block, 0, BLOCK_SIZE, data, 0, paddedLength);
+        System.arraycopy(mac, 0, data, paddedLength, BLOCK_SIZE);
+
+        try
+        {
+            super.send(CLA_HEALTH_SECURE, ins, p1, p2, data, 0, paddedLength + BLOCK_SIZE, MAXIMUM_RESPONSE_SIZE);
+        }
+        catch (StatusWordException e)
+        {
+            // The card closes the session after a wrong secure command.
+            if (e.getStatusWord() == SW_SECURE_DATA_INCORRECT)
+                sessionOpen = false;
+
+            throw e;
+        }
+
+        // Check the MAC of the response: header block (counter, 0x90 0x00, length of the encrypted data) and the encrypted data.
+        int encryptedLength = responseLength - BLOCK_SIZE;
+
+        if (encryptedLength < 0 || encryptedLength % BLOCK_SIZE != 0)
+            throw closeSecure("Wrong length of the secure response");
+
+        setHeader(counter, 0x90, 0x00, encryptedLength >> 8, encryptedLength);
+        sign(sessionMacCipher, block, 0, BLOCK_SIZE, responseData, 0, encryptedLength);
+
+        if (!Arrays.equals(mac, 0, BLOCK_SIZE, responseData, encryptedLength, responseLength))
+            throw closeSecure("Wrong MAC of the secure response");
+
+        // Decrypt the output and remove the padding.
+        responseLength = 0;
+
+        if (encryptedLength > 0)
+        {
+            decryptChained(sessionDecryptCipher, responseChain, responseData, 0, encryptedLength);
+
+            responseLength = encryptedLength - 1;
+
+            while (responseLength > 0 && responseData[responseLength] == 0)
+                responseLength--;
+
+            if (responseData[responseLength] != (byte) 0x80)
+                throw closeSecure("Wrong padding of the secure response");
+        }
+
+        return responseLength;
+    }
+
+
+    private CardException closeSecure (String message)
+    {
+        sessionOpen = false;
+
+        return new CardException(message);
+    }
+
+
+    private void setHeader (int counter, int first, int second, int third, int fourth)
+    {
+        Arrays.fill(block, 0, BLOCK_SIZE, (byte) 0);
+        block[0] = (byte) (counter >> 8);
+        block[1] = (byte) counter;
+        block[2] = (byte) first;
+        block[3] = (byte) second;
+        block[4] = (byte) third;
+        block[5] = (byte) fourth;
+        block[6] = (byte) 0x80;
+    }
+
+
+    private void setPatientData (int option, int value) throws CardException
+    {
+        data[0] = (byte) value;
+
+        command(CLA_HEALTH, INS_SET_PATIENT_DATA, option, 0x00, data, 0, 1);
+    }
+
+
+    private void copyEmergencyData (byte[] output, int offset) throws CardException
+    {
+        if (responseLength < EMERGENCY_DATA_SIZE)
+            throw new CardException("Wrong length of the emergency data");
+
+        System.arraycopy(responseData, 0, output, offset, EMERGENCY_DATA_SIZE);
+    }
+
+
+    // AES-CBC encrypt in place, continuing from the given chaining block.
+    private static void encryptChained (Cipher cipher, byte[] chain, byte[] buffer, int offset, int length) throws CardException
+    {
+        for (int position = offset; position < offset + length; position += BLOCK_SIZE)
+        {
+            for (int index = 0; index < BLOCK_SIZE; index++)
+                buffer[position + index] ^= chain[index];
+
+            update(cipher, buffer, position);
+            System.arraycopy(buffer, position, chain, 0, BLOCK_SIZE);
+        }
+    }
+
+
+    // AES-CBC decrypt in place, continuing from the given chaining block.
+    private void decryptChained (Cipher cipher, byte[] chain, byte[] buffer, int offset, int length) throws CardException
+    {
+        for (int position = offset; position < offset + length; position += BLOCK_SIZE)
+        {
+            System.arraycopy(buffer, position, mac, 0, BLOCK_SIZE);
+            update(cipher, buffer, position);
+
+            for (int index = 0; index < BLOCK_SIZE; index++)
+                buffer[position + index] ^= chain[index];
+
+            System.arraycopy(mac, 0, chain, 0, BLOCK_SIZE);
+        }
+    }
+
+
+    // AES MAC (AES-CBC with IV = 0, last block) of the first and the second part, into mac.
+    private void sign (Cipher cipher, byte[] first, int firstOffset, int firstLength, byte[] second, int secondOffset, int secondLength) throws CardException
+    {
+        Arrays.fill(mac, (byte) 0);
+
+        for (int position = 0; position < firstLength + secondLength; position += BLOCK_SIZE)
+        {
+            for (int index = 0; index < BLOCK_SIZE; index++)
+            {
+                int source = position + index;
+
+                mac[index] ^= (source < firstLength) ? first[firstOffset + source] : second[secondOffset + source - firstLength];
+            }
+
+            update(cipher, mac, 0);
+        }
+    }
+
+
+    private static void update (Cipher cipher, byte[] buffer, int offset) throws CardException
+    {
+        try
+        {
+            cipher.update(buffer, offset, BLOCK_SIZE, buffer, offset);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new CardException(e);
+        }
+    }
+
+
+    private static Cipher getCipher (int mode, byte[] key, int offset) throws CardException
+    {
+        try
+        {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(mode, new SecretKeySpec(key, offset, BLOCK_SIZE, "AES"));
+
+            return cipher;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new CardException(e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package terminal;
+
+
+
+// Histogram of latencies in nanoseconds, with buckets growing like powers of 2 (8 buckets for each power, so the
+// percentiles are within 12.5%). Recording allocates nothing; histograms filled by different threads are merged with add().
+public final class LatencyHistogram
+{
+    // Define the number of buckets for each power of 2, and the number of buckets.
+    static final int SUB_BUCKET_BITS						= 3;
+    static final int SUB_BUCKETS							= 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS								= (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long maximum;
+
+
+    // Record a latency.
+    public void record (long nanoseconds)
+    {
+        if (nanoseconds < 0)
+            nanoseconds = 0;
+
+        counts[getBucket(nanoseconds)]++;
+        count++;
+        total += nanoseconds;
+
+        if (nanoseconds > maximum)
+            maximum = nanoseconds;
+    }
+
+
+    // Add the latencies of the other histogram to this one.
+    public void add (LatencyHistogram other)
+    {
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            counts[bucket] += other.counts[bucket];
+
+        count += other.count;
+        total += other.total;
+        maximum = Math.max(maximum, other.maximum);
+    }
+
+
+    public long getCount ()
+    {
+        return count;
+    }
+
+
+    public long getMaximum ()
+    {
+        return maximum;
+    }
+
+
+    public double getMean ()
+    {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+
+    // Return the latency under which the given percent of the latencies are (the highest value of its bucket).
+    public long getPercentile (double percent)
+    {
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(count * percent / 100);
+        long seen = 0;
+
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            seen += counts[bucket];
+
+            if (seen >= Math.max(rank, 1))
+                return Math.min(getBucketEnd(bucket), maximum);
+        }
+
+        return maximum;
+    }
+
+
+    // Return the bucket of the latency: the value itself below 8, then 8 buckets for each power of 2.
+    static int getBucket (long nanoseconds)
+    {
+        if (nanoseconds < SUB_BUCKETS)
+            return (int) nanoseconds;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanoseconds);
+        int subBucket = (int) (nanoseconds >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+
+    // Return the highest latency of the bucket.
+    static long getBucketEnd (int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        return ((SUB_BUCKETS + bucket % SUB_BUCKETS) * width) + width - 1;
+    }
+
+
+    @Override
+    public String toString ()
+    {
+        return String.format("%10d %10.1f %10.1f %10.1f %10.1f %10.1f", count, getMean() / 1e3, getPercentile(50) / 1e3,
+                getPercentile(90) / 1e3, getPercentile(99) / 1e3, maximum / 1e3);
+    }
+}
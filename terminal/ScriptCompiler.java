@@ -0,0 +1,280 @@
+package terminal;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+
+// Compiles the APDU scripts (.scr, .script) into a binary replay format, with the expected status words taken from the comments.
+//
+// Script: statements ending with ';'. A command is CLA INS P1 P2 Lc [data] [Le] as 0x.. tokens; other statements
+// (output on; ...) are skipped. The "SW1: 90", "SW1: 0x9000" or "SW1: 6a" in the comments before a command is its expected
+// status word (SW1 only when SW2 is not given).
+//
+// Binary: magic "APDS", version (2 bytes), number of steps (4 bytes), then for each step:
+// line (4 bytes), length of the command (2 bytes), command, expected status word (2 bytes), mask of the status word (2 bytes),
+// length of the expected response (2 bytes, 0xFFFF - not checked), expected response, description (modified UTF-8).
+public final class ScriptCompiler
+{
+    public static final int MAGIC							= 0x41504453;
+    public static final int VERSION							= 1;
+    static final int RESPONSE_NOT_CHECKED					= 0xFFFF;
+
+
+    // Pattern of the expected status word in a comment.
+    private static final Pattern STATUS_WORD = Pattern.compile("SW1\\s*:\\s*(?:0x)?([0-9A-Fa-f]{4}|[0-9A-Fa-f]{2})(?![0-9A-Fa-f])");
+
+
+    private ScriptCompiler ()
+    {
+    }
+
+
+    // Parse the script into its commands.
+    public static List<ScriptStep> parse (Reader script) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(script);
+        List<ScriptStep> steps = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+
+        // Expected status word and description from the comments since the last statement.
+        int expectedStatusWord = 0;
+        int statusWordMask = ScriptStep.NOT_CHECKED;
+        String description = null;
+        int statementLine = 0;
+        int lineNumber = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null)
+        {
+            lineNumber++;
+
+            // Split the comment from the statement.
+            int commentStart = line.indexOf("//");
+            String comment = (commentStart < 0) ? null : line.substring(commentStart + 2).trim();
+            String statement = (commentStart < 0) ? line : line.substring(0, commentStart);
+
+            if (comment != null)
+            {
+                Matcher matcher = STATUS_WORD.matcher(comment);
+
+                while (matcher.find())
+                {
+                    String value = matcher.group(1);
+
+                    expectedStatusWord = Integer.parseInt(value, 16) << (value.length() == 2 ? 8 : 0);
+                    statusWordMask = (value.length() == 2) ? ScriptStep.SW1_ONLY : 0xFFFF;
+                }
+
+                if (description == null && !comment.isEmpty())
+                    description = comment;
+            }
+
+            // Collect the tokens until the end of the statement.
+            int position = 0;
+
+            while (position < statement.length())
+            {
+                int end = statement.indexOf(';', position);
+                String part = statement.substring(position, end < 0 ? statement.length() : end).trim();
+
+                if (!part.isEmpty())
+                {
+                    if (tokens.isEmpty())
+                        statementLine = lineNumber;
+
+                    for (String token : part.split("\\s+"))
+                        tokens.add(token);
+                }
+
+                if (end < 0)
+                    break;
+
+                // The statement is complete.
+                if (!tokens.isEmpty() && isCommand(tokens))
+                    steps.add(new ScriptStep(statementLine, toCommand(tokens, statementLine), expectedStatusWord, statusWordMask, null, description));
+
+                tokens.clear();
+                expectedStatusWord = 0;
+                statusWordMask = ScriptStep.NOT_CHECKED;
+                description = null;
+                position = end + 1;
+            }
+        }
+
+        if (!tokens.isEmpty())
+            throw new IOException("Line " + statementLine + ": statement without ';'");
+
+        return steps;
+    }
+
+
+    // Parse the script in the given file.
+    public static List<ScriptStep> parse (Path script) throws IOException
+    {
+        try (Reader reader = Files.newBufferedReader(script, StandardCharsets.UTF_8))
+        {
+            return parse(reader);
+        }
+    }
+
+
+    // Write the steps in the binary replay format.
+    public static byte[] write (List<ScriptStep> steps) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeInt(MAGIC);
+        output.writeShort(VERSION);
+        output.writeInt(steps.size());
+
+        for (ScriptStep step : steps)
+        {
+            output.writeInt(step.getLine());
+            output.writeShort(step.getCommand().length);
+            output.write(step.getCommand());
+            output.writeShort(step.getExpectedStatusWord());
+            output.writeShort(step.getStatusWordMask());
+
+            byte[] response = step.getExpectedResponse();
+
+            if (response == null)
+                output.writeShort(RESPONSE_NOT_CHECKED);
+
+            else
+            {
+                output.writeShort(response.length);
+                output.write(response);
+            }
+
+            output.writeUTF(step.getDescription() == null ? "" : step.getDescription());
+        }
+
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+
+
+    // Read the steps from the binary replay format.
+    public static List<ScriptStep> read (byte[] compiled) throws IOException
+    {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(compiled));
+
+        if (input.readInt() != MAGIC || input.readUnsignedShort() != VERSION)
+            throw new IOException("Not a compiled APDU script");
+
+        int count = input.readInt();
+        List<ScriptStep> steps = new ArrayList<>(count);
+
+        for (int index = 0; index < count; index++)
+        {
+            int line = input.readInt();
+            byte[] command = new byte[input.readUnsignedShort()];
+            input.readFully(command);
+
+            int expectedStatusWord = input.readUnsignedShort();
+            int statusWordMask = input.readUnsignedShort();
+            int responseLength = input.readUnsignedShort();
+            byte[] response = null;
+
+            if (responseLength != RESPONSE_NOT_CHECKED)
+            {
+                response = new byte[responseLength];
+                input.readFully(response);
+            }
+
+            String description = input.readUTF();
+
+            steps.add(new ScriptStep(line, command, expectedStatusWord, statusWordMask, response, description.isEmpty() ? null : description));
+        }
+
+        return steps;
+    }
+
+
+    // Usage: ScriptCompiler <script> <compiled script>
+    public static void main (String[] arguments) throws IOException
+    {
+        if (arguments.length != 2)
+        {
+            System.err.println("Usage: java terminal.ScriptCompiler <script> <compiled script>");
+            System.exit(2);
+        }
+
+        List<ScriptStep> steps = parse(Paths.get(arguments[0]));
+        int checked = 0;
+
+        for (ScriptStep step : steps)
+            if (step.getStatusWordMask() != ScriptStep.NOT_CHECKED)
+                checked++;
+
+        Files.write(Paths.get(arguments[1]), write(steps));
+
+        System.out.println(arguments[0] + ": " + steps.size() + " commands, " + checked + " with an expected status word");
+    }
+
+
+    private static boolean isCommand (List<String> tokens)
+    {
+        for (String token : tokens)
+            if (!token.startsWith("0x") && !token.startsWith("0X"))
+                return false;
+
+        return true;
+    }
+
+
+    // Turn the tokens CLA INS P1 P2 Lc [data] [Le] into the command APDU (Lc = 0 means no data).
+    private static byte[] toCommand (List<String> tokens, int line) throws IOException
+    {
+        if (tokens.size() < 5)
+            throw new IOException("Line " + line + ": a command needs at least CLA INS P1 P2 Lc");
+
+        byte[] bytes = new byte[tokens.size()];
+
+        for (int index = 0; index < bytes.length; index++)
+        {
+            try
+            {
+                bytes[index] = (byte) Integer.parseInt(tokens.get(index).substring(2), 16);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Line " + line + ": wrong byte " + tokens.get(index));
+            }
+        }
+
+        int dataLength = bytes[4] & 0xFF;
+        int leLength = bytes.length - 5 - dataLength;
+
+        if (leLength != 0 && leLength != 1)
+            throw new IOException("Line " + line + ": Lc doesn't match the length of the data");
+
+        // Without data, the Lc byte is dropped.
+        if (dataLength > 0)
+            return bytes;
+
+        byte[] command = new byte[4 + leLength];
+        System.arraycopy(bytes, 0, command, 0, 4);
+
+        if (leLength == 1)
+            command[4] = bytes[5];
+
+        return command;
+    }
+}
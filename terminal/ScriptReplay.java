@@ -0,0 +1,432 @@
+package terminal;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+
+
+
+// Replays a compiled APDU script against a card channel and reports every step whose status word or response differs from
+// the expected one (the status words of the script's comments, or the ones recorded). main() replays on a PC/SC reader, at
+// the reader's rate (hundreds of APDUs per second), or with --simulator on simulated cards (SimulatedCard), a new one for
+// each repetition, since the scripts install their applet. With --fork, the setup of the script (getSetupLength) runs once on
+// a simulated card, and each repetition runs the rest on a card created from its snapshot.
+// The steps are flattened into arrays once, so the replay itself allocates nothing while the card answers as expected.
+// The scripts send their own GET RESPONSE after a 61xx, so main() keeps the JDK provider from collecting the responses.
+public final class ScriptReplay
+{
+    // Define the limits of the report.
+    static final int MAXIMUM_DIVERGENCES					= 100;
+
+
+    private final List<ScriptStep> steps;
+
+
+    // Declare the commands, back to back, and where each one starts and ends.
+    private final ByteBuffer commands;
+    private final int[] commandStart;
+    private final int[] commandEnd;
+
+
+    // Declare the expected status words and responses.
+    private final int[] expectedStatusWord;
+    private final int[] statusWordMask;
+    private final byte[][] expectedResponse;
+
+
+    // Declare the buffer of the responses (long enough for a response collected by the provider, on a channel that does).
+    private final ByteBuffer response = ByteBuffer.allocate(CardClient.MAXIMUM_CHAINED_RESPONSE_SIZE + 2);
+
+
+    // A step that got another status word or response than the expected ones.
+    public static final class Divergence
+    {
+        public final ScriptStep step;
+        public final int repetition;
+        public final int statusWord;
+        public final byte[] response;
+
+
+        Divergence (ScriptStep step, int repetition, int statusWord, byte[] response)
+        {
+            this.step = step;
+            this.repetition = repetition;
+            this.statusWord = statusWord;
+            this.response = response;
+        }
+
+
+        @Override
+        public String toString ()
+        {
+            StringBuilder text = new StringBuilder();
+
+            text.append(String.format("line %d (INS 0x%02X): expected SW %s, got %04X", step.getLine(), step.getIns(), formatExpected(step), statusWord));
+
+            if (step.getExpectedResponse() != null && !Arrays.equals(step.getExpectedResponse(), response))
+                text.append("; expected response ").append(toHex(step.getExpectedResponse())).append(", got ").append(toHex(response));
+
+            if (step.getDescription() != null)
+                text.append(" - ").append(step.getDescription());
+
+            return text.toString();
+        }
+    }
+
+
+    // Result of a replay.
+    public static final class Report
+    {
+        public long commands;
+        public long divergenceCount;
+        public long elapsedNanoseconds;
+        public final List<Divergence> divergences = new ArrayList<>();
+
+
+        public double getCommandsPerSecond ()
+        {
+            return elapsedNanoseconds == 0 ? 0 : commands * 1e9 / elapsedNanoseconds;
+        }
+
+
+        // Add the commands and divergences of another replay (not its time, the replays may have run at once).
+        void add (Report other)
+        {
+            commands += other.commands;
+            divergenceCount += other.divergenceCount;
+
+            for (Divergence divergence : other.divergences)
+            {
+                if (divergences.size() < MAXIMUM_DIVERGENCES)
+                    divergences.add(divergence);
+            }
+        }
+
+
+        @Override
+        public String toString ()
+        {
+            StringBuilder text = new StringBuilder();
+
+            for (Divergence divergence : divergences)
+                text.append(divergence).append('\n');
+
+            if (divergenceCount > divergences.size())
+                text.append("... ").append(divergenceCount - divergences.size()).append(" more\n");
+
+            text.append(String.format("%d commands, %d divergences, %.3f ms, %.0f commands/s", commands, divergenceCount, elapsedNanoseconds / 1e6, getCommandsPerSecond()));
+
+            return text.toString();
+        }
+    }
+
+
+    public ScriptReplay (List<ScriptStep> steps)
+    {
+        this.steps = steps;
+
+        int count = steps.size();
+        int total = 0;
+
+        for (ScriptStep step : steps)
+            total += step.getCommand().length;
+
+        commands = ByteBuffer.allocate(total);
+        commandStart = new int[count];
+        commandEnd = new int[count];
+        expectedStatusWord = new int[count];
+        statusWordMask = new int[count];
+        expectedResponse = new byte[count][];
+
+        for (int index = 0; index < count; index++)
+        {
+            ScriptStep step = steps.get(index);
+
+            commandStart[index] = commands.position();
+            commands.put(step.getCommand());
+            commandEnd[index] = commands.position();
+
+            expectedStatusWord[index] = step.getExpectedStatusWord();
+            statusWordMask[index] = step.getStatusWordMask();
+            expectedResponse[index] = step.getExpectedResponse();
+        }
+    }
+
+
+    public List<ScriptStep> getSteps ()
+    {
+        return steps;
+    }
+
+
+    // Replay the script the given number of times.
+    public Report run (CardChannel channel, int repetitions) throws CardException
+    {
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        for (int repetition = 0; repetition < repetitions; repetition++)
+            replay(channel, repetition, report);
+
+        report.elapsedNanoseconds = System.nanoTime() - start;
+        report.commands = (long) repetitions * commandStart.length;
+
+        return report;
+    }
+
+
+    // Replay the script the given number of times, each time on the card the source gives for the repetition.
+    public Report run (FleetLoadGenerator.CardSource cards, int repetitions) throws CardException
+    {
+        return run(cards, 0, repetitions);
+    }
+
+
+    // Replay the repetitions of the script from the given one on (a part of the repetitions run by another thread).
+    Report run (FleetLoadGenerator.CardSource cards, int firstRepetition, int repetitions) throws CardException
+    {
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        for (int repetition = firstRepetition; repetition < firstRepetition + repetitions; repetition++)
+            replay(cards.connect(repetition), repetition, report);
+
+        report.elapsedNanoseconds = System.nanoTime() - start;
+        report.commands = (long) repetitions * commandStart.length;
+
+        return report;
+    }
+
+
+    // Replay the script once, adding the steps that diverge to the report.
+    private void replay (CardChannel channel, int repetition, Report report) throws CardException
+    {
+        byte[] responseData = response.array();
+
+        for (int index = 0; index < commandStart.length; index++)
+        {
+            int length = transmit(channel, index);
+            int statusWord = ((responseData[length] & 0xFF) << 8) | (responseData[length + 1] & 0xFF);
+
+            if ((statusWord & statusWordMask[index]) != expectedStatusWord[index]
+                    || (expectedResponse[index] != null && !Arrays.equals(expectedResponse[index], 0, expectedResponse[index].length, responseData, 0, length)))
+            {
+                report.divergenceCount++;
+
+                if (report.divergences.size() < MAXIMUM_DIVERGENCES)
+                    report.divergences.add(new Divergence(steps.get(index), repetition, statusWord, Arrays.copyOf(responseData, length)));
+            }
+        }
+    }
+
+
+    // Return the number of steps that set the applet up: up to the last CREATE, then the SELECTs and PIN commands right after
+    // it (VERIFY, and the PIN changes of the personalization); 0 if the script creates no applet.
+    public static int getSetupLength (List<ScriptStep> steps)
+    {
+        int length = 0;
+
+        for (int index = 0; index < steps.size(); index++)
+        {
+            if (steps.get(index).isInstall())
+                length = index + 1;
+        }
+
+        if (length == 0)
+            return 0;
+
+        while (length < steps.size() && (steps.get(length).isSelect() || steps.get(length).isPinCommand()))
+            length++;
+
+        return length;
+    }
+
+
+    // Replay the script once and return its steps expecting exactly the status words and responses the card gave.
+    public List<ScriptStep> record (CardChannel channel) throws CardException
+    {
+        List<ScriptStep> recorded = new ArrayList<>(steps.size());
+        byte[] responseData = response.array();
+
+        for (int index = 0; index < commandStart.length; index++)
+        {
+            int length = transmit(channel, index);
+            int statusWord = ((responseData[length] & 0xFF) << 8) | (responseData[length + 1] & 0xFF);
+
+            recorded.add(steps.get(index).withExpected(statusWord, Arrays.copyOf(responseData, length)));
+        }
+
+        return recorded;
+    }
+
+
+    // Replay the setup of the script once on a simulated card, then the rest of it the given number of times, each time on a
+    // card created from the snapshot taken after the setup. The report counts the steps of the setup once.
+    public static Report runForked (List<ScriptStep> steps, int repetitions) throws CardException
+    {
+        int setupLength = getSetupLength(steps);
+        SimulatedCard card = new SimulatedCard();
+        long start = System.nanoTime();
+
+        Report report = new ScriptReplay(steps.subList(0, setupLength)).run(card.getBasicChannel(), 1);
+        SimulatedCard.Snapshot snapshot = card.snapshot();
+        Report scenarios = new ScriptReplay(steps.subList(setupLength, steps.size())).run(repetition -> new SimulatedCard(snapshot, repetition).getBasicChannel(), repetitions);
+
+        report.add(scenarios);
+        report.elapsedNanoseconds = System.nanoTime() - start;
+
+        return report;
+    }
+
+
+    // Usage: ScriptReplay <script or compiled script> [--reader <index> | --simulator [--fork]] [--repeat <count>] [--record <compiled script>]
+    public static void main (String[] arguments) throws IOException, CardException
+    {
+        if (arguments.length < 1)
+        {
+            System.err.println("Usage: java terminal.ScriptReplay <script or compiled script> [--reader <index> | --simulator [--fork]] [--repeat <count>] [--record <compiled script>]");
+            System.exit(2);
+        }
+
+        int reader = 0;
+        boolean simulator = false;
+        boolean fork = false;
+        int repetitions = 1;
+        Path recordPath = null;
+
+        for (int index = 1; index < arguments.length; index++)
+        {
+            switch (arguments[index])
+            {
+                case "--reader":	reader = Integer.parseInt(arguments[++index]); break;
+                case "--simulator":	simulator = true; break;
+                case "--fork":		fork = true; break;
+                case "--repeat":	repetitions = Integer.parseInt(arguments[++index]); break;
+                case "--record":	recordPath = Paths.get(arguments[++index]); break;
+                default:			throw new IllegalArgumentException("Unknown option " + arguments[index]);
+            }
+        }
+
+        if (fork && (!simulator || recordPath != null))
+            throw new IllegalArgumentException("--fork replays on the simulator, without --record");
+
+        ScriptReplay replay = new ScriptReplay(load(Paths.get(arguments[0])));
+        Card card;
+
+        if (simulator)
+            card = new SimulatedCard();
+        else
+        {
+            disableProviderGetResponse();
+            CardTerminal terminal = TerminalFactory.getDefault().terminals().list().get(reader);
+            card = terminal.connect("*");
+        }
+
+        try
+        {
+            if (recordPath != null)
+            {
+                Files.write(recordPath, ScriptCompiler.write(replay.record(card.getBasicChannel())));
+                System.out.println("Recorded " + replay.getSteps().size() + " commands to " + recordPath);
+                return;
+            }
+
+            Report report;
+
+            if (fork)
+                report = runForked(replay.getSteps(), repetitions);
+            else if (simulator)
+                report = replay.run(repetition -> new SimulatedCard().getBasicChannel(), repetitions);
+            else
+                report = replay.run(card.getBasicChannel(), repetitions);
+
+            System.out.println(report);
+
+            if (report.divergenceCount > 0)
+                System.exit(1);
+        }
+        finally
+        {
+            card.disconnect(true);
+        }
+    }
+
+
+    // Keep the JDK provider from answering 61xx with its own GET RESPONSE, so the card's status words reach the script as they
+    // are; must be called before the provider is first used.
+    static void disableProviderGetResponse ()
+    {
+        System.setProperty("sun.security.smartcardio.t0GetResponse", "false");
+        System.setProperty("sun.security.smartcardio.t1GetResponse", "false");
+    }
+
+
+    // Load a compiled script, or parse a script.
+    public static List<ScriptStep> load (Path path) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(path);
+
+        if (bytes.length >= 4 && ByteBuffer.wrap(bytes).getInt() == ScriptCompiler.MAGIC)
+            return ScriptCompiler.read(bytes);
+
+        return ScriptCompiler.parse(path);
+    }
+
+
+    // Send the command of the step and return the length of the response (without the status word).
+    private int transmit (CardChannel channel, int index) throws CardException
+    {
+        commands.limit(commandEnd[index]).position(commandStart[index]);
+        response.clear();
+
+        int length;
+
+        try
+        {
+            length = channel.transmit(commands, response);
+        }
+        catch (BufferOverflowException e)
+        {
+            throw new CardException("Response longer than " + CardClient.MAXIMUM_CHAINED_RESPONSE_SIZE + " bytes at line " + steps.get(index).getLine(), e);
+        }
+
+        if (length < 2)
+            throw new CardException("Response without a status word at line " + steps.get(index).getLine());
+
+        return length - 2;
+    }
+
+
+    static String formatExpected (ScriptStep step)
+    {
+        switch (step.getStatusWordMask())
+        {
+            case ScriptStep.NOT_CHECKED:	return "any";
+            case ScriptStep.SW1_ONLY:		return String.format("%02Xxx", step.getExpectedStatusWord() >> 8);
+            default:						return String.format("%04X", step.getExpectedStatusWord());
+        }
+    }
+
+
+    static String toHex (byte[] bytes)
+    {
+        StringBuilder text = new StringBuilder();
+
+        for (byte value : bytes)
+            text.append(String.format("%02X", value & 0xFF));
+
+        return text.toString();
+    }
+}
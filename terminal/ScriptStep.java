@@ -0,0 +1,128 @@
+package terminal;
+
+import java.util.Arrays;
+
+
+
+// A command of an APDU script, with the status word and the response it is expected to get.
+public final class ScriptStep
+{
+    // Mask of the status word when the expected SW2 is not given, and when nothing is expected.
+    public static final int SW1_ONLY						= 0xFF00;
+    public static final int NOT_CHECKED						= 0x0000;
+
+
+    // Define the CLA and INS of the installer's CREATE command, and of the SELECT command.
+    static final int CLA_INSTALLER							= 0x80;
+    static final int INS_INSTALL							= 0xB8;
+    static final int CLA_ISO								= 0x00;
+    static final int INS_SELECT								= 0xA4;
+
+
+    // Define the INS of the ISO 7816-4 PIN commands (VERIFY, CHANGE REFERENCE DATA), used by both applets of the tree.
+    static final int INS_VERIFY								= 0x20;
+    static final int INS_CHANGE_REFERENCE_DATA				= 0x24;
+
+
+    private final int line;
+    private final byte[] command;
+    private final int expectedStatusWord;
+    private final int statusWordMask;
+    private final byte[] expectedResponse;
+    private final String description;
+
+
+    // expectedResponse is null when the response is not checked.
+    public ScriptStep (int line, byte[] command, int expectedStatusWord, int statusWordMask, byte[] expectedResponse, String description)
+    {
+        this.line = line;
+        this.command = command;
+        this.expectedStatusWord = expectedStatusWord & statusWordMask;
+        this.statusWordMask = statusWordMask;
+        this.expectedResponse = expectedResponse;
+        this.description = description;
+    }
+
+
+    // Return the line of the command in the script.
+    public int getLine ()
+    {
+        return line;
+    }
+
+
+    // Return the command APDU: CLA, INS, P1, P2, then Lc and the data (if any), then Le (if any).
+    public byte[] getCommand ()
+    {
+        return command;
+    }
+
+
+    public int getIns ()
+    {
+        return command[1] & 0xFF;
+    }
+
+
+    // Return true if the command creates an applet (the installer's CREATE), so the steps after it start on a new applet.
+    public boolean isInstall ()
+    {
+        return (command[0] & 0xFF) == CLA_INSTALLER && getIns() == INS_INSTALL;
+    }
+
+
+    // Return true if the command selects an applet by its AID.
+    public boolean isSelect ()
+    {
+        return (command[0] & 0xFF) == CLA_ISO && getIns() == INS_SELECT && command[2] == 0x04;
+    }
+
+
+    // Return true if the command verifies or changes the PIN.
+    public boolean isPinCommand ()
+    {
+        return getIns() == INS_VERIFY || getIns() == INS_CHANGE_REFERENCE_DATA;
+    }
+
+
+    public int getExpectedStatusWord ()
+    {
+        return expectedStatusWord;
+    }
+
+
+    public int getStatusWordMask ()
+    {
+        return statusWordMask;
+    }
+
+
+    public byte[] getExpectedResponse ()
+    {
+        return expectedResponse;
+    }
+
+
+    // Return the first line of the comment before the command.
+    public String getDescription ()
+    {
+        return description;
+    }
+
+
+    // Return true if the status word and the response are the expected ones.
+    public boolean matches (int statusWord, byte[] response, int offset, int length)
+    {
+        if ((statusWord & statusWordMask) != expectedStatusWord)
+            return false;
+
+        return expectedResponse == null || Arrays.equals(expectedResponse, 0, expectedResponse.length, response, offset, offset + length);
+    }
+
+
+    // Return the same step expecting the given status word and response.
+    public ScriptStep withExpected (int statusWord, byte[] response)
+    {
+        return new ScriptStep(line, command, statusWord, 0xFFFF, response, description);
+    }
+}
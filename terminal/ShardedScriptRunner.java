@@ -0,0 +1,356 @@
+package terminal;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+
+
+
+// Runs APDU scripts split into shards on several cards at once, and merges their divergences into one report.
+//
+// A shard starts where a script creates an applet: at the installer's CREATE, or at the SELECT of the installer right before
+// it. Everything after a CREATE depends only on the new applet, so each shard runs on its own card, after the steps of the
+// script before its first shard (powering up, selecting the installer). The SELECTs inside a shard don't split it: the
+// scenarios after them rely on the state the earlier ones left on the applet.
+//
+// The scripts of this tree (homework_*/*.scr, project/Test.script) create their applet once, so each one is a single shard.
+// The main method runs each shard on a card in its own PC/SC reader, or with --simulator on simulated cards (runForked): the
+// setup of each shard (ScriptReplay.getSetupLength: up to the CREATE, then the SELECT and the PIN commands of the
+// personalization) runs once, and the repetitions of the rest run on all the threads, each on a card created from the
+// snapshot taken after the setup. The scenarios after the setup are not split further: in these scripts each one relies on
+// the state the earlier ones leave (the consults and vacations read back later, the credits the debits spend).
+public final class ShardedScriptRunner
+{
+    // A part of a script that can run on its own card.
+    public static final class Shard
+    {
+        public final String script;
+        public final int index;
+        public final List<ScriptStep> steps;
+
+
+        Shard (String script, int index, List<ScriptStep> steps)
+        {
+            this.script = script;
+            this.index = index;
+            this.steps = steps;
+        }
+    }
+
+
+    // Result of the shards, in the order of the scripts.
+    public static final class Report
+    {
+        public final List<Shard> shards = new ArrayList<>();
+        public final List<ScriptReplay.Report> reports = new ArrayList<>();
+        public long commands;
+        public long divergenceCount;
+        public long elapsedNanoseconds;
+
+
+        public double getCommandsPerSecond ()
+        {
+            return elapsedNanoseconds == 0 ? 0 : commands * 1e9 / elapsedNanoseconds;
+        }
+
+
+        void add (Shard shard, ScriptReplay.Report shardReport)
+        {
+            shards.add(shard);
+            reports.add(shardReport);
+            commands += shardReport.commands;
+            divergenceCount += shardReport.divergenceCount;
+        }
+
+
+        @Override
+        public String toString ()
+        {
+            StringBuilder text = new StringBuilder();
+
+            for (int index = 0; index < shards.size(); index++)
+            {
+                Shard shard = shards.get(index);
+                ScriptReplay.Report report = reports.get(index);
+
+                text.append(String.format("%s [shard %d]: %d commands, %d divergences%n", shard.script, shard.index, report.commands, report.divergenceCount));
+
+                for (ScriptReplay.Divergence divergence : report.divergences)
+                    text.append("    ").append(divergence).append('\n');
+
+                if (report.divergenceCount > report.divergences.size())
+                    text.append("    ... ").append(report.divergenceCount - report.divergences.size()).append(" more\n");
+            }
+
+            text.append(String.format("%d shards, %d commands, %d divergences, %.3f ms, %.0f commands/s", shards.size(), commands, divergenceCount,
+                    elapsedNanoseconds / 1e6, getCommandsPerSecond()));
+
+            return text.toString();
+        }
+    }
+
+
+    private ShardedScriptRunner ()
+    {
+    }
+
+
+    // Split the steps of the script into shards, each one starting with the steps before the first CREATE.
+    public static List<Shard> split (String script, List<ScriptStep> steps)
+    {
+        // Find where the shards start: at each CREATE, or at the SELECT right before it.
+        List<Integer> starts = new ArrayList<>();
+
+        for (int index = 0; index < steps.size(); index++)
+        {
+            if (!steps.get(index).isInstall())
+                continue;
+
+            int start = (index > 0 && steps.get(index - 1).isSelect()) ? index - 1 : index;
+
+            if (starts.isEmpty() || starts.get(starts.size() - 1) < start)
+                starts.add(start);
+        }
+
+        List<Shard> shards = new ArrayList<>();
+
+        // A script that creates no applet is one shard.
+        if (starts.isEmpty())
+        {
+            shards.add(new Shard(script, 0, steps));
+            return shards;
+        }
+
+        List<ScriptStep> prelude = steps.subList(0, starts.get(0));
+
+        for (int index = 0; index < starts.size(); index++)
+        {
+            int end = (index + 1 < starts.size()) ? starts.get(index + 1) : steps.size();
+            List<ScriptStep> shardSteps = new ArrayList<>(prelude.size() + end - starts.get(index));
+
+            shardSteps.addAll(prelude);
+            shardSteps.addAll(steps.subList(starts.get(index), end));
+            shards.add(new Shard(script, index, shardSteps));
+        }
+
+        return shards;
+    }
+
+
+    // Run the shards with the given number of threads, each one on the card the source gives for its index in the list.
+    public static Report run (List<Shard> shards, FleetLoadGenerator.CardSource source, int threads) throws CardException, InterruptedException
+    {
+        // More threads than shards would only wait.
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, shards.size())));
+        List<Future<ScriptReplay.Report>> futures = new ArrayList<>(shards.size());
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        try
+        {
+            for (int index = 0; index < shards.size(); index++)
+            {
+                int card = index;
+                ScriptReplay replay = new ScriptReplay(shards.get(index).steps);
+
+                futures.add(executor.submit(() -> replay.run(source.connect(card), 1)));
+            }
+
+            for (int index = 0; index < shards.size(); index++)
+                report.add(shards.get(index), getResult(futures.get(index)));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        report.elapsedNanoseconds = System.nanoTime() - start;
+
+        return report;
+    }
+
+
+    // Run the shards on simulated cards with the given number of threads: the setup of each shard once, then the repetitions
+    // of the rest, split among the threads, each on a card created from the snapshot taken after the setup.
+    public static Report runForked (List<Shard> shards, int repetitions, int threads) throws CardException, InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        int parts = Math.max(1, Math.min(threads, repetitions));
+        SimulatedCard.Snapshot[] snapshots = new SimulatedCard.Snapshot[shards.size()];
+        List<Future<ScriptReplay.Report>> setups = new ArrayList<>(shards.size());
+        List<List<Future<ScriptReplay.Report>>> scenarios = new ArrayList<>(shards.size());
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        try
+        {
+            // Set the shards up at once.
+            for (int index = 0; index < shards.size(); index++)
+            {
+                int shard = index;
+                List<ScriptStep> steps = shards.get(index).steps;
+
+                setups.add(executor.submit(() ->
+                {
+                    SimulatedCard card = new SimulatedCard(shard);
+                    ScriptReplay.Report setupReport = new ScriptReplay(steps.subList(0, ScriptReplay.getSetupLength(steps))).run(card.getBasicChannel(), 1);
+
+                    snapshots[shard] = card.snapshot();
+
+                    return setupReport;
+                }));
+            }
+
+            // Run the repetitions of each shard once it is set up.
+            for (int index = 0; index < shards.size(); index++)
+            {
+                getResult(setups.get(index));
+
+                List<ScriptStep> steps = shards.get(index).steps;
+                List<ScriptStep> scenarioSteps = steps.subList(ScriptReplay.getSetupLength(steps), steps.size());
+                SimulatedCard.Snapshot snapshot = snapshots[index];
+                List<Future<ScriptReplay.Report>> shardScenarios = new ArrayList<>(parts);
+
+                for (int part = 0; part < parts; part++)
+                {
+                    int first = (int) ((long) repetitions * part / parts);
+                    int count = (int) ((long) repetitions * (part + 1) / parts) - first;
+
+                    shardScenarios.add(executor.submit(() -> new ScriptReplay(scenarioSteps).run(repetition -> new SimulatedCard(snapshot, repetition).getBasicChannel(), first, count)));
+                }
+
+                scenarios.add(shardScenarios);
+            }
+
+            // Merge the setup and the repetitions of each shard.
+            for (int index = 0; index < shards.size(); index++)
+            {
+                ScriptReplay.Report shardReport = getResult(setups.get(index));
+
+                for (Future<ScriptReplay.Report> part : scenarios.get(index))
+                    shardReport.add(getResult(part));
+
+                report.add(shards.get(index), shardReport);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        report.elapsedNanoseconds = System.nanoTime() - start;
+
+        return report;
+    }
+
+
+    // Return the report of a shard, or throw the exception that stopped it.
+    private static ScriptReplay.Report getResult (Future<ScriptReplay.Report> future) throws CardException, InterruptedException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof CardException)
+                throw (CardException) e.getCause();
+
+            throw new CardException("Shard failed", e.getCause());
+        }
+    }
+
+
+    // Usage: ShardedScriptRunner <script or compiled script>... [--threads <count>] [--simulator [--repeat <count>]]
+    // On readers, shard i runs on the card in the reader i, so there can't be more shards than readers.
+    public static void main (String[] arguments) throws IOException, CardException, InterruptedException
+    {
+        List<Path> scripts = new ArrayList<>();
+        List<Shard> shards = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean simulator = false;
+        int repetitions = 1;
+
+        for (int index = 0; index < arguments.length; index++)
+        {
+            if (arguments[index].equals("--threads") && index + 1 < arguments.length)
+                threads = Integer.parseInt(arguments[++index]);
+
+            else if (arguments[index].equals("--repeat") && index + 1 < arguments.length)
+                repetitions = Integer.parseInt(arguments[++index]);
+
+            else if (arguments[index].equals("--simulator"))
+                simulator = true;
+
+            else
+                scripts.add(Paths.get(arguments[index]));
+        }
+
+        for (Path script : scripts)
+        {
+            List<Shard> scriptShards = split(script.toString(), ScriptReplay.load(script));
+
+            // On readers, a script that creates its applet once runs on one card, one step after another.
+            if (scriptShards.size() == 1 && !simulator)
+                System.err.println(script + ": one shard, runs on a single card");
+
+            shards.addAll(scriptShards);
+        }
+
+        if (shards.isEmpty())
+        {
+            System.err.println("Usage: java terminal.ShardedScriptRunner <script or compiled script>... [--threads <count>] [--simulator [--repeat <count>]]");
+            System.exit(2);
+        }
+
+        if (simulator)
+        {
+            Report report = runForked(shards, repetitions, threads);
+            System.out.println(report);
+
+            if (report.divergenceCount > 0)
+                System.exit(1);
+
+            return;
+        }
+
+        if (repetitions != 1)
+            throw new IllegalArgumentException("--repeat runs on the simulator only");
+
+        ScriptReplay.disableProviderGetResponse();
+        List<CardTerminal> terminals = TerminalFactory.getDefault().terminals().list();
+
+        if (shards.size() > terminals.size())
+            throw new IllegalArgumentException(shards.size() + " shards need as many readers, there are " + terminals.size());
+
+        List<Card> cards = new ArrayList<>();
+
+        try
+        {
+            for (int index = 0; index < shards.size(); index++)
+                cards.add(terminals.get(index).connect("*"));
+
+            Report report = run(shards, card -> cards.get(card).getBasicChannel(), threads);
+            System.out.println(report);
+
+            if (report.divergenceCount > 0)
+                System.exit(1);
+        }
+        finally
+        {
+            for (Card card : cards)
+                card.disconnect(true);
+        }
+    }
+}
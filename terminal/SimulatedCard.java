@@ -0,0 +1,405 @@
+package terminal;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javacard.framework.Applet;
+import javacard.framework.CardRuntime;
+import javacard.framework.ISO7816;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+
+
+// A card run in the JVM: the runtime of the simulator (javacard.framework.CardRuntime, in simulator/) behind the
+// javax.smartcardio API, so the replay, the clients and the load tools run on it as on a card in a reader, at the speed
+// of the JVM. Like a blank card, it starts with the installer selected; the CREATE of the scripts installs the applets
+// of this tree (Health, and the Wallet of homework 2), found by their AIDs when their classes are on the class path.
+// The responses come as the applets give them: 61xx is passed through, as by the JDK provider without GET RESPONSE.
+//
+// disconnect(true) resets the card (transient arrays cleared, installer selected); the card stays usable after any
+// disconnect, as if it were put back in the reader.
+//
+// snapshot() captures the applets of the card (AppletSnapshot) with the selected one; a card created from the snapshot
+// installs the applets again with the parameters of their CREATE, restores their state into them and resumes the selection,
+// so it goes on from that moment (PIN try counters and validation flags, keys and sessions included) without the setup.
+// restore() brings a card back to a snapshot in place, so the clients bound to its channel keep working.
+public final class SimulatedCard extends Card
+{
+    // Define the applets of the tree: their AIDs and their classes.
+    static final byte[] WALLET_AID = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0C, 0x06, 0x01};
+    static final String WALLET_CLASS						= "com.oracle.jcclassic.samples.wallet.Wallet";
+    static final byte[] HEALTH_AID = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x63, 0x03, 0x01, 0x0C, 0x07};
+    static final String HEALTH_CLASS						= "health.Health";
+
+
+    // Define the answer to reset: T=1, no historical bytes.
+    static final ATR ANSWER_TO_RESET = new ATR(new byte[] {0x3B, (byte) 0x80, (byte) 0x80, 0x01, 0x01});
+
+
+    // Define the CLA and INS of the installer's CREATE command.
+    static final int CLA_INSTALLER							= 0x80;
+    static final int INS_INSTALL							= 0xB8;
+
+
+    // Define the size of the command buffer at first (a short command); it grows for the extended ones.
+    static final int COMMAND_BUFFER_SIZE					= 5 + 255 + 1;
+
+
+    // Declare the applet classes of the tree found on the class path (looked up once).
+    private static final List<Class<?>> appletClasses = new ArrayList<>();
+    private static final List<byte[]> appletAIDs = new ArrayList<>();
+
+
+    static
+    {
+        addIfPresent(WALLET_AID, WALLET_CLASS);
+        addIfPresent(HEALTH_AID, HEALTH_CLASS);
+    }
+
+
+    // Declare the applet classes CREATE can install on this card, and its runtime (replaced by restore()).
+    private final List<byte[]> classAIDs = new ArrayList<>();
+    private final List<Class<?>> classes = new ArrayList<>();
+    private CardRuntime runtime;
+    private final Channel channel = new Channel();
+    private byte[] command = new byte[COMMAND_BUFFER_SIZE];
+
+
+    // The state of the applets of a card at one moment; only read, so any number of cards can start from it at once.
+    public static final class Snapshot
+    {
+        private final byte[][] aids;
+        private final byte[][] parameters;
+        private final AppletSnapshot[] applets;
+        private final byte[] selectedAID;
+
+
+        Snapshot (byte[][] aids, byte[][] parameters, AppletSnapshot[] applets, byte[] selectedAID)
+        {
+            this.aids = aids;
+            this.parameters = parameters;
+            this.applets = applets;
+            this.selectedAID = selectedAID;
+        }
+
+
+        public int getAppletCount ()
+        {
+            return applets.length;
+        }
+
+
+        // Return the number of bytes of the state of the applets.
+        public int getSize ()
+        {
+            int size = 0;
+
+            for (AppletSnapshot applet : applets)
+                size += applet.getSize();
+
+            return size;
+        }
+    }
+
+
+    // The basic channel of the card.
+    private final class Channel extends CardChannel
+    {
+        @Override
+        public Card getCard ()
+        {
+            return SimulatedCard.this;
+        }
+
+
+        @Override
+        public int getChannelNumber ()
+        {
+            return 0;
+        }
+
+
+        @Override
+        public ResponseAPDU transmit (CommandAPDU command)
+        {
+            byte[] bytes = command.getBytes();
+
+            synchronized (SimulatedCard.this)
+            {
+                int length = runtime.process(bytes, 0, bytes.length);
+
+                return new ResponseAPDU(Arrays.copyOf(runtime.getResponse(), length));
+            }
+        }
+
+
+        @Override
+        public int transmit (ByteBuffer command, ByteBuffer response)
+        {
+            synchronized (SimulatedCard.this)
+            {
+                int commandLength = command.remaining();
+
+                if (commandLength > SimulatedCard.this.command.length)
+                    SimulatedCard.this.command = new byte[commandLength];
+
+                command.get(SimulatedCard.this.command, 0, commandLength);
+
+                int length = runtime.process(SimulatedCard.this.command, 0, commandLength);
+
+                if (length > response.remaining())
+                    throw new BufferOverflowException();
+
+                response.put(runtime.getResponse(), 0, length);
+
+                return length;
+            }
+        }
+
+
+        @Override
+        public void close ()
+        {
+            throw new IllegalStateException("The basic channel can't be closed");
+        }
+    }
+
+
+    // Create a card with the applets of the tree, and a random seed for the random data of the applets.
+    public SimulatedCard ()
+    {
+        this(System.nanoTime());
+    }
+
+
+    public SimulatedCard (long seed)
+    {
+        classAIDs.addAll(appletAIDs);
+        classes.addAll(appletClasses);
+        runtime = createRuntime(seed);
+    }
+
+
+    // Create a card going on from the snapshot; throws IllegalStateException if an applet no longer installs.
+    public SimulatedCard (Snapshot snapshot, long seed)
+    {
+        this(seed);
+        restore(runtime, snapshot);
+    }
+
+
+    // Bring the card back to the snapshot, on a new runtime (its counters start again from zero); the channel and the
+    // clients using it stay valid.
+    public synchronized void restore (Snapshot snapshot, long seed)
+    {
+        CardRuntime restored = createRuntime(seed);
+
+        restore(restored, snapshot);
+        runtime = restored;
+    }
+
+
+    // Capture the applets of the card. The references left null by the install (Health without the working copy) stay out of
+    // the snapshot, since a card created from it installs them the same way.
+    public synchronized Snapshot snapshot ()
+    {
+        int count = runtime.getAppletCount();
+        byte[][] aids = new byte[count][];
+        byte[][] parameters = new byte[count][];
+        AppletSnapshot[] applets = new AppletSnapshot[count];
+
+        for (int index = 0; index < count; index++)
+        {
+            Applet applet = runtime.getApplet(index);
+
+            aids[index] = runtime.getAppletAID(index);
+            parameters[index] = runtime.getInstallParameters(index);
+            applets[index] = AppletSnapshot.capture(applet, getStateFields(applet));
+        }
+
+        return new Snapshot(aids, parameters, applets, runtime.getSelectedAID());
+    }
+
+
+    // Install an applet of the tree as the scripts do: SELECT of the installer, then CREATE with the AID and the data of the
+    // applet, without control information; throws CardException if the card refuses it.
+    public void install (byte[] aid, byte[] appletData) throws CardException
+    {
+        byte[] create = new byte[1 + aid.length + 1 + 3 + appletData.length];
+        int offset = 0;
+
+        // AID, then the parameters: a byte ignored by the applets, the control information (none) and the data of the applet.
+        create[offset++] = (byte) aid.length;
+        System.arraycopy(aid, 0, create, offset, aid.length);
+        offset += aid.length;
+        create[offset++] = (byte) (3 + appletData.length);
+        create[offset++] = 0x00;
+        create[offset++] = 0x00;
+        create[offset++] = (byte) appletData.length;
+        System.arraycopy(appletData, 0, create, offset, appletData.length);
+
+        ResponseAPDU response = channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, CardRuntime.INSTALLER_AID));
+
+        if (response.getSW() == (ISO7816.SW_NO_ERROR & 0xFFFF))
+            response = channel.transmit(new CommandAPDU(CLA_INSTALLER, INS_INSTALL, 0x00, 0x00, create));
+
+        if (response.getSW() != (ISO7816.SW_NO_ERROR & 0xFFFF))
+            throw new CardException(String.format("Applet not installed: %04X", response.getSW()));
+    }
+
+
+    // Let CREATE install another applet class under the given AID.
+    public synchronized void addAppletClass (byte[] aid, String className) throws ClassNotFoundException
+    {
+        Class<?> type = Class.forName(className);
+
+        classAIDs.add(aid.clone());
+        classes.add(type);
+        runtime.addAppletClass(aid, type);
+    }
+
+
+    // Return the runtime of the card (a new one after restore()).
+    public synchronized CardRuntime getRuntime ()
+    {
+        return runtime;
+    }
+
+
+    @Override
+    public ATR getATR ()
+    {
+        return ANSWER_TO_RESET;
+    }
+
+
+    @Override
+    public String getProtocol ()
+    {
+        return "T=1";
+    }
+
+
+    @Override
+    public CardChannel getBasicChannel ()
+    {
+        return channel;
+    }
+
+
+    @Override
+    public CardChannel openLogicalChannel () throws CardException
+    {
+        throw new CardException("Logical channels are not supported");
+    }
+
+
+    @Override
+    public void beginExclusive ()
+    {
+    }
+
+
+    @Override
+    public void endExclusive ()
+    {
+    }
+
+
+    @Override
+    public byte[] transmitControlCommand (int controlCode, byte[] command) throws CardException
+    {
+        throw new CardException("Control commands are not supported");
+    }
+
+
+    @Override
+    public synchronized void disconnect (boolean reset)
+    {
+        if (reset)
+            runtime.reset();
+    }
+
+
+    private CardRuntime createRuntime (long seed)
+    {
+        CardRuntime created = new CardRuntime(seed);
+
+        for (int index = 0; index < classes.size(); index++)
+            created.addAppletClass(classAIDs.get(index), classes.get(index));
+
+        return created;
+    }
+
+
+    // Install the applets of the snapshot on the runtime, give them their state and select the one selected in the snapshot.
+    private static void restore (CardRuntime target, Snapshot snapshot)
+    {
+        for (int index = 0; index < snapshot.applets.length; index++)
+        {
+            short statusWord = target.install(snapshot.aids[index], snapshot.parameters[index]);
+
+            if (statusWord != ISO7816.SW_NO_ERROR)
+                throw new IllegalStateException(String.format("Applet %d of the snapshot not installed: %04X", index, statusWord & 0xFFFF));
+
+            snapshot.applets[index].restore(target.getApplet(index));
+        }
+
+        target.resumeSelection(snapshot.selectedAID);
+    }
+
+
+    // Return the names of the instance fields of the applet class that are primitive or not null.
+    private static String[] getStateFields (Applet applet)
+    {
+        List<String> names = new ArrayList<>();
+
+        try
+        {
+            for (Class<?> type = applet.getClass(); type != Applet.class; type = type.getSuperclass())
+            {
+                for (Field field : type.getDeclaredFields())
+                {
+                    if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic())
+                        continue;
+
+                    field.setAccessible(true);
+
+                    if (field.getType().isPrimitive() || field.get(applet) != null)
+                        names.add(field.getName());
+                }
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        return names.toArray(new String[0]);
+    }
+
+
+    private static void addIfPresent (byte[] aid, String className)
+    {
+        try
+        {
+            appletClasses.add(Class.forName(className, false, SimulatedCard.class.getClassLoader()));
+            appletAIDs.add(aid);
+        }
+        catch (ClassNotFoundException e)
+        {
+            // Not compiled with the tools: CREATE answers that the applet is not found.
+        }
+    }
+}
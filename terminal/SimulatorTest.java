@@ -0,0 +1,390 @@
+package terminal;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javacard.framework.CardRuntime;
+import javacard.framework.OwnerPIN;
+import javacard.security.AESKey;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+
+
+// Replays of the scripts of the tree on SimulatedCard: the installation, the selection and every status word the comments
+// of the scripts give must come as expected, each repetition on a blank card or on a card created from the snapshot taken
+// after the setup (also by ShardedScriptRunner, on several threads); a wrong expectation must be reported, and a reset must
+// select the installer again. The snapshots are checked on the applets themselves: PIN try counters and validation flags,
+// and the AES key of Health. Two runs of CommandBenchmark on simulated cards must count the same writes, and
+// FleetLoadGenerator must drive a fleet of simulated Wallet cards. CardStateStore is laid out on the applets themselves: the
+// Health of the script paged out and into another card, and a fleet of Wallet cards paged in and out on their selection,
+// whose balances go on from one run to the next.
+// A failed check throws AssertionError, so the exit status tells the result.
+//
+// Usage: java terminal.SimulatorTest [<root of the tree>]
+public final class SimulatorTest
+{
+    // Define the scripts replayed, from the root of the tree.
+    static final String[] SCRIPTS = {"homework_2/homework_2.scr", "project/Test.script"};
+
+
+    // Define the number of repetitions of each script.
+    static final int REPETITIONS							= 3;
+
+
+    private SimulatorTest ()
+    {
+    }
+
+
+    public static void main (String[] arguments) throws IOException, CardException
+    {
+        Path root = Paths.get(arguments.length > 0 ? arguments[0] : ".");
+
+        for (String script : SCRIPTS)
+        {
+            replayScript(root.resolve(script));
+            replayForked(root.resolve(script));
+        }
+
+        shardsForked(root);
+        walletSnapshot(root.resolve(SCRIPTS[0]));
+        healthSnapshot(root.resolve(SCRIPTS[1]));
+
+        benchmarkRepeats();
+        fleetOnSimulator();
+        healthStored(root.resolve(SCRIPTS[1]));
+        fleetStored();
+        divergenceReported();
+        resetSelectsInstaller(root.resolve(SCRIPTS[0]));
+
+        System.out.println("SimulatorTest: all checks passed");
+    }
+
+
+    // The script replays without divergences, and its status words are checked (a step left unchecked proves nothing).
+    static void replayScript (Path path) throws IOException, CardException
+    {
+        List<ScriptStep> steps = ScriptReplay.load(path);
+
+        for (ScriptStep step : steps)
+            check(step.getStatusWordMask() != ScriptStep.NOT_CHECKED, path + ": no status word expected at line " + step.getLine());
+
+        ScriptReplay.Report report = new ScriptReplay(steps).run(repetition -> new SimulatedCard(repetition).getBasicChannel(), REPETITIONS);
+
+        check(report.commands == (long) steps.size() * REPETITIONS, path + ": " + report.commands + " commands");
+        check(report.divergenceCount == 0, path + ": " + report);
+    }
+
+
+    // The rest of the script replays without divergences on cards created from the snapshot taken after the setup.
+    static void replayForked (Path path) throws IOException, CardException
+    {
+        List<ScriptStep> steps = ScriptReplay.load(path);
+        int setupLength = ScriptReplay.getSetupLength(steps);
+        ScriptReplay.Report report = ScriptReplay.runForked(steps, REPETITIONS);
+
+        check(setupLength > 0, path + ": no setup");
+        check(report.commands == setupLength + (long) (steps.size() - setupLength) * REPETITIONS, path + ": " + report.commands + " commands forked");
+        check(report.divergenceCount == 0, path + " forked: " + report);
+    }
+
+
+    // The shards of the scripts run their setup once and their repetitions on forks spread over several threads.
+    static void shardsForked (Path root) throws IOException, CardException
+    {
+        List<ShardedScriptRunner.Shard> shards = new ArrayList<>();
+        long expected = 0;
+
+        for (String script : SCRIPTS)
+        {
+            List<ScriptStep> steps = ScriptReplay.load(root.resolve(script));
+            int setupLength = ScriptReplay.getSetupLength(steps);
+
+            shards.addAll(ShardedScriptRunner.split(script, steps));
+            expected += setupLength + (long) (steps.size() - setupLength) * REPETITIONS;
+        }
+
+        ShardedScriptRunner.Report report;
+
+        try
+        {
+            report = ShardedScriptRunner.runForked(shards, REPETITIONS, 2);
+        }
+        catch (InterruptedException e)
+        {
+            throw new AssertionError("interrupted", e);
+        }
+
+        check(report.shards.size() == SCRIPTS.length && report.commands == expected, "shards: " + report.commands + " commands");
+        check(report.divergenceCount == 0, "shards: " + report);
+    }
+
+
+    // A card created after the setup of the Wallet has its PIN validated with all its tries, and runs commands needing it.
+    static void walletSnapshot (Path script) throws IOException, CardException
+    {
+        List<ScriptStep> steps = ScriptReplay.load(script);
+        SimulatedCard card = new SimulatedCard(0);
+
+        new ScriptReplay(steps.subList(0, ScriptReplay.getSetupLength(steps))).run(card.getBasicChannel(), 1);
+
+        SimulatedCard fork = new SimulatedCard(card.snapshot(), 1);
+        OwnerPIN pin = (OwnerPIN) getField(fork.getRuntime().getApplet(0), "pin");
+
+        check(pin.isValidated() && pin.getTriesRemaining() == 3, "Wallet PIN of the fork: " + pin.getTriesRemaining() + " tries");
+        check(pin != getField(card.getRuntime().getApplet(0), "pin"), "PIN shared by the cards");
+
+        // GET BALANCE, which needs the PIN, goes to the Wallet selected in the fork.
+        ResponseAPDU response = fork.getBasicChannel().transmit(new CommandAPDU(0x80, 0x50, 0x00, 0x00, 256));
+
+        check(response.getSW() == 0x9000, "GET BALANCE on the fork: " + Integer.toHexString(response.getSW()));
+    }
+
+
+    // A card created after a wrong VERIFY keeps the lowered try counter, the PIN not validated and the AES key; a VERIFY on
+    // the fork doesn't change the card it was created from.
+    static void healthSnapshot (Path script) throws IOException, CardException
+    {
+        List<ScriptStep> steps = ScriptReplay.load(script);
+        int setupLength = ScriptReplay.getSetupLength(steps);
+        ScriptStep wrongVerify = steps.get(setupLength - 2);
+        ScriptStep verify = steps.get(setupLength - 1);
+        SimulatedCard card = new SimulatedCard(0);
+
+        new ScriptReplay(steps.subList(0, setupLength)).run(card.getBasicChannel(), 1);
+        card.getBasicChannel().transmit(new CommandAPDU(wrongVerify.getCommand()));
+
+        SimulatedCard fork = new SimulatedCard(card.snapshot(), 1);
+        Object applet = fork.getRuntime().getApplet(0);
+        OwnerPIN pin = (OwnerPIN) getField(applet, "pin");
+        byte[] key = new byte[16];
+
+        check(!pin.isValidated() && pin.getTriesRemaining() == 2, "Health PIN of the fork: " + pin.getTriesRemaining() + " tries");
+        check(((AESKey) getField(applet, "aesKey")).getKey(key, (short) 0) == 16 && key[0] == 0x00 && key[15] == (byte) 0xFF, "Health key of the fork");
+
+        check(fork.getBasicChannel().transmit(new CommandAPDU(verify.getCommand())).getSW() == 0x9000, "VERIFY on the fork");
+        check(pin.isValidated() && pin.getTriesRemaining() == 3, "Health PIN of the fork after VERIFY");
+
+        OwnerPIN original = (OwnerPIN) getField(card.getRuntime().getApplet(0), "pin");
+
+        check(!original.isValidated() && original.getTriesRemaining() == 2, "Health PIN of the card after VERIFY on the fork");
+    }
+
+
+    // Two runs of the benchmark on simulated cards count the same persistent writes for every command, and find writes.
+    static void benchmarkRepeats () throws CardException
+    {
+        List<CommandBenchmark.Result> first = runBenchmark();
+        List<CommandBenchmark.Result> second = runBenchmark();
+
+        check(first.size() == second.size() && !first.isEmpty(), "benchmark results: " + first.size() + ", " + second.size());
+
+        for (int index = 0; index < first.size(); index++)
+        {
+            CommandBenchmark.Result one = first.get(index);
+            CommandBenchmark.Result other = second.get(index);
+
+            check(one.name.equals(other.name) && one.persistentWrites == other.persistentWrites, "benchmark writes of " + one.name
+                    + ": " + one.persistentWrites + ", " + other.persistentWrites);
+            check(one.name.endsWith("getPatientData") || one.persistentWrites >= one.iterations, "no writes for " + one.name);
+        }
+    }
+
+
+    static List<CommandBenchmark.Result> runBenchmark () throws CardException
+    {
+        CommandBenchmark benchmark = new CommandBenchmark(5, 50);
+        SimulatedCard card = CommandBenchmark.createSimulatedCard();
+
+        benchmark.setSimulatedCard(card);
+        benchmark.measureHealth(card.getBasicChannel(), CommandBenchmark.SIMULATOR_HEALTH_KEY, CommandBenchmark.DEFAULT_PIN);
+        benchmark.measureWallet(card.getBasicChannel(), CommandBenchmark.DEFAULT_PIN, CommandBenchmark.SIMULATOR_FARE_KEY, null);
+
+        return benchmark.getResults();
+    }
+
+
+    // A fleet of simulated Wallet cards, each installed by its CREATE, runs every command of the mix.
+    static void fleetOnSimulator () throws CardException
+    {
+        FleetLoadGenerator.CardSource cards = FleetLoadGenerator.simulatedWallets(CommandBenchmark.DEFAULT_PIN, CommandBenchmark.SIMULATOR_FARE_KEY, 0);
+        FleetLoadGenerator generator = new FleetLoadGenerator(cards, CommandBenchmark.DEFAULT_PIN, 20, 70, 20, 10);
+        FleetLoadGenerator.Report report;
+
+        try
+        {
+            report = generator.run(200, 2, 0);
+        }
+        catch (InterruptedException e)
+        {
+            throw new AssertionError("interrupted", e);
+        }
+
+        check(report.commands == 200 * 20, "fleet: " + report.commands + " commands");
+        check(report.latencies[WalletClient.INS_TAP] != null && report.latencies[WalletClient.INS_CREDIT] != null
+                && report.latencies[WalletClient.INS_PURCHASE_PASS] != null, "fleet mix: " + report);
+    }
+
+
+    // The Health of the script, with a lowered try counter, is paged out and into the Health of another card, which then goes
+    // on from that state; a card never flushed is not paged in.
+    static void healthStored (Path script) throws IOException, CardException
+    {
+        List<ScriptStep> steps = ScriptReplay.load(script);
+        int setupLength = ScriptReplay.getSetupLength(steps);
+        ScriptReplay setup = new ScriptReplay(steps.subList(0, setupLength));
+        ScriptStep wrongVerify = steps.get(setupLength - 2);
+        ScriptStep verify = steps.get(setupLength - 1);
+        SimulatedCard card = new SimulatedCard(0);
+        SimulatedCard other = new SimulatedCard(1);
+        Path path = Files.createTempFile("health", ".store");
+
+        setup.run(card.getBasicChannel(), 1);
+        setup.run(other.getBasicChannel(), 1);
+        card.getBasicChannel().transmit(new CommandAPDU(wrongVerify.getCommand()));
+
+        Object applet = other.getRuntime().getApplet(0);
+
+        try (CardStateStore store = CardStateStore.open(path, 4, applet, CardStateStore.HEALTH_FIELDS))
+        {
+            store.pageOut(2, card.getRuntime().getApplet(0));
+
+            check(!store.pageIn(3, applet), "Health never flushed paged in");
+            check(store.pageIn(2, applet), "Health not paged in");
+        }
+        finally
+        {
+            Files.delete(path);
+        }
+
+        OwnerPIN pin = (OwnerPIN) getField(applet, "pin");
+        byte[] key = new byte[16];
+
+        check(pin.getTriesRemaining() == 2, "Health PIN paged in: " + pin.getTriesRemaining() + " tries");
+        check(((AESKey) getField(applet, "aesKey")).getKey(key, (short) 0) == 16 && key[0] == 0x00 && key[15] == (byte) 0xFF, "Health key paged in");
+        check(other.getBasicChannel().transmit(new CommandAPDU(verify.getCommand())).getSW() == 0x9000, "VERIFY after paging in");
+        check(pin.getTriesRemaining() == 3, "Health PIN after VERIFY");
+    }
+
+
+    // A fleet of Wallet cards kept in a store, credited only: every card is flushed at the end of its session, and its
+    // balance grows from one run to the next, with another card per thread.
+    static void fleetStored () throws IOException, CardException
+    {
+        int cards = 50;
+        byte[] pin = CommandBenchmark.DEFAULT_PIN;
+        byte[] fareKey = CommandBenchmark.SIMULATOR_FARE_KEY;
+        Object template = FleetLoadGenerator.createWalletCard(pin, fareKey, 0).getRuntime().getApplet(0);
+        Path path = Files.createTempFile("wallets", ".store");
+
+        try (CardStateStore store = CardStateStore.open(path, cards, template, CardStateStore.WALLET_FIELDS))
+        {
+            int[] first = runStoredFleet(store, cards, 0);
+
+            for (int card = 0; card < cards; card++)
+                check(first[card] > 0, "balance of card " + card + " after the first run: " + first[card]);
+
+            int[] second = runStoredFleet(store, cards, 100);
+
+            for (int card = 0; card < cards; card++)
+                check(second[card] > first[card], "balance of card " + card + ": " + first[card] + ", then " + second[card]);
+        }
+        finally
+        {
+            Files.delete(path);
+        }
+    }
+
+
+    // Credit every card of the stored fleet, then return the balances, read from the store.
+    static int[] runStoredFleet (CardStateStore store, int cards, long seed) throws CardException
+    {
+        byte[] pin = CommandBenchmark.DEFAULT_PIN;
+        FleetLoadGenerator.CardSource source = FleetLoadGenerator.storedWallets(store, pin, CommandBenchmark.SIMULATOR_FARE_KEY, seed);
+        FleetLoadGenerator.Report report;
+
+        try
+        {
+            report = new FleetLoadGenerator(source, pin, 10, 0, 1, 0).run(cards, 2, seed);
+        }
+        catch (InterruptedException e)
+        {
+            throw new AssertionError("interrupted", e);
+        }
+
+        check(report.commands == cards * 10L && report.rejected.isEmpty(), "stored fleet: " + report);
+
+        int[] balances = new int[cards];
+        Object wallet = FleetLoadGenerator.createWalletCard(pin, CommandBenchmark.SIMULATOR_FARE_KEY, seed).getRuntime().getApplet(0);
+
+        for (int card = 0; card < cards; card++)
+        {
+            check(store.pageIn(card, wallet), "card " + card + " not flushed");
+
+            byte[] state = (byte[]) getField(wallet, "walletState");
+
+            balances[card] = (state[0] & 0xFF) << 8 | state[1] & 0xFF;
+        }
+
+        return balances;
+    }
+
+
+    // A SELECT of an applet not installed goes to the installer, which refuses its class (6E00), so a step expecting 9000 diverges.
+    static void divergenceReported () throws CardException
+    {
+        byte[] select = new CommandAPDU(0x00, 0xA4, 0x04, 0x00, SimulatedCard.HEALTH_AID).getBytes();
+        ScriptStep step = new ScriptStep(1, select, 0x9000, 0xFFFF, null, "SELECT Health");
+        ScriptReplay.Report report = new ScriptReplay(Collections.singletonList(step)).run(new SimulatedCard(0).getBasicChannel(), 1);
+
+        check(report.divergenceCount == 1 && report.divergences.get(0).statusWord == 0x6E00, "divergence: " + report);
+    }
+
+
+    // After a reset, the commands go to the installer again, which doesn't know VERIFY.
+    static void resetSelectsInstaller (Path script) throws IOException, CardException
+    {
+        SimulatedCard card = new SimulatedCard(0);
+
+        new ScriptReplay(ScriptReplay.load(script)).run(card.getBasicChannel(), 1);
+        card.disconnect(true);
+
+        ResponseAPDU response = card.getBasicChannel().transmit(new CommandAPDU(0x80, 0x20, 0x00, 0x00, new byte[] {0x01, 0x02, 0x03, 0x04, 0x05}));
+
+        check(response.getSW() != 0x9000 && Arrays.equals(card.getRuntime().getSelectedAID(), CardRuntime.INSTALLER_AID),
+                "after reset: " + Integer.toHexString(response.getSW()));
+    }
+
+
+    static Object getField (Object applet, String name)
+    {
+        try
+        {
+            Field field = applet.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+
+            return field.get(applet);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new AssertionError(name, e);
+        }
+    }
+
+
+    static void check (boolean condition, String message)
+    {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
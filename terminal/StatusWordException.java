@@ -0,0 +1,51 @@
+package terminal;
+
+import javax.smartcardio.CardException;
+
+
+
+// A command that the card answered with a status word other than 0x9000.
+public class StatusWordException extends CardException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int ins;
+    private final int statusWord;
+
+
+    public StatusWordException (int ins, int statusWord, String reason)
+    {
+        super(String.format("INS 0x%02X failed with SW 0x%04X (%s)", ins & 0xFF, statusWord & 0xFFFF, reason));
+
+        this.ins = ins & 0xFF;
+        this.statusWord = statusWord & 0xFFFF;
+    }
+
+
+    // Return the INS of the command that failed.
+    public int getIns ()
+    {
+        return ins;
+    }
+
+
+    // Return the status word (SW1 SW2) of the card.
+    public int getStatusWord ()
+    {
+        return statusWord;
+    }
+
+
+    // Return SW1.
+    public int getSw1 ()
+    {
+        return statusWord >> 8;
+    }
+
+
+    // Return SW2.
+    public int getSw2 ()
+    {
+        return statusWord & 0xFF;
+    }
+}
@@ -0,0 +1,264 @@
+package terminal;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+
+
+
+// Typed client of com.oracle.jcclassic.samples.wallet.Wallet (homework_2).
+public class WalletClient extends CardClient
+{
+    // Define the AID of the applet.
+    public static final byte[] AID = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0C, 0x06, 0x01};
+
+
+    // Define the codes of the class and of the instructions.
+    static final byte CLA_WALLET							= (byte) 0x80;
+    static final byte INS_VERIFY							= (byte) 0x20;
+    static final byte INS_RESET_PIN							= (byte) 0x2C;
+    static final byte INS_CREDIT							= (byte) 0x30;
+    static final byte INS_DEBIT								= (byte) 0x40;
+    static final byte INS_START_TRANSIT						= (byte) 0x42;
+    static final byte INS_TAP								= (byte) 0x44;
+    static final byte INS_REDEEM_POINTS						= (byte) 0x46;
+    static final byte INS_GET_BALANCE						= (byte) 0x50;
+    static final byte INS_READ_JOURNAL						= (byte) 0x54;
+    static final byte INS_GET_STATS							= (byte) 0x5C;
+    static final byte INS_SET_FARE_TABLE					= (byte) 0x60;
+    static final byte INS_PURCHASE_PASS						= (byte) 0x70;
+
+
+    // Define the status words of the applet.
+    public static final int SW_VERIFICATION_FAILED			= 0x6300;
+    public static final int SW_PIN_VERIFICATION_REQUIRED	= 0x6301;
+    public static final int SW_INVALID_TRANSACTION_AMOUNT	= 0x6A83;
+    public static final int SW_EXCEED_MAXIMUM_BALANCE		= 0x6A84;
+    public static final int SW_NEGATIVE_BALANCE				= 0x6A85;
+    public static final int SW_NO_PASS						= 0x6A86;
+    public static final int SW_TOO_MANY_TICKETS				= 0x6A87;
+
+
+    // Define the means of transport and the fare types.
+    public static final int BUS								= 1;
+    public static final int TRAM							= 2;
+    public static final int FARE_FULL						= 0;
+    public static final int FARE_MORNING					= 1;
+    public static final int FARE_WEEKEND					= 2;
+
+
+    // Define the sizes of the data of the applet.
+    public static final int PUK_SIZE						= 8;
+    public static final int FARE_KEY_SIZE					= 8;
+    public static final int FARE_TABLE_SIZE					= 24;
+    public static final int JOURNAL_ENTRY_SIZE				= 8;
+    static final int PASS_ORDER_SIZE						= 3;
+
+
+    // Declare the buffer for the data of the commands.
+    private final byte[] data = new byte[MAXIMUM_DATA_SIZE];
+
+
+    // Declare the means of transport of the transit session, so the trips of a tap go to the right pass.
+    private int transitMeansOfTransport;
+
+
+    // Balance and remaining trips of the passes, filled by getBalance() and tap() so they can be reused.
+    public static final class Balance
+    {
+        public int balance;
+        public int busTrips;
+        public int tramTrips;
+
+
+        // Return the remaining trips of the pass for the given means of transport.
+        public int getTrips (int meansOfTransport)
+        {
+            return meansOfTransport == BUS ? busTrips : tramTrips;
+        }
+    }
+
+
+    public WalletClient (CardChannel channel)
+    {
+        super(channel);
+    }
+
+
+    // Select the Wallet applet.
+    public void select () throws CardException
+    {
+        select(AID);
+    }
+
+
+    // VERIFY: validate the PIN.
+    public void verify (byte[] pin, int offset, int length) throws CardException
+    {
+        command(CLA_WALLET, INS_VERIFY, 0x00, 0x00, pin, offset, length);
+    }
+
+
+    // RESET PIN: unblock the PIN with the PUK code (8 bytes).
+    public void resetPinTryCounter (byte[] puk, int offset) throws CardException
+    {
+        command(CLA_WALLET, INS_RESET_PIN, 0x00, 0x00, puk, offset, PUK_SIZE);
+    }
+
+
+    // CREDIT: add the amount (0 to 127 RON) to the balance.
+    public void credit (int amount) throws CardException
+    {
+        data[0] = (byte) amount;
+
+        command(CLA_WALLET, INS_CREDIT, 0x00, 0x00, data, 0, 1);
+    }
+
+
+    // DEBIT: pay the tickets, using a trip of the pass first (no date, so no fare cap and no expiry check).
+    public void debit (int meansOfTransport, int fareType, int numberOfTickets) throws CardException
+    {
+        data[0] = (byte) numberOfTickets;
+
+        command(CLA_WALLET, INS_DEBIT, meansOfTransport, fareType, data, 0, 1);
+    }
+
+
+    // DEBIT on the given day (day number, 1 - 1 January 2000), checking the fare caps and the expiry of the pass.
+    public void debit (int meansOfTransport, int fareType, int numberOfTickets, int date) throws CardException
+    {
+        data[0] = (byte) numberOfTickets;
+        data[1] = (byte) (date >> 8);
+        data[2] = (byte) date;
+
+        command(CLA_WALLET, INS_DEBIT, meansOfTransport, fareType, data, 0, 3);
+    }
+
+
+    // PURCHASE PASS: buy the pass for the means of transport, with no expiry.
+    public void purchasePass (int meansOfTransport) throws CardException
+    {
+        command(CLA_WALLET, INS_PURCHASE_PASS, meansOfTransport, 0x00, data, 0, 0);
+    }
+
+
+    // PURCHASE PASS: buy several passes at once (last valid day as a day number, 0 - no expiry).
+    public void purchasePasses (int[] meansOfTransport, int[] lastValidDays, int count) throws CardException
+    {
+        int length = 0;
+
+        for (int index = 0; index < count; index++)
+        {
+            data[length] = (byte) meansOfTransport[index];
+            data[length + 1] = (byte) (lastValidDays[index] >> 8);
+            data[length + 2] = (byte) lastValidDays[index];
+            length += PASS_ORDER_SIZE;
+        }
+
+        command(CLA_WALLET, INS_PURCHASE_PASS, 0x00, 0x00, data, 0, length);
+    }
+
+
+    // START TRANSIT: start a session of taps for the means of transport (date 0 - no fare cap and no expiry check).
+    public void startTransit (int meansOfTransport, int fareType, int date) throws CardException
+    {
+        data[0] = (byte) (date >> 8);
+        data[1] = (byte) date;
+
+        command(CLA_WALLET, INS_START_TRANSIT, meansOfTransport, fareType, data, 0, date == 0 ? 0 : 2);
+
+        transitMeansOfTransport = meansOfTransport;
+    }
+
+
+    // TAP: pay one trip of the transit session; the balance and the trips of the pass are updated in the given holder.
+    public Balance tap (Balance into) throws CardException
+    {
+        transmit(CLA_WALLET, INS_TAP, 0x00, 0x00, null, 0, 0, 3);
+
+        into.balance = getShort(0);
+
+        if (transitMeansOfTransport == BUS)
+            into.busTrips = responseData[2];
+
+        else
+            into.tramTrips = responseData[2];
+
+        return into;
+    }
+
+
+    // REDEEM POINTS: pay the tickets with loyalty points and return the points left.
+    public int redeemPoints (int meansOfTransport, int fareType, int numberOfTickets) throws CardException
+    {
+        data[0] = (byte) numberOfTickets;
+
+        transmit(CLA_WALLET, INS_REDEEM_POINTS, meansOfTransport, fareType, data, 0, 1, 2);
+
+        return getShort(0);
+    }
+
+
+    // GET BALANCE: get the balance and the remaining trips of each pass.
+    public Balance getBalance (Balance into) throws CardException
+    {
+        transmit(CLA_WALLET, INS_GET_BALANCE, 0x00, 0x00, null, 0, 0, 4);
+
+        into.balance = getShort(0);
+        into.busTrips = responseData[2];
+        into.tramTrips = responseData[3];
+
+        return into;
+    }
+
+
+    // READ JOURNAL: copy the journal entries after the given sequence number (8 bytes each, oldest first); return their number.
+    // Entry: sequence number (2 bytes), type, means of transport, amount (2 bytes), balance after (2 bytes).
+    public int readJournal (int lastSequence, byte[] output, int offset) throws CardException
+    {
+        return transmitChained(CLA_WALLET, INS_READ_JOURNAL, lastSequence >> 8, lastSequence, null, 0, 0, output, offset) / JOURNAL_ENTRY_SIZE;
+    }
+
+
+    // GET STATS: get the usage statistics of the card (no PIN needed).
+    @Override
+    public CardStats getStats (CardStats into) throws CardException
+    {
+        transmit(CLA_WALLET, INS_GET_STATS, 0x00, 0x00, null, 0, 0, MAXIMUM_RESPONSE_SIZE);
+
+        return into.parse(responseData, 0, responseLength);
+    }
+
+
+    // SET FARE TABLE: replace the fare table (24 bytes), authorized by the fare key the card was installed with (8 bytes).
+    // The card blocks the command for good after 3 wrong keys.
+    public void setFareTable (byte[] fareKey, int fareKeyOffset, byte[] fareTable, int fareTableOffset) throws CardException
+    {
+        System.arraycopy(fareKey, fareKeyOffset, data, 0, FARE_KEY_SIZE);
+        System.arraycopy(fareTable, fareTableOffset, data, FARE_KEY_SIZE, FARE_TABLE_SIZE);
+
+        command(CLA_WALLET, INS_SET_FARE_TABLE, 0x00, 0x00, data, 0, FARE_KEY_SIZE + FARE_TABLE_SIZE);
+    }
+
+
+    @Override
+    protected String describe (int statusWord)
+    {
+        switch (statusWord)
+        {
+            case SW_VERIFICATION_FAILED:				return "PIN verification failed";
+            case SW_PIN_VERIFICATION_REQUIRED:			return "PIN verification required";
+            case SW_INVALID_TRANSACTION_AMOUNT:			return "invalid transaction amount";
+            case SW_EXCEED_MAXIMUM_BALANCE:				return "maximum balance exceeded";
+            case SW_NEGATIVE_BALANCE:					return "insufficient balance";
+            case SW_NO_PASS:							return "pass already active or wrong means of transport";
+            case SW_TOO_MANY_TICKETS:					return "1 to 20 tickets";
+            default:									return super.describe(statusWord);
+        }
+    }
+
+
+    private int getShort (int offset)
+    {
+        return (short) (((responseData[offset] & 0xFF) << 8) | (responseData[offset + 1] & 0xFF));
+    }
+}